@@ -0,0 +1,89 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.glassware;
+
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.map.ObjectMapper;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Compares two JMH JSON result files and exits non-zero if any benchmark got
+ * slower by more than a threshold. All benchmarks here report average time,
+ * so a higher score is worse.
+ * <p/>
+ * Usage: {@code java -cp target/benchmarks.jar com.google.glassware.CompareResults
+ * baseline.json current.json [maxSlowdownPercent]}
+ */
+public class CompareResults {
+  private static final double DEFAULT_MAX_SLOWDOWN_PERCENT = 10;
+
+  public static void main(String[] args) throws IOException {
+    if (args.length < 2) {
+      System.err.println("Usage: CompareResults baseline.json current.json [maxSlowdownPercent]");
+      System.exit(2);
+    }
+    double maxSlowdown = args.length > 2
+        ? Double.parseDouble(args[2]) : DEFAULT_MAX_SLOWDOWN_PERCENT;
+    Map<String, Double> baseline = read(new File(args[0]));
+    Map<String, Double> current = read(new File(args[1]));
+
+    int regressions = 0;
+    for (Map.Entry<String, Double> entry : current.entrySet()) {
+      Double before = baseline.get(entry.getKey());
+      if (before == null) {
+        System.out.println(String.format("NEW   %-70s %12.3f", entry.getKey(), entry.getValue()));
+        continue;
+      }
+      double change = (entry.getValue() - before) / before * 100;
+      boolean regressed = change > maxSlowdown;
+      if (regressed) {
+        regressions++;
+      }
+      System.out.println(String.format("%-5s %-70s %12.3f -> %12.3f (%+.1f%%)",
+          regressed ? "SLOW" : "OK", entry.getKey(), before, entry.getValue(), change));
+    }
+    if (regressions > 0) {
+      System.out.println(regressions + " benchmark(s) slower than the baseline by more than "
+          + maxSlowdown + "%");
+      System.exit(1);
+    }
+  }
+
+  /**
+   * Returns each benchmark's score keyed by its name and parameters.
+   */
+  private static Map<String, Double> read(File file) throws IOException {
+    Map<String, Double> scores = new TreeMap<String, Double>();
+    for (JsonNode result : new ObjectMapper().readTree(file)) {
+      StringBuilder key = new StringBuilder(result.get("benchmark").getTextValue());
+      JsonNode params = result.get("params");
+      if (params != null) {
+        Iterator<Map.Entry<String, JsonNode>> fields = params.getFields();
+        while (fields.hasNext()) {
+          Map.Entry<String, JsonNode> param = fields.next();
+          key.append(' ').append(param.getKey()).append('=').append(param.getValue().asText());
+        }
+      }
+      scores.put(key.toString(), result.get("primaryMetric").get("score").getDoubleValue());
+    }
+    return scores;
+  }
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.glassware;
+
+import com.google.api.client.auth.oauth2.BearerToken;
+import com.google.api.client.auth.oauth2.ClientParametersAuthentication;
+import com.google.api.client.auth.oauth2.Credential;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link ListableMemoryCredentialStore} under the access pattern of a busy
+ * server: mostly loads from request and notification threads, some stores
+ * from token refreshes, and the occasional walk over all users.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CredentialStoreBenchmark {
+  private static final int USERS = 10000;
+
+  private ListableMemoryCredentialStore store;
+  private String[] userIds;
+
+  @Setup
+  public void setUp() throws IOException {
+    store = new ListableMemoryCredentialStore();
+    userIds = new String[USERS];
+    for (int i = 0; i < USERS; i++) {
+      userIds[i] = Long.toString(100000000000000000L + i * 7919L);
+      store.store(userIds[i], newCredential("access-" + i));
+    }
+  }
+
+  @Benchmark
+  public boolean load() {
+    return store.load(randomUser(), newCredential(null));
+  }
+
+  @Benchmark
+  @Threads(8)
+  public boolean loadContended() {
+    return store.load(randomUser(), newCredential(null));
+  }
+
+  @Benchmark
+  @Group("refresh")
+  @GroupThreads(7)
+  public boolean refreshLoad() {
+    return store.load(randomUser(), newCredential(null));
+  }
+
+  @Benchmark
+  @Group("refresh")
+  @GroupThreads(1)
+  public void refreshStore() throws IOException {
+    store.store(randomUser(), newCredential("refreshed"));
+  }
+
+  @Benchmark
+  @Group("broadcast")
+  @GroupThreads(7)
+  public boolean broadcastLoad() {
+    return store.load(randomUser(), newCredential(null));
+  }
+
+  @Benchmark
+  @Group("broadcast")
+  @GroupThreads(1)
+  public int broadcastListPage() {
+    List<String> page = store.listUsers(randomUser(), 50);
+    return page.size();
+  }
+
+  private String randomUser() {
+    return userIds[ThreadLocalRandom.current().nextInt(USERS)];
+  }
+
+  private static Credential newCredential(String accessToken) {
+    // Built like the authorization code flow builds them, which a credential
+    // with a refresh token requires
+    return new Credential.Builder(BearerToken.authorizationHeaderAccessMethod())
+        .setTransport(TransportUtil.getHttpTransport())
+        .setJsonFactory(TransportUtil.getJsonFactory())
+        .setTokenServerEncodedUrl("https://accounts.google.com/o/oauth2/token")
+        .setClientAuthentication(new ClientParametersAuthentication("client", "secret"))
+        .build()
+        .setAccessToken(accessToken).setRefreshToken("refresh")
+        .setExpirationTimeMilliseconds(System.currentTimeMillis() + 3600 * 1000);
+  }
+}
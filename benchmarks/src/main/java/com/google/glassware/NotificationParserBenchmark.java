@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.glassware;
+
+import com.google.api.services.mirror.model.Notification;
+import com.google.common.base.Charsets;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing notification payloads the way NotifyServlet does, for the payloads
+ * Mirror actually sends: a location update, a shared photo and a custom menu
+ * action with a long reply.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class NotificationParserBenchmark {
+  private static final String LOCATION = "{\"collection\":\"locations\",\"itemId\":\"latest\","
+      + "\"operation\":\"UPDATE\",\"userToken\":\"108729213437846781635\","
+      + "\"verifyToken\":\"random_hash_to_verify_referer\"}";
+
+  private static final String SHARE = "{\"collection\":\"timeline\","
+      + "\"itemId\":\"3hidvm0xez6r8_dacdb3103b8b604_h8rpllg\",\"operation\":\"INSERT\","
+      + "\"userToken\":\"108729213437846781635\","
+      + "\"verifyToken\":\"random_hash_to_verify_referer\","
+      + "\"userActions\":[{\"type\":\"SHARE\"}]}";
+
+  private static final String CUSTOM = "{\"collection\":\"timeline\","
+      + "\"itemId\":\"3hidvm0xez6r8_dacdb3103b8b604_h8rpllg\",\"operation\":\"UPDATE\","
+      + "\"userToken\":\"108729213437846781635\","
+      + "\"verifyToken\":\"random_hash_to_verify_referer\","
+      + "\"userActions\":[{\"type\":\"CUSTOM\",\"payload\":\"drill\"},"
+      + "{\"type\":\"REPLY\",\"payload\":\"" + repeat("the quick brown fox ", 50) + "\"}]}";
+
+  @Param({"location", "share", "custom"})
+  public String payload;
+
+  private NotificationParser parser;
+  private byte[] bytes;
+
+  @Setup
+  public void setUp() {
+    parser = new NotificationParser(TransportUtil.getJsonFactory(),
+        NotificationParser.DEFAULT_MAX_BYTES);
+    String json = payload.equals("location") ? LOCATION : payload.equals("share") ? SHARE : CUSTOM;
+    bytes = json.getBytes(Charsets.UTF_8);
+  }
+
+  @Benchmark
+  public Notification parse() throws IOException {
+    return parser.parse(new ByteArrayInputStream(bytes));
+  }
+
+  /**
+   * Many container threads parsing with the servlet's one shared parser.
+   */
+  @Benchmark
+  @Threads(8)
+  public Notification parseContended() throws IOException {
+    return parser.parse(new ByteArrayInputStream(bytes));
+  }
+
+  private static String repeat(String s, int times) {
+    StringBuilder builder = new StringBuilder(s.length() * times);
+    for (int i = 0; i < times; i++) {
+      builder.append(s);
+    }
+    return builder.toString();
+  }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.glassware;
+
+import com.google.api.client.auth.oauth2.BearerToken;
+import com.google.api.client.auth.oauth2.ClientParametersAuthentication;
+import com.google.api.client.auth.oauth2.Credential;
+import com.google.api.services.mirror.Mirror;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * The small pieces of work done on every request: building a Mirror service,
+ * building URLs and rendering card HTML.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RequestPathBenchmark {
+  private static final String NOTE = "buy more cat food & \"treats\" <3";
+  private static final String UTTERANCE = "<em class='green'>Purr...</em>";
+
+  private Credential credential;
+  private HttpServletRequest request;
+  private final StringBuilder buffer = new StringBuilder(512);
+
+  @Setup
+  public void setUp() {
+    credential = new Credential.Builder(BearerToken.authorizationHeaderAccessMethod())
+        .setTransport(TransportUtil.getHttpTransport())
+        .setJsonFactory(TransportUtil.getJsonFactory())
+        .setTokenServerEncodedUrl("https://accounts.google.com/o/oauth2/token")
+        .setClientAuthentication(new ClientParametersAuthentication("client", "secret"))
+        .build()
+        .setAccessToken("access").setRefreshToken("refresh")
+        .setExpirationTimeMilliseconds(System.currentTimeMillis() + 3600 * 1000);
+    request = newRequest("http://localhost:8080/main");
+  }
+
+  @Benchmark
+  public Mirror getMirror() {
+    return MirrorClient.getMirror(credential);
+  }
+
+  @Benchmark
+  public String buildUrl() {
+    return WebUtil.buildUrl(request, "/notify");
+  }
+
+  @Benchmark
+  public String renderNoteReply() {
+    return CardTemplates.NOTE_REPLY.render(NOTE, UTTERANCE);
+  }
+
+  /**
+   * Rendering many cards into one reused buffer, as a broadcast would.
+   */
+  @Benchmark
+  public int renderNoteReplyReusingBuffer() {
+    buffer.setLength(0);
+    return CardTemplates.NOTE_REPLY.renderTo(buffer, NOTE, UTTERANCE).length();
+  }
+
+  /**
+   * Returns a request that only knows its URL, which is all buildUrl needs.
+   */
+  private static HttpServletRequest newRequest(final String url) {
+    return (HttpServletRequest) Proxy.newProxyInstance(
+        RequestPathBenchmark.class.getClassLoader(), new Class<?>[] {HttpServletRequest.class},
+        new InvocationHandler() {
+          public Object invoke(Object proxy, Method method, Object[] args) {
+            if (method.getName().equals("getRequestURL")) {
+              return new StringBuffer(url);
+            }
+            throw new UnsupportedOperationException(method.getName());
+          }
+        });
+  }
+}
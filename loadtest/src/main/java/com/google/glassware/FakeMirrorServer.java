@@ -0,0 +1,987 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.glassware;
+
+import com.google.api.client.json.GenericJson;
+import com.google.api.client.json.JsonFactory;
+import com.google.api.client.util.DateTime;
+import com.google.api.services.mirror.model.Attachment;
+import com.google.api.services.mirror.model.Contact;
+import com.google.api.services.mirror.model.Location;
+import com.google.api.services.mirror.model.Subscription;
+import com.google.api.services.mirror.model.TimelineItem;
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.io.BaseEncoding;
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * A stand-in for the Mirror API and Google's OAuth token endpoint, for running
+ * the app against offline, e.g. under load from {@link LoadGenerator}.
+ * <p/>
+ * It implements the parts of the API that {@link MirrorClient} uses: the
+ * timeline with its attachments and media, resumable and multipart uploads,
+ * contacts, subscriptions, locations and batch requests. Everything is kept in
+ * memory. Every API response can be delayed, and a share of them failed, to
+ * see how the app copes when Mirror is slow or flaky.
+ * <p/>
+ * The token endpoint at {@code /token} accepts any authorization code as the
+ * ID of the user logging in, so visiting the app's {@code
+ * /oauth2callback?code=alice} logs in a user called alice. Timeline items
+ * whose IDs start with {@code fixture-photo-} or {@code fixture-note-} spring
+ * into existence when first fetched, as a shared photo or a spoken note, so
+ * notifications about them can be made up freely.
+ * <p/>
+ * Start the app with {@code -Dglassware.mirror.rootUrl=http://localhost:9090/
+ * -Dglassware.oauth.tokenServerUrl=http://localhost:9090/token} to use it.
+ * Call counts are served at {@code /fake/stats}. {@link #main} is tuned with
+ * system properties:
+ * <ul>
+ * <li>{@code glassware.fake.port} - port to listen on</li>
+ * <li>{@code glassware.fake.threads} - threads serving requests</li>
+ * <li>{@code glassware.fake.latencyMillis} - least time an API call takes</li>
+ * <li>{@code glassware.fake.jitterMillis} - most extra time, picked at random</li>
+ * <li>{@code glassware.fake.errorRate} - share of API calls that fail, 0 to 1</li>
+ * <li>{@code glassware.fake.errorStatus} - HTTP status failed calls get</li>
+ * </ul>
+ */
+public class FakeMirrorServer {
+  private static final Logger LOG = Logger.getLogger(FakeMirrorServer.class.getSimpleName());
+
+  private static final String API_PATH = "/mirror/v1/";
+  private static final String UPLOAD_PATH = "/upload/mirror/v1/timeline";
+  private static final String ATTACHMENT_CONTENT_PATH = "/fake/attachments/";
+  private static final String ACCESS_TOKEN_PREFIX = "fake-access-";
+  private static final String REFRESH_TOKEN_PREFIX = "fake-refresh-";
+  private static final String PHOTO_FIXTURE_PREFIX = "fixture-photo-";
+  private static final String NOTE_FIXTURE_PREFIX = "fixture-note-";
+  private static final String CRLF = "\r\n";
+
+  private final HttpServer server;
+  private final ExecutorService executor;
+  private final long latencyMillis;
+  private final long jitterMillis;
+  private final double errorRate;
+  private final int errorStatus;
+  private final JsonFactory jsonFactory = TransportUtil.getJsonFactory();
+
+  private final ConcurrentMap<String, UserData> users = new ConcurrentHashMap<String, UserData>();
+  private final ConcurrentMap<String, Upload> uploads = new ConcurrentHashMap<String, Upload>();
+  private final ConcurrentMap<String, AtomicLong> callCounts =
+      new ConcurrentHashMap<String, AtomicLong>();
+  private final AtomicLong injectedErrors = new AtomicLong();
+  private final AtomicLong nextId = new AtomicLong();
+
+  /**
+   * @param port          port to listen on, or 0 for any free port
+   * @param threads       threads serving requests
+   * @param latencyMillis least time an API call takes
+   * @param jitterMillis  most extra time an API call takes, picked at random
+   * @param errorRate     share of API calls that fail, from 0 to 1
+   * @param errorStatus   HTTP status failed calls get, e.g. 503
+   */
+  public FakeMirrorServer(int port, int threads, long latencyMillis, long jitterMillis,
+      double errorRate, int errorStatus) throws IOException {
+    this.latencyMillis = latencyMillis;
+    this.jitterMillis = jitterMillis;
+    this.errorRate = errorRate;
+    this.errorStatus = errorStatus;
+    this.server = HttpServer.create(new InetSocketAddress(port), 0);
+    this.executor = Executors.newFixedThreadPool(threads,
+        new ThreadFactoryBuilder().setNameFormat("fake-mirror-%d").setDaemon(true).build());
+    server.setExecutor(executor);
+    server.createContext("/", new HttpHandler() {
+      public void handle(HttpExchange exchange) throws IOException {
+        serve(exchange);
+      }
+    });
+  }
+
+  public static void main(String[] args) throws IOException {
+    FakeMirrorServer server = new FakeMirrorServer(
+        Integer.getInteger("glassware.fake.port", 9090),
+        Integer.getInteger("glassware.fake.threads", 64),
+        Long.getLong("glassware.fake.latencyMillis", 50),
+        Long.getLong("glassware.fake.jitterMillis", 50),
+        Double.parseDouble(System.getProperty("glassware.fake.errorRate", "0")),
+        Integer.getInteger("glassware.fake.errorStatus", 503));
+    server.start();
+    System.out.println("Fake Mirror API listening. Start the app with"
+        + " -Dglassware.mirror.rootUrl=" + server.getRootUrl()
+        + " -Dglassware.oauth.tokenServerUrl=" + server.getTokenServerUrl());
+  }
+
+  public void start() {
+    server.start();
+    LOG.info("Fake Mirror API listening at " + getRootUrl());
+  }
+
+  public void stop() {
+    server.stop(0);
+    executor.shutdownNow();
+  }
+
+  /**
+   * Returns the URL to use as the app's {@code glassware.mirror.rootUrl}.
+   */
+  public String getRootUrl() {
+    return "http://localhost:" + server.getAddress().getPort() + "/";
+  }
+
+  /**
+   * Returns the URL to use as the app's {@code glassware.oauth.tokenServerUrl}.
+   */
+  public String getTokenServerUrl() {
+    return getRootUrl() + "token";
+  }
+
+  /**
+   * Returns how many times each API method has been called, e.g. "POST
+   * timeline", counting each part of a batch.
+   */
+  public Map<String, Long> getCallCounts() {
+    Map<String, Long> counts = new TreeMap<String, Long>();
+    for (Map.Entry<String, AtomicLong> entry : callCounts.entrySet()) {
+      counts.put(entry.getKey(), entry.getValue().get());
+    }
+    return counts;
+  }
+
+  public long getInjectedErrorCount() {
+    return injectedErrors.get();
+  }
+
+  private void serve(HttpExchange exchange) throws IOException {
+    try {
+      URI uri = exchange.getRequestURI();
+      Map<String, String> headers = new HashMap<String, String>();
+      for (Map.Entry<String, List<String>> header : exchange.getRequestHeaders().entrySet()) {
+        headers.put(header.getKey().toLowerCase(Locale.US), header.getValue().get(0));
+      }
+      Request request = new Request(exchange.getRequestMethod(), uri.getRawPath(),
+          uri.getRawQuery(), headers,
+          decode(headers, ByteStreams.toByteArray(exchange.getRequestBody())));
+
+      Response response;
+      if (request.path.startsWith("/fake/")) {
+        response = serveFake(request);
+      } else {
+        delay();
+        response = request.path.equals("/batch") ? batch(request) : dispatch(request);
+      }
+      write(exchange, response);
+    } catch (Exception e) {
+      LOG.log(Level.WARNING, "Failed to serve " + exchange.getRequestURI(), e);
+      write(exchange, error(500, "Internal error: " + e));
+    } finally {
+      exchange.close();
+    }
+  }
+
+  private void delay() throws InterruptedException {
+    long millis = latencyMillis
+        + (jitterMillis > 0 ? ThreadLocalRandom.current().nextLong(jitterMillis + 1) : 0);
+    if (millis > 0) {
+      Thread.sleep(millis);
+    }
+  }
+
+  /**
+   * Serves one API call, which may be one part of a batch.
+   */
+  private Response dispatch(Request request) throws IOException {
+    if (request.path.equals("/token")) {
+      return token(request);
+    }
+
+    boolean upload = request.path.startsWith(UPLOAD_PATH);
+    String[] segments = upload ? new String[] {"timeline"}
+        : request.path.startsWith(API_PATH)
+            ? request.path.substring(API_PATH.length()).split("/") : null;
+    if (segments == null) {
+      return error(404, "Not Found");
+    }
+    count(request.method + " " + (upload ? "upload" : segments[0]));
+    if (errorRate > 0 && ThreadLocalRandom.current().nextDouble() < errorRate) {
+      injectedErrors.incrementAndGet();
+      return error(errorStatus, "Injected error");
+    }
+
+    String authorization = request.header("authorization");
+    if (authorization == null || !authorization.startsWith("Bearer " + ACCESS_TOKEN_PREFIX)) {
+      return error(401, "Invalid Credentials");
+    }
+    String userId = authorization.substring(("Bearer " + ACCESS_TOKEN_PREFIX).length());
+    UserData user = getUserData(userId);
+
+    if (upload) {
+      return upload(request, userId, user);
+    } else if (segments[0].equals("timeline")) {
+      return timeline(request, userId, user, segments);
+    } else if (segments[0].equals("contacts")) {
+      return resource(request, user, user.contacts, segments, Contact.class,
+          "mirror#contacts");
+    } else if (segments[0].equals("subscriptions")) {
+      return resource(request, user, user.subscriptions, segments, Subscription.class,
+          "mirror#subscriptionsList");
+    } else if (segments[0].equals("locations") && request.method.equals("GET")) {
+      return locations(segments);
+    }
+    return error(404, "Not Found");
+  }
+
+  private Response serveFake(Request request) {
+    if (request.path.startsWith(ATTACHMENT_CONTENT_PATH)) {
+      // userId/itemId/attachmentId
+      String[] ids = request.path.substring(ATTACHMENT_CONTENT_PATH.length()).split("/");
+      UserData user = ids.length == 3 ? users.get(ids[0]) : null;
+      StoredAttachment attachment = null;
+      if (user != null) {
+        synchronized (user) {
+          attachment = user.attachments.get(ids[1] + "/" + ids[2]);
+        }
+      }
+      return attachment == null ? error(404, "Not Found")
+          : new Response(200, attachment.contentType, attachment.content);
+    } else if (request.path.equals("/fake/stats")) {
+      StringBuilder stats = new StringBuilder();
+      for (Map.Entry<String, Long> entry : getCallCounts().entrySet()) {
+        stats.append(entry.getKey()).append(' ').append(entry.getValue()).append('\n');
+      }
+      stats.append("injected errors ").append(injectedErrors.get()).append('\n');
+      return new Response(200, "text/plain", stats.toString().getBytes(Charsets.UTF_8));
+    }
+    return error(404, "Not Found");
+  }
+
+  private Response token(Request request) throws IOException {
+    Map<String, String> form = parseQuery(new String(request.body, Charsets.UTF_8));
+    String grantType = form.get("grant_type");
+    String userId = null;
+    if ("authorization_code".equals(grantType)) {
+      userId = form.get("code");
+    } else if ("refresh_token".equals(grantType) && form.get("refresh_token") != null
+        && form.get("refresh_token").startsWith(REFRESH_TOKEN_PREFIX)) {
+      userId = form.get("refresh_token").substring(REFRESH_TOKEN_PREFIX.length());
+    }
+    if (userId == null || userId.isEmpty()) {
+      GenericJson error = new GenericJson();
+      error.set("error", "invalid_grant");
+      return json(400, error);
+    }
+
+    long nowSeconds = System.currentTimeMillis() / 1000;
+    GenericJson header = new GenericJson();
+    header.set("alg", "RS256");
+    GenericJson claims = new GenericJson();
+    claims.set("iss", "accounts.google.com");
+    claims.set("aud", form.get("client_id"));
+    claims.set("sub", userId);
+    claims.set("id", userId);
+    claims.set("iat", nowSeconds);
+    claims.set("exp", nowSeconds + 3600);
+    // The app reads the user ID from the ID token without checking its signature
+    BaseEncoding base64 = BaseEncoding.base64Url().omitPadding();
+    String idToken = base64.encode(jsonFactory.toByteArray(header)) + "."
+        + base64.encode(jsonFactory.toByteArray(claims)) + "."
+        + base64.encode("fake".getBytes(Charsets.UTF_8));
+
+    GenericJson token = new GenericJson();
+    token.set("access_token", ACCESS_TOKEN_PREFIX + userId);
+    token.set("token_type", "Bearer");
+    token.set("expires_in", 3600);
+    token.set("refresh_token", REFRESH_TOKEN_PREFIX + userId);
+    token.set("id_token", idToken);
+    return json(200, token);
+  }
+
+  private Response timeline(Request request, String userId, UserData user, String[] segments)
+      throws IOException {
+    if (segments.length >= 3 && segments[2].equals("attachments")) {
+      return attachments(request, user, segments);
+    }
+    if (segments.length == 2) {
+      addFixture(request, userId, user, segments[1]);
+    }
+    return resource(request, user, user.timeline, segments, TimelineItem.class,
+        "mirror#timeline");
+  }
+
+  private Response attachments(Request request, UserData user, String[] segments)
+      throws IOException {
+    String itemId = segments[1];
+    synchronized (user) {
+      TimelineItem item = user.timeline.get(itemId);
+      if (item == null) {
+        return error(404, "Not Found");
+      }
+      List<Attachment> attachments =
+          item.getAttachments() == null ? new ArrayList<Attachment>() : item.getAttachments();
+      if (segments.length == 3 && request.method.equals("GET")) {
+        return json(200, list("mirror#attachmentsList", attachments));
+      }
+      if (segments.length == 4) {
+        for (Attachment attachment : attachments) {
+          if (!attachment.getId().equals(segments[3])) {
+            continue;
+          }
+          if (request.method.equals("GET")) {
+            if ("media".equals(request.param("alt"))) {
+              StoredAttachment stored = user.attachments.get(itemId + "/" + segments[3]);
+              return new Response(200, stored.contentType, stored.content);
+            }
+            return json(200, attachment);
+          } else if (request.method.equals("DELETE")) {
+            attachments.remove(attachment);
+            user.attachments.remove(itemId + "/" + segments[3]);
+            return new Response(204, null, new byte[0]);
+          }
+        }
+      }
+    }
+    return error(404, "Not Found");
+  }
+
+  /**
+   * Lists, inserts, gets, updates, patches and deletes items of a collection.
+   */
+  private <T extends GenericJson> Response resource(Request request, UserData user,
+      Map<String, T> items, String[] segments, Class<T> type, String listKind)
+      throws IOException {
+    synchronized (user) {
+      if (segments.length == 1 && request.method.equals("GET")) {
+        List<T> listed = Lists.newArrayList(items.values());
+        if (type == TimelineItem.class) {
+          // Newest first
+          Collections.reverse(listed);
+        }
+        String maxResults = request.param("maxResults");
+        if (maxResults != null && listed.size() > Integer.parseInt(maxResults)) {
+          listed = listed.subList(0, Integer.parseInt(maxResults));
+        }
+        return json(200, list(listKind, listed));
+      }
+
+      if (segments.length == 1 && request.method.equals("POST")) {
+        T item = parse(request, type);
+        String id = (String) item.get("id");
+        if (id == null && item instanceof Subscription) {
+          id = ((Subscription) item).getCollection();
+        }
+        if (id == null) {
+          id = newId();
+        }
+        item.set("id", id);
+        touch(item, true);
+        // Re-inserting moves an item to the end, like a new one
+        items.remove(id);
+        items.put(id, item);
+        return json(200, item);
+      }
+
+      if (segments.length == 2) {
+        String id = segments[1];
+        T item = items.get(id);
+        if (item == null) {
+          return error(404, "Not Found");
+        }
+        if (request.method.equals("GET")) {
+          return json(200, item);
+        } else if (request.method.equals("PUT")) {
+          T replacement = parse(request, type);
+          replacement.set("id", id);
+          if (item instanceof TimelineItem) {
+            ((TimelineItem) replacement).setAttachments(((TimelineItem) item).getAttachments())
+                .setCreated(((TimelineItem) item).getCreated());
+          }
+          touch(replacement, false);
+          items.put(id, replacement);
+          return json(200, replacement);
+        } else if (request.method.equals("PATCH")) {
+          for (Map.Entry<String, Object> field : parse(request, type).entrySet()) {
+            item.set(field.getKey(), field.getValue());
+          }
+          item.set("id", id);
+          touch(item, false);
+          return json(200, item);
+        } else if (request.method.equals("DELETE")) {
+          items.remove(id);
+          return new Response(204, null, new byte[0]);
+        }
+      }
+    }
+    return error(404, "Not Found");
+  }
+
+  private Response locations(String[] segments) throws IOException {
+    ThreadLocalRandom random = ThreadLocalRandom.current();
+    Location latest = new Location().setId("latest")
+        .setLatitude(37.4219 + random.nextDouble(-0.01, 0.01))
+        .setLongitude(-122.0840 + random.nextDouble(-0.01, 0.01))
+        .setAccuracy(10.0).setTimestamp(new DateTime(System.currentTimeMillis()));
+    if (segments.length == 1) {
+      return json(200, list("mirror#locationsList", Collections.singletonList(latest)));
+    }
+    return segments[1].equals("latest") ? json(200, latest) : error(404, "Not Found");
+  }
+
+  /**
+   * Handles timeline inserts with media: simple and multipart uploads in one
+   * request, and resumable uploads over several.
+   */
+  private Response upload(Request request, String userId, UserData user) throws IOException {
+    String uploadId = request.param("upload_id");
+    if (uploadId != null) {
+      return continueUpload(request, uploadId);
+    }
+
+    String uploadType = request.param("uploadType");
+    if ("resumable".equals(uploadType)) {
+      TimelineItem item =
+          request.body.length == 0 ? new TimelineItem() : parse(request, TimelineItem.class);
+      String id = newId();
+      uploads.put(id, new Upload(userId, request.header("host"), item,
+          request.header("x-upload-content-type")));
+      Response response = new Response(200, null, new byte[0]);
+      response.headers.put("Location", "http://" + request.header("host") + UPLOAD_PATH
+          + "?uploadType=resumable&upload_id=" + id);
+      return response;
+    }
+
+    TimelineItem item;
+    String contentType;
+    byte[] content;
+    if ("multipart".equals(uploadType)) {
+      List<Message> parts =
+          Message.parseMultipart(request.body, boundaryOf(request.header("content-type")));
+      if (parts.size() != 2) {
+        return error(400, "Expected metadata and media parts");
+      }
+      item = jsonFactory.fromInputStream(new ByteArrayInputStream(parts.get(0).body),
+          TimelineItem.class);
+      contentType = parts.get(1).header("content-type");
+      content = parts.get(1).body;
+    } else {
+      item = new TimelineItem();
+      contentType = request.header("content-type");
+      content = request.body;
+    }
+    return json(200, insertWithAttachment(userId, user, request.header("host"), item,
+        contentType, content));
+  }
+
+  private Response continueUpload(Request request, String uploadId) throws IOException {
+    Upload upload = uploads.get(uploadId);
+    if (upload == null) {
+      return error(404, "Not Found");
+    }
+    // "bytes 0-262143/*", "bytes 262144-300000/300001" or "bytes */300001"
+    String range = request.header("content-range");
+    String[] startAndTotal = range == null ? null : range.substring("bytes ".length()).split("/");
+    if (startAndTotal == null || startAndTotal.length != 2) {
+      return error(400, "Bad Content-Range: " + range);
+    }
+    long total = startAndTotal[1].equals("*") ? -1 : Long.parseLong(startAndTotal[1]);
+
+    synchronized (upload) {
+      if (!startAndTotal[0].equals("*")) {
+        long start = Long.parseLong(startAndTotal[0].substring(0, startAndTotal[0].indexOf('-')));
+        // Ignore a resent chunk we already have; the client resumes from Range
+        if (start == upload.content.size()) {
+          upload.content.write(request.body, 0, request.body.length);
+        }
+      }
+      if (total < 0 || upload.content.size() < total) {
+        Response response = new Response(308, null, new byte[0]);
+        if (upload.content.size() > 0) {
+          response.headers.put("Range", "bytes=0-" + (upload.content.size() - 1));
+        }
+        return response;
+      }
+      uploads.remove(uploadId);
+    }
+    UserData user = getUserData(upload.userId);
+    return json(200, insertWithAttachment(upload.userId, user, upload.host, upload.item,
+        upload.contentType, upload.content.toByteArray()));
+  }
+
+  private TimelineItem insertWithAttachment(String userId, UserData user, String host,
+      TimelineItem item, String contentType, byte[] content) {
+    String itemId = newId();
+    String attachmentId = newId();
+    item.setId(itemId).setAttachments(Lists.newArrayList(new Attachment().setId(attachmentId)
+        .setContentType(contentType).setIsProcessingContent(false)
+        .setContentUrl("http://" + host + ATTACHMENT_CONTENT_PATH + userId + "/" + itemId + "/"
+            + attachmentId)));
+    touch(item, true);
+    synchronized (user) {
+      user.timeline.put(itemId, item);
+      user.attachments.put(itemId + "/" + attachmentId,
+          new StoredAttachment(contentType, content));
+    }
+    return item;
+  }
+
+  /**
+   * Creates a fixture item the first time it is asked for.
+   */
+  private void addFixture(Request request, String userId, UserData user, String itemId) {
+    boolean photo = itemId.startsWith(PHOTO_FIXTURE_PREFIX);
+    if (!photo && !itemId.startsWith(NOTE_FIXTURE_PREFIX)) {
+      return;
+    }
+    synchronized (user) {
+      if (user.timeline.containsKey(itemId)) {
+        return;
+      }
+      TimelineItem item = new TimelineItem().setId(itemId);
+      touch(item, true);
+      if (!photo) {
+        user.timeline.put(itemId, item.setText("buy more cat food"));
+        return;
+      }
+      user.timeline.put(itemId, item.setText("Look at this cat").setAttachments(
+          Lists.newArrayList(new Attachment().setId("photo").setContentType("image/jpeg")
+              .setIsProcessingContent(false)
+              .setContentUrl("http://" + request.header("host") + ATTACHMENT_CONTENT_PATH
+                  + userId + "/" + itemId + "/photo"))));
+      user.attachments.put(itemId + "/photo", new StoredAttachment("image/jpeg", new byte[4096]));
+    }
+  }
+
+  /**
+   * Serves a batch by serving each of its parts in turn.
+   */
+  private Response batch(Request request) throws IOException {
+    count("POST batch");
+    String boundary = "batch_" + newId();
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    for (Message part : Message.parseMultipart(request.body,
+        boundaryOf(request.header("content-type")))) {
+      Message http = Message.parse(part.body);
+      // "POST https://www.googleapis.com/mirror/v1/timeline"
+      String[] requestLine = http.headLines.get(0).split(" ");
+      URI uri = URI.create(requestLine[1]);
+      Map<String, String> headers = Message.headersOf(http.headLines.subList(1,
+          http.headLines.size()));
+      if (!headers.containsKey("host")) {
+        headers.put("host", request.header("host"));
+      }
+      Response response = dispatch(new Request(requestLine[0], uri.getRawPath(),
+          uri.getRawQuery(), headers, decode(headers, http.body)));
+
+      String contentId = part.header("content-id");
+      StringBuilder head = new StringBuilder()
+          .append("--").append(boundary).append(CRLF)
+          .append("Content-Type: application/http").append(CRLF);
+      if (contentId != null) {
+        head.append("Content-ID: <response-").append(contentId.replaceAll("[<>]", ""))
+            .append('>').append(CRLF);
+      }
+      head.append(CRLF)
+          .append("HTTP/1.1 ").append(response.status).append(' ')
+          .append(reasonPhrase(response.status)).append(CRLF);
+      if (response.contentType != null) {
+        head.append("Content-Type: ").append(response.contentType).append(CRLF);
+      }
+      head.append("Content-Length: ").append(response.body.length).append(CRLF).append(CRLF);
+      out.write(head.toString().getBytes(Charsets.UTF_8));
+      out.write(response.body);
+      out.write(CRLF.getBytes(Charsets.UTF_8));
+    }
+    out.write(("--" + boundary + "--" + CRLF).getBytes(Charsets.UTF_8));
+    return new Response(200, "multipart/mixed; boundary=" + boundary, out.toByteArray());
+  }
+
+  private UserData getUserData(String userId) {
+    UserData user = users.get(userId);
+    if (user == null) {
+      UserData created = new UserData();
+      user = users.putIfAbsent(userId, created);
+      if (user == null) {
+        user = created;
+      }
+    }
+    return user;
+  }
+
+  private void count(String call) {
+    AtomicLong count = callCounts.get(call);
+    if (count == null) {
+      AtomicLong created = new AtomicLong();
+      count = callCounts.putIfAbsent(call, created);
+      if (count == null) {
+        count = created;
+      }
+    }
+    count.incrementAndGet();
+  }
+
+  private String newId() {
+    // Zero padded, so IDs sort in the order they were handed out
+    return String.format("%012d", nextId.incrementAndGet());
+  }
+
+  private static void touch(GenericJson item, boolean created) {
+    if (item instanceof TimelineItem) {
+      DateTime now = new DateTime(System.currentTimeMillis());
+      if (created) {
+        ((TimelineItem) item).setCreated(now);
+      }
+      ((TimelineItem) item).setUpdated(now).set("kind", "mirror#timelineItem");
+    }
+  }
+
+  private <T> T parse(Request request, Class<T> type) throws IOException {
+    if (request.body.length == 0) {
+      throw new IOException("Expected a JSON body");
+    }
+    return jsonFactory.fromInputStream(new ByteArrayInputStream(request.body), type);
+  }
+
+  /**
+   * Undoes the gzip the client library applies to request bodies.
+   */
+  private static byte[] decode(Map<String, String> headers, byte[] body) throws IOException {
+    if (!"gzip".equalsIgnoreCase(headers.get("content-encoding"))) {
+      return body;
+    }
+    GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(body));
+    try {
+      return ByteStreams.toByteArray(in);
+    } finally {
+      in.close();
+    }
+  }
+
+  private static GenericJson list(String kind, List<?> items) {
+    GenericJson list = new GenericJson();
+    list.set("kind", kind);
+    list.set("items", items);
+    return list;
+  }
+
+  private Response json(int status, Object body) throws IOException {
+    return new Response(status, "application/json; charset=UTF-8", jsonFactory.toByteArray(body));
+  }
+
+  /**
+   * Returns an error in the format Google APIs use, so that the client library
+   * turns it into a {@code GoogleJsonResponseException}.
+   */
+  private Response error(int status, String message) {
+    GenericJson detail = new GenericJson();
+    detail.set("domain", "global");
+    detail.set("reason", reasonPhrase(status));
+    detail.set("message", message);
+    GenericJson error = new GenericJson();
+    error.set("code", status);
+    error.set("message", message);
+    error.set("errors", Collections.singletonList(detail));
+    GenericJson body = new GenericJson();
+    body.set("error", error);
+    try {
+      return json(status, body);
+    } catch (IOException e) {
+      return new Response(status, "text/plain", message.getBytes(Charsets.UTF_8));
+    }
+  }
+
+  private static void write(HttpExchange exchange, Response response) throws IOException {
+    for (Map.Entry<String, String> header : response.headers.entrySet()) {
+      exchange.getResponseHeaders().set(header.getKey(), header.getValue());
+    }
+    if (response.contentType != null) {
+      exchange.getResponseHeaders().set("Content-Type", response.contentType);
+    }
+    if (response.body.length == 0) {
+      exchange.sendResponseHeaders(response.status, -1);
+      return;
+    }
+    exchange.sendResponseHeaders(response.status, response.body.length);
+    exchange.getResponseBody().write(response.body);
+  }
+
+  private static String reasonPhrase(int status) {
+    switch (status) {
+      case 200:
+        return "OK";
+      case 204:
+        return "No Content";
+      case 400:
+        return "Bad Request";
+      case 401:
+        return "Unauthorized";
+      case 404:
+        return "Not Found";
+      case 429:
+        return "Too Many Requests";
+      case 500:
+        return "Internal Server Error";
+      case 503:
+        return "Service Unavailable";
+      default:
+        return "Status " + status;
+    }
+  }
+
+  private static String boundaryOf(String contentType) throws IOException {
+    int start = contentType == null ? -1 : contentType.indexOf("boundary=");
+    if (start < 0) {
+      throw new IOException("No multipart boundary in " + contentType);
+    }
+    String boundary = contentType.substring(start + "boundary=".length());
+    if (boundary.indexOf(';') >= 0) {
+      boundary = boundary.substring(0, boundary.indexOf(';'));
+    }
+    return boundary.replace("\"", "").trim();
+  }
+
+  private static Map<String, String> parseQuery(String query) {
+    Map<String, String> params = new HashMap<String, String>();
+    if (query == null || query.isEmpty()) {
+      return params;
+    }
+    try {
+      for (String pair : query.split("&")) {
+        int equals = pair.indexOf('=');
+        if (equals > 0) {
+          params.put(URLDecoder.decode(pair.substring(0, equals), "UTF-8"),
+              URLDecoder.decode(pair.substring(equals + 1), "UTF-8"));
+        }
+      }
+    } catch (UnsupportedEncodingException e) {
+      throw new AssertionError(e);
+    }
+    return params;
+  }
+
+  /**
+   * Everything the fake knows about one user.
+   */
+  private static final class UserData {
+    final Map<String, TimelineItem> timeline = new LinkedHashMap<String, TimelineItem>();
+    final Map<String, Contact> contacts = new LinkedHashMap<String, Contact>();
+    final Map<String, Subscription> subscriptions = new LinkedHashMap<String, Subscription>();
+    /**
+     * Attachment content, keyed by item ID and attachment ID.
+     */
+    final Map<String, StoredAttachment> attachments = new HashMap<String, StoredAttachment>();
+  }
+
+  private static final class StoredAttachment {
+    final String contentType;
+    final byte[] content;
+
+    StoredAttachment(String contentType, byte[] content) {
+      this.contentType = contentType;
+      this.content = content;
+    }
+  }
+
+  /**
+   * A resumable upload in progress.
+   */
+  private static final class Upload {
+    final String userId;
+    final String host;
+    final TimelineItem item;
+    final String contentType;
+    final ByteArrayOutputStream content = new ByteArrayOutputStream();
+
+    Upload(String userId, String host, TimelineItem item, String contentType) {
+      this.userId = userId;
+      this.host = host;
+      this.item = item;
+      this.contentType = contentType;
+    }
+  }
+
+  private static final class Request {
+    final String method;
+    final String path;
+    final Map<String, String> query;
+    /**
+     * Keyed by lower case header name.
+     */
+    final Map<String, String> headers;
+    final byte[] body;
+
+    Request(String method, String path, String rawQuery, Map<String, String> headers,
+        byte[] body) {
+      this.method = method.toUpperCase(Locale.US);
+      this.path = path;
+      this.query = parseQuery(rawQuery);
+      this.headers = headers;
+      this.body = body;
+    }
+
+    String header(String name) {
+      return headers.get(name);
+    }
+
+    String param(String name) {
+      return query.get(name);
+    }
+  }
+
+  private static final class Response {
+    final int status;
+    final String contentType;
+    final byte[] body;
+    final Map<String, String> headers = new LinkedHashMap<String, String>();
+
+    Response(int status, String contentType, byte[] body) {
+      this.status = status;
+      this.contentType = contentType;
+      this.body = body;
+    }
+  }
+
+  /**
+   * A MIME part or an HTTP message inside a batch: some header lines, a blank
+   * line and a body.
+   */
+  private static final class Message {
+    final List<String> headLines;
+    final byte[] body;
+
+    private Message(List<String> headLines, byte[] body) {
+      this.headLines = headLines;
+      this.body = body;
+    }
+
+    static Message parse(byte[] bytes) {
+      List<String> headLines = new ArrayList<String>();
+      int lineStart = 0;
+      while (lineStart < bytes.length) {
+        int lineEnd = indexOf(bytes, new byte[] {'\n'}, lineStart);
+        if (lineEnd < 0) {
+          lineEnd = bytes.length;
+        }
+        String line = new String(bytes, lineStart, lineEnd - lineStart, Charsets.UTF_8);
+        lineStart = lineEnd + 1;
+        if (line.endsWith("\r")) {
+          line = line.substring(0, line.length() - 1);
+        }
+        if (line.isEmpty()) {
+          break;
+        }
+        headLines.add(line);
+      }
+      return new Message(headLines,
+          Arrays.copyOfRange(bytes, Math.min(lineStart, bytes.length), bytes.length));
+    }
+
+    /**
+     * Splits a multipart body into its parts.
+     */
+    static List<Message> parseMultipart(byte[] body, String boundary) {
+      byte[] delimiter = ("--" + boundary).getBytes(Charsets.US_ASCII);
+      List<Message> parts = new ArrayList<Message>();
+      int delimiterStart = indexOf(body, delimiter, 0);
+      while (delimiterStart >= 0) {
+        int partStart = delimiterStart + delimiter.length;
+        if (partStart + 1 < body.length && body[partStart] == '-' && body[partStart + 1] == '-') {
+          break;
+        }
+        // Skip the rest of the delimiter line
+        int lineEnd = indexOf(body, new byte[] {'\n'}, partStart);
+        if (lineEnd < 0) {
+          break;
+        }
+        partStart = lineEnd + 1;
+        int next = indexOf(body, delimiter, partStart);
+        if (next < 0) {
+          break;
+        }
+        // The line break before a delimiter belongs to the delimiter
+        int partEnd = next;
+        if (partEnd > partStart && body[partEnd - 1] == '\n') {
+          partEnd--;
+          if (partEnd > partStart && body[partEnd - 1] == '\r') {
+            partEnd--;
+          }
+        }
+        parts.add(parse(Arrays.copyOfRange(body, partStart, partEnd)));
+        delimiterStart = next;
+      }
+      return parts;
+    }
+
+    String header(String name) {
+      return headersOf(headLines).get(name);
+    }
+
+    /**
+     * Returns the headers in some header lines, keyed by lower case name.
+     */
+    static Map<String, String> headersOf(List<String> lines) {
+      Map<String, String> headers = new HashMap<String, String>();
+      for (String line : lines) {
+        int colon = line.indexOf(':');
+        if (colon > 0) {
+          headers.put(line.substring(0, colon).trim().toLowerCase(Locale.US),
+              line.substring(colon + 1).trim());
+        }
+      }
+      return headers;
+    }
+
+    private static int indexOf(byte[] bytes, byte[] target, int from) {
+      outer:
+      for (int i = from; i <= bytes.length - target.length; i++) {
+        for (int j = 0; j < target.length; j++) {
+          if (bytes[i + j] != target[j]) {
+            continue outer;
+          }
+        }
+        return i;
+      }
+      return -1;
+    }
+  }
+}
@@ -0,0 +1,403 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.glassware;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Sends the app notification traffic and dashboard operations at fixed rates,
+ * and reports throughput and latency percentiles for each kind of request.
+ * Run the app against a {@link FakeMirrorServer} so that it can log users in
+ * and has something to call.
+ * <p/>
+ * Requests go out on schedule whether or not earlier ones have finished, and
+ * each one's latency is measured from when it was due rather than when it was
+ * sent. A server that stalls is charged for every request that queued up
+ * behind the stall instead of having them quietly delayed.
+ * <p/>
+ * Notifications are a mix of location updates, shared photos and spoken notes
+ * about fixture items the fake server makes up, plus a share of redeliveries
+ * of notifications already sent, as Mirror does. Tuned with system properties:
+ * <ul>
+ * <li>{@code glassware.load.appUrl} - where the app is running</li>
+ * <li>{@code glassware.load.users} - users to log in and spread load across</li>
+ * <li>{@code glassware.load.notifyPerSecond} - notifications sent to /notify</li>
+ * <li>{@code glassware.load.mainPerSecond} - dashboard loads and operations</li>
+ * <li>{@code glassware.load.durationSeconds} - how long to send for</li>
+ * <li>{@code glassware.load.threads} - requests in flight at once, at most</li>
+ * <li>{@code glassware.load.duplicatePercent} - share of notifications resent</li>
+ * <li>{@code glassware.load.reportSeconds} - how often to print progress</li>
+ * </ul>
+ */
+public class LoadGenerator {
+  private static final Logger LOG = Logger.getLogger(LoadGenerator.class.getSimpleName());
+
+  private static final String[] NOTIFICATIONS = {"location", "share", "launch"};
+  private static final String[] MAIN_OPERATIONS = {"dashboard", "insertItem",
+      "insertItemWithAction", "insertPaginatedItem", "insertContact"};
+
+  /**
+   * Notifications remembered for resending as redeliveries.
+   */
+  private static final int RECENT_NOTIFICATIONS = 1024;
+
+  private final String appUrl;
+  private final int duplicatePercent;
+  private final ExecutorService workers;
+  private final List<String> userIds = new ArrayList<String>();
+  private final List<String> sessionCookies = new ArrayList<String>();
+  private final Map<String, Stats> stats = new LinkedHashMap<String, Stats>();
+  private final AtomicLong nextItem = new AtomicLong();
+  private final AtomicLong sentNotifications = new AtomicLong();
+  private final AtomicReferenceArray<byte[]> recentNotifications =
+      new AtomicReferenceArray<byte[]>(RECENT_NOTIFICATIONS);
+  private long startNanos;
+
+  /**
+   * @param appUrl           the app's base URL, e.g. http://localhost:8080
+   * @param threads          requests in flight at once, at most
+   * @param duplicatePercent share of notifications that are resent copies
+   */
+  public LoadGenerator(String appUrl, int threads, int duplicatePercent) {
+    this.appUrl = appUrl.endsWith("/") ? appUrl.substring(0, appUrl.length() - 1) : appUrl;
+    this.duplicatePercent = duplicatePercent;
+    this.workers = Executors.newFixedThreadPool(threads,
+        new ThreadFactoryBuilder().setNameFormat("load-%d").build());
+    for (String notification : NOTIFICATIONS) {
+      stats.put("notify " + notification, new Stats("notify " + notification));
+    }
+    stats.put("notify duplicate", new Stats("notify duplicate"));
+    for (String operation : MAIN_OPERATIONS) {
+      stats.put("main " + operation, new Stats("main " + operation));
+    }
+  }
+
+  public static void main(String[] args) throws Exception {
+    LoadGenerator generator = new LoadGenerator(
+        System.getProperty("glassware.load.appUrl", "http://localhost:8080"),
+        Integer.getInteger("glassware.load.threads", 64),
+        Integer.getInteger("glassware.load.duplicatePercent", 5));
+    try {
+      generator.logIn(Integer.getInteger("glassware.load.users", 100));
+      generator.run(
+          Double.parseDouble(System.getProperty("glassware.load.notifyPerSecond", "100")),
+          Double.parseDouble(System.getProperty("glassware.load.mainPerSecond", "10")),
+          Integer.getInteger("glassware.load.durationSeconds", 60),
+          Integer.getInteger("glassware.load.reportSeconds", 10));
+      generator.report(System.out);
+    } finally {
+      generator.workers.shutdownNow();
+    }
+  }
+
+  /**
+   * Logs in users through the app's OAuth callback, which a fake token server
+   * accepts any code for, and keeps their session cookies.
+   */
+  public void logIn(int users) throws IOException, InterruptedException {
+    List<Future<String>> logins = new ArrayList<Future<String>>();
+    for (int i = 0; i < users; i++) {
+      final String userId = "loadtest-user-" + i;
+      userIds.add(userId);
+      logins.add(workers.submit(new Callable<String>() {
+        public String call() throws IOException {
+          return logIn(userId);
+        }
+      }));
+    }
+    for (Future<String> login : logins) {
+      try {
+        sessionCookies.add(login.get());
+      } catch (ExecutionException e) {
+        throw new IOException("Could not log in; is the app using a fake token server?",
+            e.getCause());
+      }
+    }
+    LOG.info("Logged in " + users + " users");
+  }
+
+  /**
+   * Sends requests at the given rates for the given time, then waits for the
+   * last of them to finish.
+   */
+  public void run(double notifyPerSecond, double mainPerSecond, int durationSeconds,
+      int reportSeconds) throws InterruptedException {
+    startNanos = System.nanoTime();
+    long endNanos = startNanos + TimeUnit.SECONDS.toNanos(durationSeconds);
+    ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor(
+        new ThreadFactoryBuilder().setNameFormat("load-report").setDaemon(true).build());
+    reporter.scheduleAtFixedRate(new Runnable() {
+      public void run() {
+        report(System.out);
+      }
+    }, reportSeconds, reportSeconds, TimeUnit.SECONDS);
+
+    Thread notifyPacer = pace("notify-pacer", notifyPerSecond, endNanos, new DueTask() {
+      public void run(long dueNanos) {
+        sendNotification(dueNanos);
+      }
+    });
+    Thread mainPacer = pace("main-pacer", mainPerSecond, endNanos, new DueTask() {
+      public void run(long dueNanos) {
+        sendMainOperation(dueNanos);
+      }
+    });
+    notifyPacer.join();
+    mainPacer.join();
+    workers.shutdown();
+    workers.awaitTermination(1, TimeUnit.MINUTES);
+    reporter.shutdownNow();
+  }
+
+  /**
+   * Prints each kind of request's count, errors, rate and latency percentiles
+   * so far.
+   */
+  public void report(PrintStream out) {
+    double elapsedSeconds = Math.max(1e-9, (System.nanoTime() - startNanos) / 1e9);
+    out.println(String.format("%-28s %8s %7s %8s %9s %9s %9s %9s", "request", "count", "errors",
+        "per sec", "p50 ms", "p90 ms", "p99 ms", "p99.9 ms"));
+    for (Stats stat : stats.values()) {
+      long count = stat.latency.getCount();
+      if (count == 0) {
+        continue;
+      }
+      out.println(String.format("%-28s %8d %7d %8.1f %9.1f %9.1f %9.1f %9.1f", stat.name, count,
+          stat.errors.get(), count / elapsedSeconds,
+          stat.latency.getQuantileSeconds(0.5) * 1000,
+          stat.latency.getQuantileSeconds(0.9) * 1000,
+          stat.latency.getQuantileSeconds(0.99) * 1000,
+          stat.latency.getQuantileSeconds(0.999) * 1000));
+    }
+    out.println();
+  }
+
+  /**
+   * Something to do at a set time.
+   */
+  private interface DueTask {
+    void run(long dueNanos);
+  }
+
+  /**
+   * Starts a thread that hands {@code task} to the workers {@code perSecond}
+   * times a second until {@code endNanos}.
+   */
+  private Thread pace(String name, final double perSecond, final long endNanos,
+      final DueTask task) {
+    Thread pacer = new Thread(new Runnable() {
+      public void run() {
+        if (perSecond <= 0) {
+          return;
+        }
+        double intervalNanos = 1e9 / perSecond;
+        for (long i = 0; ; i++) {
+          final long dueNanos = startNanos + (long) (i * intervalNanos);
+          if (dueNanos >= endNanos) {
+            return;
+          }
+          long waitNanos;
+          while ((waitNanos = dueNanos - System.nanoTime()) > 0) {
+            LockSupport.parkNanos(waitNanos);
+          }
+          workers.execute(new Runnable() {
+            public void run() {
+              task.run(dueNanos);
+            }
+          });
+        }
+      }
+    }, name);
+    pacer.start();
+    return pacer;
+  }
+
+  private void sendNotification(long dueNanos) {
+    ThreadLocalRandom random = ThreadLocalRandom.current();
+    long sent = sentNotifications.getAndIncrement();
+    if (sent > 0 && random.nextInt(100) < duplicatePercent) {
+      byte[] duplicate = recentNotifications.get(
+          random.nextInt((int) Math.min(sent, RECENT_NOTIFICATIONS)));
+      if (duplicate != null) {
+        send("notify duplicate", "/notify", null, duplicate, dueNanos);
+        return;
+      }
+    }
+
+    String type = NOTIFICATIONS[random.nextInt(NOTIFICATIONS.length)];
+    String userId = userIds.get(random.nextInt(userIds.size()));
+    String notification;
+    if (type.equals("location")) {
+      notification = "{\"collection\":\"locations\",\"itemId\":\"latest\","
+          + "\"operation\":\"UPDATE\",\"userToken\":\"" + userId + "\"}";
+    } else {
+      String itemId = (type.equals("share") ? "fixture-photo-" : "fixture-note-")
+          + nextItem.incrementAndGet();
+      notification = "{\"collection\":\"timeline\",\"itemId\":\"" + itemId + "\","
+          + "\"operation\":\"INSERT\",\"userToken\":\"" + userId + "\","
+          + "\"userActions\":[{\"type\":\"" + type.toUpperCase() + "\"}]}";
+    }
+    byte[] body = notification.getBytes(Charsets.UTF_8);
+    recentNotifications.set((int) (sent % RECENT_NOTIFICATIONS), body);
+    send("notify " + type, "/notify", null, body, dueNanos);
+  }
+
+  private void sendMainOperation(long dueNanos) {
+    ThreadLocalRandom random = ThreadLocalRandom.current();
+    String operation = MAIN_OPERATIONS[random.nextInt(MAIN_OPERATIONS.length)];
+    String cookie = sessionCookies.get(random.nextInt(sessionCookies.size()));
+    if (operation.equals("dashboard")) {
+      send("main dashboard", "/", cookie, null, dueNanos);
+      return;
+    }
+    String form = "operation=" + operation + "&message=Hello+from+the+load+generator";
+    if (operation.equals("insertContact")) {
+      form += "&id=loadtest&name=Load+Test&iconUrl="
+          + encode(appUrl + "/static/images/chipotle-tube-640x360.jpg");
+    }
+    send("main " + operation, "/main", cookie, form.getBytes(Charsets.UTF_8), dueNanos);
+  }
+
+  /**
+   * Makes one request and records how long it took from when it was due. GETs
+   * if {@code body} is null; otherwise POSTs it as JSON to /notify or as a
+   * form anywhere else.
+   */
+  private void send(String name, String path, String cookie, byte[] body, long dueNanos) {
+    Stats stat = stats.get(name);
+    boolean succeeded = false;
+    try {
+      HttpURLConnection connection = open(path);
+      if (cookie != null) {
+        connection.setRequestProperty("Cookie", cookie);
+      }
+      if (body != null) {
+        connection.setRequestMethod("POST");
+        connection.setRequestProperty("Content-Type", path.equals("/notify")
+            ? "application/json" : "application/x-www-form-urlencoded");
+        connection.setDoOutput(true);
+        connection.setFixedLengthStreamingMode(body.length);
+        OutputStream out = connection.getOutputStream();
+        try {
+          out.write(body);
+        } finally {
+          out.close();
+        }
+      }
+      int status = connection.getResponseCode();
+      drain(connection);
+      // The dashboard's forms redirect back to it when they're done
+      succeeded = status < 400;
+    } catch (IOException e) {
+      LOG.log(Level.FINE, name + " failed", e);
+    } finally {
+      stat.latency.recordSince(dueNanos);
+      if (!succeeded) {
+        stat.errors.incrementAndGet();
+      }
+    }
+  }
+
+  private String logIn(String userId) throws IOException {
+    HttpURLConnection connection = open("/oauth2callback?code=" + encode(userId));
+    int status = connection.getResponseCode();
+    drain(connection);
+    if (status / 100 != 3) {
+      throw new IOException("Logging in " + userId + " got HTTP " + status);
+    }
+    for (Map.Entry<String, List<String>> header : connection.getHeaderFields().entrySet()) {
+      if (!"Set-Cookie".equalsIgnoreCase(header.getKey())) {
+        continue;
+      }
+      for (String cookie : header.getValue()) {
+        if (cookie.startsWith("JSESSIONID=")) {
+          return cookie.indexOf(';') < 0 ? cookie : cookie.substring(0, cookie.indexOf(';'));
+        }
+      }
+    }
+    throw new IOException("No session cookie after logging in " + userId);
+  }
+
+  private HttpURLConnection open(String path) throws IOException {
+    HttpURLConnection connection = (HttpURLConnection) new URL(appUrl + path).openConnection();
+    connection.setInstanceFollowRedirects(false);
+    connection.setConnectTimeout(10 * 1000);
+    connection.setReadTimeout(60 * 1000);
+    return connection;
+  }
+
+  /**
+   * Reads the response to the end so that the connection can be reused.
+   */
+  private static void drain(HttpURLConnection connection) throws IOException {
+    InputStream in = connection.getResponseCode() < 400
+        ? connection.getInputStream() : connection.getErrorStream();
+    if (in != null) {
+      try {
+        ByteStreams.toByteArray(in);
+      } finally {
+        in.close();
+      }
+    }
+  }
+
+  private static String encode(String value) {
+    try {
+      return URLEncoder.encode(value, "UTF-8");
+    } catch (UnsupportedEncodingException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  private static final class Stats {
+    final String name;
+    final Metrics.Histogram latency;
+    final AtomicLong errors = new AtomicLong();
+
+    Stats(String name) {
+      this.name = name;
+      this.latency = Metrics.histogram("glassware_load_request_seconds", "request", name);
+    }
+  }
+}
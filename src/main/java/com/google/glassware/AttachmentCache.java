@@ -0,0 +1,217 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.glassware;
+
+import com.google.api.client.auth.oauth2.Credential;
+import com.google.api.services.mirror.model.Attachment;
+import com.google.common.base.Charsets;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.cache.Weigher;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteStreams;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * A two-tier cache of timeline item attachments: attachment metadata is kept in
+ * memory, and attachment bodies are kept in files. Both tiers are bounded and
+ * evict the least recently used entries. Attachments never change once
+ * created, so entries never need to be revalidated.
+ * <p/>
+ * Entries are keyed by user as well as by timeline item and attachment, so one
+ * user can never be served another user's attachment from the cache.
+ */
+public class AttachmentCache {
+  private static final Logger LOG = Logger.getLogger(AttachmentCache.class.getSimpleName());
+
+  private final File directory;
+  private final Cache<String, Attachment> metadata;
+  private final Cache<String, File> bodies;
+
+  /**
+   * @param directory       where attachment bodies are stored; cleared on start
+   * @param maxMetadata     attachment metadata entries kept in memory
+   * @param maxBodyBytes    total size of attachment bodies kept on disk
+   */
+  public AttachmentCache(File directory, int maxMetadata, long maxBodyBytes) throws IOException {
+    this.directory = directory;
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("Could not create attachment cache directory " + directory);
+    }
+    File[] leftovers = directory.listFiles();
+    if (leftovers != null) {
+      for (File file : leftovers) {
+        file.delete();
+      }
+    }
+
+    metadata = CacheBuilder.newBuilder().maximumSize(maxMetadata)
+        .expireAfterAccess(1, TimeUnit.DAYS).build();
+    bodies = CacheBuilder.newBuilder()
+        .maximumWeight(Math.max(1, maxBodyBytes / 1024))
+        .weigher(new Weigher<String, File>() {
+          public int weigh(String key, File file) {
+            return (int) Math.min(Integer.MAX_VALUE, (file.length() + 1023) / 1024);
+          }
+        })
+        .removalListener(new RemovalListener<String, File>() {
+          public void onRemoval(RemovalNotification<String, File> notification) {
+            if (!notification.getValue().delete()) {
+              LOG.fine("Could not delete evicted attachment " + notification.getValue());
+            }
+          }
+        }).build();
+  }
+
+  /**
+   * Returns an attachment, downloading its metadata and body only if they
+   * aren't already cached. Concurrent requests for the same attachment share a
+   * single download.
+   */
+  public CachedAttachment get(String userId, final Credential credential,
+      final String timelineItemId, final String attachmentId) throws IOException {
+    final String key = Hashing.sha1()
+        .hashString(userId + '/' + timelineItemId + '/' + attachmentId, Charsets.UTF_8).toString();
+    try {
+      final Attachment attachment = metadata.get(key, new Callable<Attachment>() {
+        public Attachment call() throws IOException {
+          return MirrorClient.getAttachmentMetadata(credential, timelineItemId, attachmentId);
+        }
+      });
+      File body = bodies.get(key, new Callable<File>() {
+        public File call() throws IOException {
+          return download(key, credential, attachment);
+        }
+      });
+      return new CachedAttachment(key, attachment.getContentType(), body);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      throw new IOException("Could not load attachment " + attachmentId, e.getCause());
+    }
+  }
+
+  /**
+   * Drops an attachment, e.g. because its file disappeared from under us.
+   */
+  public void invalidate(CachedAttachment attachment) {
+    bodies.invalidate(attachment.key);
+  }
+
+  private File download(String key, Credential credential, Attachment attachment)
+      throws IOException {
+    File tmp = File.createTempFile(key, ".tmp", directory);
+    try {
+      InputStream in = MirrorClient.getAttachmentInputStream(credential, attachment);
+      OutputStream out = new FileOutputStream(tmp);
+      try {
+        ByteStreams.copy(in, out);
+      } finally {
+        in.close();
+        out.close();
+      }
+      File body = new File(directory, key);
+      if (!tmp.renameTo(body)) {
+        throw new IOException("Could not move attachment into " + body);
+      }
+      return body;
+    } finally {
+      tmp.delete();
+    }
+  }
+
+  /**
+   * A cached attachment body and the metadata needed to serve it.
+   */
+  public static final class CachedAttachment {
+    private final String key;
+    private final String contentType;
+    private final File file;
+
+    CachedAttachment(String key, String contentType, File file) {
+      this.key = key;
+      this.contentType = contentType;
+      this.file = file;
+    }
+
+    public String getContentType() {
+      return contentType;
+    }
+
+    /**
+     * @throws FileNotFoundException if the body has since been evicted
+     */
+    public long getLength() throws FileNotFoundException {
+      if (!file.isFile()) {
+        throw new FileNotFoundException(file.getPath());
+      }
+      return file.length();
+    }
+
+    /**
+     * Returns a strong entity tag. Attachments are immutable, so the key is
+     * enough.
+     */
+    public String getETag() {
+      return "\"" + key + "\"";
+    }
+
+    /**
+     * Copies part of the body to a stream, a buffer at a time, without reading
+     * it all into memory. A servlet response is a stream rather than a socket
+     * channel, so the OS can't send the file directly; this copies through a
+     * small heap buffer like any other stream copy.
+     *
+     * @throws FileNotFoundException if the body has since been evicted
+     * @throws EOFException if the body is shorter than the range asked for
+     */
+    public void transferTo(long offset, long count, OutputStream out) throws IOException {
+      RandomAccessFile in = new RandomAccessFile(file, "r");
+      try {
+        FileChannel channel = in.getChannel();
+        WritableByteChannel target = Channels.newChannel(out);
+        long end = offset + count;
+        while (offset < end) {
+          long transferred = channel.transferTo(offset, end - offset, target);
+          if (transferred <= 0) {
+            throw new EOFException(file + " ended at byte " + offset + " of " + end);
+          }
+          offset += transferred;
+        }
+      } finally {
+        in.close();
+      }
+    }
+  }
+}
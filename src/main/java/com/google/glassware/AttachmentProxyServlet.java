@@ -16,10 +16,11 @@
 package com.google.glassware;
 
 import com.google.api.client.auth.oauth2.Credential;
-import com.google.common.io.ByteStreams;
 
+import java.io.File;
+import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.InputStream;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Logger;
 
 import javax.servlet.ServletException;
@@ -30,34 +31,197 @@ import javax.servlet.http.HttpServletResponse;
 /**
  * Allows logged in users to view their timeline item attachments by proxying
  * their app engine session to their OAuth session.
+ * <p/>
+ * Attachments are cached locally (see {@link AttachmentCache}) and served with
+ * long-lived cache headers, entity tags and support for single byte ranges.
  *
  * @author Jenny Murphy - http://google.com/+JennyMurphy
  */
 public class AttachmentProxyServlet extends HttpServlet {
   private static final Logger LOG = Logger.getLogger(AttachmentProxyServlet.class.getSimpleName());
 
+  private static final int CACHE_MAX_METADATA =
+      Integer.getInteger("glassware.attachmentCache.maxMetadata", 10000);
+  private static final long CACHE_MAX_BYTES =
+      Long.getLong("glassware.attachmentCache.maxBytes", 512L * 1024 * 1024);
+  private static final String CACHE_DIR = System.getProperty("glassware.attachmentCache.dir",
+      new File(System.getProperty("java.io.tmpdir"), "glassware-attachments").getPath());
+
+  private static final Metrics.Histogram REQUEST_LATENCY =
+      Metrics.histogram("glassware_attachment_request_seconds");
+  private static final AtomicLong BYTES_SERVED =
+      Metrics.counter("glassware_attachment_served_bytes_total");
+  private static final AtomicLong NOT_MODIFIED =
+      Metrics.counter("glassware_attachment_not_modified_total");
+
+  private AttachmentCache cache;
+
+  @Override
+  public void init() throws ServletException {
+    try {
+      cache = new AttachmentCache(new File(CACHE_DIR), CACHE_MAX_METADATA, CACHE_MAX_BYTES);
+    } catch (IOException e) {
+      throw new ServletException("Could not create attachment cache", e);
+    }
+  }
+
   @Override
   protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws ServletException,
       IOException {
+    long startNanos = System.nanoTime();
+    try {
+      serveAttachment(req, resp);
+    } finally {
+      REQUEST_LATENCY.recordSince(startNanos);
+    }
+  }
+
+  private void serveAttachment(HttpServletRequest req, HttpServletResponse resp)
+      throws IOException {
     String attachmentId = req.getParameter("attachment");
     String timelineItemId = req.getParameter("timelineItem");
     if (attachmentId == null || timelineItemId == null) {
       LOG.warning("attempted to load image attachment with missing IDs");
       resp.sendError(400);
+      return;
     }
     // identify the viewing user
+    String userId = AuthUtil.getUserId(req);
     Credential credential = AuthUtil.getCredential(req);
 
-    // Get the content type
-    String contentType =
-        MirrorClient.getAttachmentContentType(credential, timelineItemId, attachmentId);
+    AttachmentCache.CachedAttachment attachment =
+        cache.get(userId, credential, timelineItemId, attachmentId);
+    try {
+      sendAttachment(req, resp, attachment);
+    } catch (FileNotFoundException e) {
+      // Evicted between lookup and read. Nothing has been written yet, so
+      // fetch it again and start over, once.
+      cache.invalidate(attachment);
+      if (resp.isCommitted()) {
+        throw e;
+      }
+      resp.reset();
+      sendAttachment(req, resp, cache.get(userId, credential, timelineItemId, attachmentId));
+    }
+  }
+
+  private void sendAttachment(HttpServletRequest req, HttpServletResponse resp,
+      AttachmentCache.CachedAttachment attachment) throws IOException {
+    long length = attachment.getLength();
+
+    // Attachments never change, so browsers may keep them as long as they like
+    resp.setHeader("ETag", attachment.getETag());
+    resp.setHeader("Cache-Control", "private, max-age=31536000");
+    resp.setHeader("Accept-Ranges", "bytes");
+    if (matchesETag(req.getHeader("If-None-Match"), attachment.getETag())) {
+      resp.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+      NOT_MODIFIED.incrementAndGet();
+      return;
+    }
 
-    // Get the attachment bytes
-    InputStream attachmentInputStream =
-        MirrorClient.getAttachmentInputStream(credential, timelineItemId, attachmentId);
+    long start = 0;
+    long end = length - 1;
+    String range = req.getHeader("Range");
+    String ifRange = req.getHeader("If-Range");
+    if (range != null && (ifRange == null || matchesETag(ifRange, attachment.getETag()))) {
+      long[] bounds = parseRange(range, length);
+      if (bounds == null) {
+        resp.setHeader("Content-Range", "bytes */" + length);
+        resp.sendError(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+        return;
+      }
+      if (bounds.length == 2) {
+        start = bounds[0];
+        end = bounds[1];
+        resp.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+        resp.setHeader("Content-Range", "bytes " + start + "-" + end + "/" + length);
+      }
+    }
 
     // Write it out
-    resp.setContentType(contentType);
-    ByteStreams.copy(attachmentInputStream, resp.getOutputStream());
+    resp.setContentType(attachment.getContentType());
+    resp.setHeader("Content-Length", Long.toString(end - start + 1));
+    attachment.transferTo(start, end - start + 1, resp.getOutputStream());
+    BYTES_SERVED.addAndGet(end - start + 1);
+  }
+
+  /**
+   * Returns true if a conditional header lists the entity tag (or "*").
+   */
+  private static boolean matchesETag(String header, String etag) {
+    if (header == null) {
+      return false;
+    }
+    for (String candidate : header.split(",")) {
+      String trimmed = candidate.trim();
+      if (trimmed.equals("*") || trimmed.equals(etag)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Parses a Range header. As RFC 7233 asks, a header that isn't a valid
+   * single byte range (e.g. {@code bytes=5-3}) is ignored rather than refused.
+   *
+   * @return the first and last byte to serve, an empty array if the whole body
+   *         should be served (e.g. for multiple or invalid ranges), or null if
+   *         the range cannot be satisfied
+   */
+  static long[] parseRange(String header, long length) {
+    if (!header.startsWith("bytes=") || header.indexOf(',') >= 0) {
+      return new long[0];
+    }
+    String spec = header.substring("bytes=".length()).trim();
+    int dash = spec.indexOf('-');
+    if (dash < 0) {
+      return new long[0];
+    }
+    long start;
+    long end;
+    if (dash == 0) {
+      // The last N bytes
+      long suffix = parsePosition(spec.substring(1));
+      if (suffix < 0) {
+        return new long[0];
+      }
+      if (suffix == 0) {
+        return null;
+      }
+      start = Math.max(0, length - suffix);
+      end = length - 1;
+    } else {
+      start = parsePosition(spec.substring(0, dash));
+      end = dash == spec.length() - 1 ? Long.MAX_VALUE : parsePosition(spec.substring(dash + 1));
+      if (start < 0 || end < start) {
+        return new long[0];
+      }
+      end = Math.min(end, length - 1);
+    }
+    if (start > end || start >= length) {
+      return null;
+    }
+    return new long[] {start, end};
+  }
+
+  /**
+   * Returns a byte position written as plain digits, or -1 if it isn't one.
+   */
+  private static long parsePosition(String text) {
+    if (text.isEmpty()) {
+      return -1;
+    }
+    for (int i = 0; i < text.length(); i++) {
+      if (text.charAt(i) < '0' || text.charAt(i) > '9') {
+        return -1;
+      }
+    }
+    try {
+      return Long.parseLong(text);
+    } catch (NumberFormatException e) {
+      // Past the end of any attachment
+      return Long.MAX_VALUE;
+    }
   }
 }
@@ -15,8 +15,11 @@
  */
 package com.google.glassware;
 
+import com.google.api.client.auth.oauth2.Credential;
+
 import java.io.IOException;
 import java.util.logging.Logger;
+import java.util.regex.Pattern;
 
 import javax.servlet.Filter;
 import javax.servlet.FilterChain;
@@ -36,6 +39,13 @@ import javax.servlet.http.HttpServletResponse;
 public class AuthFilter implements Filter {
   private static final Logger LOG = Logger.getLogger(AuthFilter.class.getSimpleName());
 
+  /**
+   * Static content, the middle of the auth flow, the notify servlet and
+   * metrics, which checks for itself who may see it.
+   */
+  private static final Pattern SKIP_PATHS =
+      Pattern.compile("/static.*|/oauth2callback|/notify|/metrics");
+
   public void doFilter(ServletRequest request, ServletResponse response, FilterChain filterChain)
       throws IOException, ServletException {
     if (response instanceof HttpServletResponse && request instanceof HttpServletRequest) {
@@ -43,18 +53,16 @@ public class AuthFilter implements Filter {
       HttpServletResponse httpResponse = (HttpServletResponse) response;
 
       // skip auth for static content, middle of auth flow, notify servlet
-      if (httpRequest.getRequestURI().startsWith("/static") ||
-          httpRequest.getRequestURI().equals("/oauth2callback") ||
-          httpRequest.getRequestURI().equals("/notify")) {
-        LOG.info("Skipping auth check during auth flow");
+      if (SKIP_PATHS.matcher(httpRequest.getRequestURI()).matches()) {
+        LOG.fine("Skipping auth check during auth flow");
         filterChain.doFilter(request, response);
         return;
       }
 
       LOG.fine("Checking to see if anyone is logged in");
-      if (AuthUtil.getUserId(httpRequest) == null
-          || AuthUtil.getCredential(AuthUtil.getUserId(httpRequest)) == null
-          || AuthUtil.getCredential(AuthUtil.getUserId(httpRequest)).getAccessToken() == null) {
+      // Resolved once here; downstream servlets get the same credential back
+      Credential credential = AuthUtil.getCredential(httpRequest);
+      if (credential == null || credential.getAccessToken() == null) {
         // redirect to auth flow
         httpResponse.sendRedirect(WebUtil.buildUrl(httpRequest, "/oauth2callback"));
         return;
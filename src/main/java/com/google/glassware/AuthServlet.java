@@ -49,7 +49,7 @@ public class AuthServlet extends HttpServlet {
     if (req.getParameter("code") != null) {
       LOG.info("Got a code. Attempting to exchange for access token.");
 
-      AuthorizationCodeFlow flow = AuthUtil.newAuthorizationCodeFlow();
+      AuthorizationCodeFlow flow = AuthUtil.getAuthorizationCodeFlow();
       TokenResponse tokenResponse =
           flow.newTokenRequest(req.getParameter("code"))
               .setRedirectUri(WebUtil.buildUrl(req, "/oauth2callback")).execute();
@@ -63,18 +63,19 @@ public class AuthServlet extends HttpServlet {
       AuthUtil.setUserId(req, userId);
       flow.createAndStoreCredential(tokenResponse, userId);
 
-      // The dance is done. Do our bootstrapping stuff for this user
-      NewUserBootstrapper.bootstrapNewUser(req, userId);
-
       // Redirect back to index
       res.sendRedirect(WebUtil.buildUrl(req, "/"));
+
+      // The dance is done. Do our bootstrapping stuff for this user in the
+      // background, so the dashboard doesn't wait for it
+      NewUserBootstrapper.bootstrapNewUser(req, userId);
       return;
     }
 
     // Else, we have a new flow. Initiate a new flow.
     LOG.info("No auth context found. Kicking off a new auth flow.");
 
-    AuthorizationCodeFlow flow = AuthUtil.newAuthorizationCodeFlow();
+    AuthorizationCodeFlow flow = AuthUtil.getAuthorizationCodeFlow();
     GenericUrl url =
         flow.newAuthorizationUrl().setRedirectUri(WebUtil.buildUrl(req, "/oauth2callback"));
     url.set("approval_prompt", "force");
@@ -17,17 +17,18 @@ package com.google.glassware;
 
 import com.google.api.client.auth.oauth2.AuthorizationCodeFlow;
 import com.google.api.client.auth.oauth2.Credential;
+import com.google.api.client.auth.oauth2.TokenResponseException;
 import com.google.api.client.googleapis.auth.oauth2.GoogleAuthorizationCodeFlow;
-import com.google.api.client.http.javanet.NetHttpTransport;
-
-import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.client.http.GenericUrl;
 
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.Serializable;
 import java.net.URISyntaxException;
 import java.net.URL;
 import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Properties;
 import java.util.logging.Logger;
@@ -42,16 +43,75 @@ import javax.servlet.http.HttpSession;
  * @author Jenny Murphy - http://google.com/+JennyMurphy
  */
 public class AuthUtil {
-  public static ListableMemoryCredentialStore store = new ListableMemoryCredentialStore();
+  public static ListableMemoryCredentialStore store = newCredentialStore();
   public static final String GLASS_SCOPE = "https://www.googleapis.com/auth/glass.timeline "
       + "https://www.googleapis.com/auth/glass.location "
       + "https://www.googleapis.com/auth/userinfo.profile";
   private static final Logger LOG = Logger.getLogger(AuthUtil.class.getSimpleName());
 
+  private static final String REQUEST_USER_ID = AuthUtil.class.getName() + ".userId";
+  private static final String REQUEST_CREDENTIAL = AuthUtil.class.getName() + ".credential";
+  private static final String SESSION_CREDENTIAL = "credential";
+
   /**
-   * Creates and returns a new {@link AuthorizationCodeFlow} for this app.
+   * Keeps credentials in memory only, unless the {@code
+   * glassware.credentialStore.dir} system property names a directory to
+   * persist them in.
+   */
+  private static ListableMemoryCredentialStore newCredentialStore() {
+    String directory = System.getProperty("glassware.credentialStore.dir");
+    if (directory == null) {
+      return new ListableMemoryCredentialStore();
+    }
+    try {
+      return new DurableCredentialStore(new File(directory),
+          Long.getLong("glassware.credentialStore.syncIntervalMillis", 100),
+          Long.getLong("glassware.credentialStore.compactionBytes", 64 * 1024 * 1024));
+    } catch (IOException e) {
+      throw new IllegalStateException("Could not open credential store in " + directory, e);
+    }
+  }
+
+  /**
+   * How often to check oauth.properties for changes, in milliseconds.
+   */
+  private static final long OAUTH_PROPERTIES_CHECK_INTERVAL_MILLIS =
+      Long.getLong("glassware.oauth.checkIntervalMillis", 5 * 1000);
+
+  private static volatile AuthorizationCodeFlow flow;
+  private static volatile long nextFlowCheckMillis;
+  private static long flowLastModified;
+
+  /**
+   * Returns the shared {@link AuthorizationCodeFlow} for this app. The flow is
+   * built once and rebuilt only when oauth.properties changes on disk, which
+   * is checked at most every few seconds.
    */
-  public static AuthorizationCodeFlow newAuthorizationCodeFlow() throws IOException {
+  public static AuthorizationCodeFlow getAuthorizationCodeFlow() throws IOException {
+    AuthorizationCodeFlow current = flow;
+    if (current != null && System.currentTimeMillis() < nextFlowCheckMillis) {
+      return current;
+    }
+    synchronized (AuthUtil.class) {
+      long now = System.currentTimeMillis();
+      if (flow != null && now < nextFlowCheckMillis) {
+        return flow;
+      }
+      File propertiesFile = getOAuthPropertiesFile();
+      long lastModified = propertiesFile.lastModified();
+      if (flow == null || lastModified != flowLastModified) {
+        if (flow != null) {
+          LOG.info("oauth.properties changed. Rebuilding authorization code flow.");
+        }
+        flow = newAuthorizationCodeFlow(propertiesFile);
+        flowLastModified = lastModified;
+      }
+      nextFlowCheckMillis = now + OAUTH_PROPERTIES_CHECK_INTERVAL_MILLIS;
+      return flow;
+    }
+  }
+
+  private static File getOAuthPropertiesFile() {
     URL resource = AuthUtil.class.getResource("/oauth.properties");
     File propertiesFile = new File("./src/main/resources/oauth.properties");
     try {
@@ -61,16 +121,35 @@ public class AuthUtil {
       LOG.info(e.toString());
       LOG.info("Using default source path.");
     }
+    return propertiesFile;
+  }
+
+  /**
+   * Creates and returns a new {@link AuthorizationCodeFlow} for this app.
+   */
+  private static AuthorizationCodeFlow newAuthorizationCodeFlow(File propertiesFile)
+      throws IOException {
     FileInputStream authPropertiesStream = new FileInputStream(propertiesFile);
     Properties authProperties = new Properties();
-    authProperties.load(authPropertiesStream);
+    try {
+      authProperties.load(authPropertiesStream);
+    } finally {
+      authPropertiesStream.close();
+    }
 
     String clientId = authProperties.getProperty("client_id");
     String clientSecret = authProperties.getProperty("client_secret");
 
-    return new GoogleAuthorizationCodeFlow.Builder(new NetHttpTransport(), new JacksonFactory(),
-        clientId, clientSecret, Collections.singleton(GLASS_SCOPE)).setAccessType("offline")
-        .setCredentialStore(store).build();
+    GoogleAuthorizationCodeFlow.Builder builder = new GoogleAuthorizationCodeFlow.Builder(
+        TransportUtil.getHttpTransport(), TransportUtil.getJsonFactory(), clientId, clientSecret,
+        Collections.singleton(GLASS_SCOPE)).setAccessType("offline")
+        .setCredentialStore(new TimedCredentialStore(store));
+    // Lets a load test log users in against a stand-in token server
+    String tokenServerUrl = System.getProperty("glassware.oauth.tokenServerUrl");
+    if (tokenServerUrl != null) {
+      builder.setTokenServerUrl(new GenericUrl(tokenServerUrl));
+    }
+    return builder.build();
   }
 
   /**
@@ -79,37 +158,159 @@ public class AuthUtil {
    * @return string user id or null if no one is logged in
    */
   public static String getUserId(HttpServletRequest request) {
-    HttpSession session = request.getSession();
-    return (String) session.getAttribute("userId");
+    String userId = (String) request.getAttribute(REQUEST_USER_ID);
+    if (userId == null) {
+      HttpSession session = request.getSession(false);
+      userId = session == null ? null : (String) session.getAttribute("userId");
+      if (userId != null) {
+        request.setAttribute(REQUEST_USER_ID, userId);
+      }
+    }
+    return userId;
   }
 
   public static void setUserId(HttpServletRequest request, String userId) {
     HttpSession session = request.getSession();
     session.setAttribute("userId", userId);
+    session.removeAttribute(SESSION_CREDENTIAL);
+    request.setAttribute(REQUEST_USER_ID, userId);
+    request.removeAttribute(REQUEST_CREDENTIAL);
   }
 
   public static void clearUserId(HttpServletRequest request) throws IOException {
     // Delete the credential in the credential store
     String userId = getUserId(request);
-    store.delete(userId, getCredential(userId));
+    if (userId != null) {
+      store.delete(userId, getCredential(userId));
+    }
 
     // Remove their ID from the local session
     request.getSession().removeAttribute("userId");
+    request.getSession().removeAttribute(SESSION_CREDENTIAL);
+    request.removeAttribute(REQUEST_USER_ID);
+    request.removeAttribute(REQUEST_CREDENTIAL);
   }
 
+  /**
+   * Loads a user's credential, refreshing its access token first if it is
+   * about to expire. Concurrent callers for the same user share one refresh.
+   * If the refresh shows that the user revoked access, their credential is
+   * deleted and they are treated as logged out.
+   *
+   * @return the credential, or null if the user has none
+   */
   public static Credential getCredential(String userId) throws IOException {
     if (userId == null) {
       return null;
-    } else {
-      return AuthUtil.newAuthorizationCodeFlow().loadCredential(userId);
     }
+    Credential credential = getAuthorizationCodeFlow().loadCredential(userId);
+    if (credential != null && TokenRefresher.needsRefresh(credential)) {
+      try {
+        TokenRefresher.refresh(userId);
+      } catch (TokenResponseException e) {
+        if (e.getDetails() == null || e.getDetails().getError() == null
+            || !e.getDetails().getError().contains("invalid_grant")) {
+          throw e;
+        }
+        LOG.warning("User " + userId + " revoked access. Deleting their credential.");
+        store.delete(userId, credential);
+        NewUserBootstrapper.forget(userId);
+        return null;
+      }
+      credential = getAuthorizationCodeFlow().loadCredential(userId);
+    }
+    return credential;
   }
 
+  /**
+   * Returns the current user's credential, or null if no one is logged in.
+   * <p/>
+   * The credential is resolved once per request and kept on it, so filters,
+   * servlets and JSPs can all call this cheaply. Across requests the session
+   * keeps a reference to it that stays valid until the stored credential
+   * changes or is about to expire; checking that is a single lookup in the
+   * credential store.
+   */
   public static Credential getCredential(HttpServletRequest req) throws IOException {
-    return AuthUtil.newAuthorizationCodeFlow().loadCredential(getUserId(req));
+    Credential credential = (Credential) req.getAttribute(REQUEST_CREDENTIAL);
+    if (credential != null) {
+      return credential;
+    }
+    String userId = getUserId(req);
+    if (userId == null) {
+      return null;
+    }
+
+    HttpSession session = req.getSession(false);
+    SessionCredential reference =
+        session == null ? null : (SessionCredential) session.getAttribute(SESSION_CREDENTIAL);
+    if (reference != null) {
+      credential = reference.get(userId);
+    }
+    if (credential == null) {
+      // Take the snapshot first so that a concurrent change can only make the
+      // reference look stale, never make a stale credential look current
+      ListableMemoryCredentialStore.MemoryPersistedCredential snapshot = store.get(userId);
+      credential = getCredential(userId);
+      if (credential != null && session != null) {
+        session.setAttribute(SESSION_CREDENTIAL,
+            new SessionCredential(userId, snapshot, credential));
+      }
+    }
+    if (credential != null) {
+      req.setAttribute(REQUEST_CREDENTIAL, credential);
+    }
+    return credential;
   }
 
   public static List<String> getAllUserIds() {
     return store.listAllUsers();
   }
+
+  /**
+   * Iterates over every user ID without copying them all first.
+   */
+  public static Iterator<String> iterateAllUserIds() {
+    return store.iterateUsers();
+  }
+
+  /**
+   * Returns up to {@code limit} user IDs, in sorted order, that come after
+   * {@code afterUserId} (or from the start if it is null).
+   */
+  public static List<String> listUserIds(String afterUserId, int limit) {
+    return store.listUsers(afterUserId, limit);
+  }
+
+  /**
+   * A session's reference to its user's loaded credential, along with the
+   * stored snapshot it was loaded from. Only the user ID survives session
+   * serialization; the credential is simply loaded again afterwards.
+   */
+  private static final class SessionCredential implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final String userId;
+    private final transient ListableMemoryCredentialStore.MemoryPersistedCredential snapshot;
+    private final transient Credential credential;
+
+    SessionCredential(String userId,
+        ListableMemoryCredentialStore.MemoryPersistedCredential snapshot, Credential credential) {
+      this.userId = userId;
+      this.snapshot = snapshot;
+      this.credential = credential;
+    }
+
+    /**
+     * Returns the credential if it still belongs to the user and nothing has
+     * been stored for them since, or null if it has to be loaded again.
+     */
+    Credential get(String currentUserId) {
+      if (credential == null || snapshot == null || !userId.equals(currentUserId)
+          || store.get(currentUserId) != snapshot || TokenRefresher.needsRefresh(credential)) {
+        return null;
+      }
+      return credential;
+    }
+  }
 }
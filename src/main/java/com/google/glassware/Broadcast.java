@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.glassware;
+
+import com.google.api.services.mirror.model.TimelineItem;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The progress of one timeline item being sent to many users. Safe to read
+ * from any thread while the broadcast is running.
+ */
+public class Broadcast {
+  private final String id;
+  private final TimelineItem item;
+  private final long startTimeMillis = System.currentTimeMillis();
+  private volatile long endTimeMillis;
+
+  private final AtomicInteger queued = new AtomicInteger();
+  private final AtomicInteger succeeded = new AtomicInteger();
+  private final Map<String, String> failures = new ConcurrentHashMap<String, String>();
+
+  Broadcast(String id, TimelineItem item) {
+    this.id = id;
+    this.item = item;
+  }
+
+  public String getId() {
+    return id;
+  }
+
+  public TimelineItem getItem() {
+    return item;
+  }
+
+  public long getStartTimeMillis() {
+    return startTimeMillis;
+  }
+
+  public boolean isComplete() {
+    return endTimeMillis != 0;
+  }
+
+  /**
+   * Returns the number of users this broadcast has been sent to so far.
+   */
+  public int getQueuedCount() {
+    return queued.get();
+  }
+
+  public int getSucceededCount() {
+    return succeeded.get();
+  }
+
+  public int getFailedCount() {
+    return failures.size();
+  }
+
+  /**
+   * Returns the users the item could not be delivered to.
+   */
+  public List<String> getFailedUserIds() {
+    return new ArrayList<String>(failures.keySet());
+  }
+
+  /**
+   * Returns why delivery to a user failed, or null if it didn't.
+   */
+  public String getFailureReason(String userId) {
+    return failures.get(userId);
+  }
+
+  void recordQueued(int count) {
+    queued.addAndGet(count);
+  }
+
+  void recordSuccess() {
+    succeeded.incrementAndGet();
+  }
+
+  void recordFailure(String userId, String reason) {
+    failures.put(userId, reason);
+  }
+
+  void complete() {
+    endTimeMillis = System.currentTimeMillis();
+  }
+
+  @Override
+  public String toString() {
+    long elapsed = (isComplete() ? endTimeMillis : System.currentTimeMillis()) - startTimeMillis;
+    return "Broadcast " + id + (isComplete() ? " finished" : " running") + ": "
+        + getSucceededCount() + " of " + getQueuedCount() + " sent, " + getFailedCount()
+        + " failed, " + (elapsed / 1000) + "s elapsed";
+  }
+}
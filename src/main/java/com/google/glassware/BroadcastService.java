@@ -0,0 +1,257 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.glassware;
+
+import com.google.api.client.auth.oauth2.Credential;
+import com.google.api.client.googleapis.batch.BatchRequest;
+import com.google.api.client.googleapis.batch.json.JsonBatchCallback;
+import com.google.api.client.googleapis.json.GoogleJsonError;
+import com.google.api.client.http.HttpHeaders;
+import com.google.api.services.mirror.model.TimelineItem;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Sends a timeline item to many users. Recipients are split into batch
+ * requests of a limited size, and a limited number of batches are in flight at
+ * once. Broadcasts run in the background, a limited number at a time, with
+ * the rest waiting their turn; their progress can be looked up by ID.
+ * <p/>
+ * Tuning is done with system properties:
+ * <ul>
+ * <li>{@code glassware.broadcast.batchSize} - users per batch request</li>
+ * <li>{@code glassware.broadcast.concurrency} - batch requests in flight</li>
+ * <li>{@code glassware.broadcast.maxRunning} - broadcasts sent at once</li>
+ * </ul>
+ */
+public class BroadcastService {
+  private static final Logger LOG = Logger.getLogger(BroadcastService.class.getSimpleName());
+
+  private static final int BATCH_SIZE = Integer.getInteger("glassware.broadcast.batchSize", 50);
+  private static final int CONCURRENCY = Integer.getInteger("glassware.broadcast.concurrency", 4);
+  private static final int MAX_RUNNING = Integer.getInteger("glassware.broadcast.maxRunning", 2);
+  private static final int MAX_RETAINED_BROADCASTS = 20;
+
+  private static final ExecutorService batchExecutor =
+      Threads.newIoPool("broadcast-%d", CONCURRENCY);
+  private static final ExecutorService coordinatorExecutor =
+      Threads.newIoPool("broadcast-coordinator-%d", MAX_RUNNING);
+
+  private static final AtomicLong nextId = new AtomicLong(System.currentTimeMillis());
+
+  /**
+   * Recent broadcasts, oldest first.
+   */
+  private static final Map<String, Broadcast> broadcasts =
+      new LinkedHashMap<String, Broadcast>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Broadcast> eldest) {
+          return size() > MAX_RETAINED_BROADCASTS;
+        }
+      };
+
+  /**
+   * Starts sending an item to every user with stored credentials.
+   */
+  public static Broadcast broadcastToAllUsers(TimelineItem item) {
+    return start(item, AuthUtil.iterateAllUserIds());
+  }
+
+  /**
+   * Starts sending a broadcast's item again to the users it failed for.
+   *
+   * @return the new broadcast, or null if there was nothing to retry
+   */
+  public static Broadcast retryFailures(String broadcastId) {
+    Broadcast original = getBroadcast(broadcastId);
+    if (original == null || !original.isComplete() || original.getFailedCount() == 0) {
+      return null;
+    }
+    return start(original.getItem(), original.getFailedUserIds().iterator());
+  }
+
+  /**
+   * Returns a recent broadcast, or null if there is no such broadcast.
+   */
+  public static Broadcast getBroadcast(String broadcastId) {
+    synchronized (broadcasts) {
+      return broadcasts.get(broadcastId);
+    }
+  }
+
+  /**
+   * Returns recent broadcasts, oldest first.
+   */
+  public static List<Broadcast> getRecentBroadcasts() {
+    synchronized (broadcasts) {
+      return new ArrayList<Broadcast>(broadcasts.values());
+    }
+  }
+
+  public static void shutdown() {
+    coordinatorExecutor.shutdownNow();
+    batchExecutor.shutdownNow();
+  }
+
+  private static Broadcast start(TimelineItem item, final Iterator<String> recipients) {
+    final Broadcast broadcast = new Broadcast(Long.toString(nextId.incrementAndGet(), 36), item);
+    synchronized (broadcasts) {
+      broadcasts.put(broadcast.getId(), broadcast);
+    }
+    coordinatorExecutor.execute(new Runnable() {
+      public void run() {
+        runBroadcast(broadcast, recipients);
+      }
+    });
+    LOG.info("Started broadcast " + broadcast.getId());
+    return broadcast;
+  }
+
+  /**
+   * Walks the recipients one batch at a time, never letting more than {@code
+   * CONCURRENCY} batches be outstanding, then waits for the last ones.
+   */
+  private static void runBroadcast(final Broadcast broadcast, Iterator<String> recipients) {
+    final Semaphore inFlight = new Semaphore(CONCURRENCY);
+    try {
+      while (recipients.hasNext()) {
+        final List<String> batch = new ArrayList<String>(BATCH_SIZE);
+        while (recipients.hasNext() && batch.size() < BATCH_SIZE) {
+          batch.add(recipients.next());
+        }
+        inFlight.acquire();
+        broadcast.recordQueued(batch.size());
+        try {
+          batchExecutor.execute(new Runnable() {
+            public void run() {
+              try {
+                sendBatch(broadcast, batch);
+              } finally {
+                inFlight.release();
+              }
+            }
+          });
+        } catch (RejectedExecutionException e) {
+          inFlight.release();
+          for (String userId : batch) {
+            broadcast.recordFailure(userId, "Shutting down");
+          }
+          break;
+        }
+      }
+      inFlight.acquire(CONCURRENCY);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    broadcast.complete();
+    LOG.info(broadcast.toString());
+  }
+
+  /**
+   * Sends a batch and records an outcome for every user in it. Users whose
+   * outcome isn't known when the batch ends, however it ends, have failed.
+   */
+  private static void sendBatch(Broadcast broadcast, List<String> userIds) {
+    Set<String> pending =
+        Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    pending.addAll(userIds);
+    String reason = "Not sent";
+    try {
+      BatchRequest batch = MirrorClient.getMirror(null).batch();
+      for (String userId : userIds) {
+        Credential credential;
+        try {
+          credential = AuthUtil.getCredential(userId);
+        } catch (IOException e) {
+          pending.remove(userId);
+          broadcast.recordFailure(userId, e.toString());
+          continue;
+        } catch (RuntimeException e) {
+          LOG.log(Level.WARNING, "Could not load credential for " + userId, e);
+          pending.remove(userId);
+          broadcast.recordFailure(userId, e.toString());
+          continue;
+        }
+        if (credential == null) {
+          pending.remove(userId);
+          broadcast.recordFailure(userId, "No credential");
+          continue;
+        }
+        MirrorClient.getBatchMirror(credential, RateLimiter.Priority.BACKGROUND,
+            RateLimiter.Mode.WAIT).timeline().insert(broadcast.getItem())
+            .queue(batch, new BroadcastCallback(broadcast, userId, pending));
+      }
+      if (batch.size() > 0) {
+        batch.execute();
+      }
+    } catch (IOException e) {
+      LOG.log(Level.WARNING, "Broadcast " + broadcast.getId() + " batch failed", e);
+      reason = e.toString();
+    } catch (RuntimeException e) {
+      LOG.log(Level.SEVERE, "Broadcast " + broadcast.getId() + " batch failed", e);
+      reason = e.toString();
+    } finally {
+      for (String userId : pending) {
+        broadcast.recordFailure(userId, reason);
+      }
+    }
+  }
+
+  /**
+   * Records the outcome of one user's insert.
+   * <p/>
+   * For more information, see
+   * https://code.google.com/p/google-api-java-client/wiki/Batch.
+   */
+  private static final class BroadcastCallback extends JsonBatchCallback<TimelineItem> {
+    private final Broadcast broadcast;
+    private final String userId;
+    private final Set<String> pending;
+
+    BroadcastCallback(Broadcast broadcast, String userId, Set<String> pending) {
+      this.broadcast = broadcast;
+      this.userId = userId;
+      this.pending = pending;
+    }
+
+    @Override
+    public void onSuccess(TimelineItem item, HttpHeaders headers) throws IOException {
+      pending.remove(userId);
+      broadcast.recordSuccess();
+    }
+
+    @Override
+    public void onFailure(GoogleJsonError error, HttpHeaders headers) throws IOException {
+      pending.remove(userId);
+      LOG.info("Failed to insert item for " + userId + ": " + error.getMessage());
+      broadcast.recordFailure(userId, error.getMessage());
+    }
+  }
+}
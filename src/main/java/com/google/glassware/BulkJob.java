@@ -0,0 +1,42 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.glassware;
+
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * Work that {@link BulkJobService} does once for every user.
+ * <p/>
+ * A job runs for many users at once, so it must be thread-safe. It must also
+ * be safe to run twice for the same user: a job resumed after a crash repeats
+ * the part of the chunk it was working on.
+ */
+public interface BulkJob {
+  /**
+   * Returns the name the job is started, listed and checkpointed under.
+   */
+  String getName();
+
+  /**
+   * Does the job's work for one user.
+   *
+   * @param userId     the user to work on
+   * @param parameters what the job was started with
+   * @throws IOException if the work failed for this user; the job moves on
+   */
+  void process(String userId, Map<String, String> parameters) throws IOException;
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.glassware;
+
+import com.google.common.collect.ImmutableMap;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The progress of one {@link BulkJob} across all users. Safe to read from any
+ * thread while the job is running.
+ */
+public class BulkJobRun {
+  /**
+   * Failure reasons are kept for this many users at most; the rest are only
+   * counted.
+   */
+  private static final int MAX_RECORDED_FAILURES = 100;
+
+  private final String id;
+  private final String jobName;
+  private final Map<String, String> parameters;
+  private final long startTimeMillis;
+  private volatile long endTimeMillis;
+  private volatile String checkpoint;
+
+  private final AtomicInteger succeeded;
+  private final AtomicInteger failed;
+  private final Map<String, String> failures = new ConcurrentHashMap<String, String>();
+
+  BulkJobRun(String id, String jobName, Map<String, String> parameters, long startTimeMillis,
+      String checkpoint, int succeeded, int failed) {
+    this.id = id;
+    this.jobName = jobName;
+    this.parameters = ImmutableMap.copyOf(parameters);
+    this.startTimeMillis = startTimeMillis;
+    this.checkpoint = checkpoint;
+    this.succeeded = new AtomicInteger(succeeded);
+    this.failed = new AtomicInteger(failed);
+  }
+
+  public String getId() {
+    return id;
+  }
+
+  public String getJobName() {
+    return jobName;
+  }
+
+  public Map<String, String> getParameters() {
+    return parameters;
+  }
+
+  public long getStartTimeMillis() {
+    return startTimeMillis;
+  }
+
+  public boolean isComplete() {
+    return endTimeMillis != 0;
+  }
+
+  /**
+   * Returns the last user of the last finished chunk, or null if no chunk
+   * has finished. The job resumes with the users after it.
+   */
+  public String getCheckpoint() {
+    return checkpoint;
+  }
+
+  public int getSucceededCount() {
+    return succeeded.get();
+  }
+
+  public int getFailedCount() {
+    return failed.get();
+  }
+
+  /**
+   * Returns some of the users the job failed for.
+   */
+  public List<String> getFailedUserIds() {
+    return new ArrayList<String>(failures.keySet());
+  }
+
+  /**
+   * Returns why the job failed for a user, or null if it didn't or the
+   * reason wasn't kept.
+   */
+  public String getFailureReason(String userId) {
+    return failures.get(userId);
+  }
+
+  void recordSuccess() {
+    succeeded.incrementAndGet();
+  }
+
+  void recordFailure(String userId, String reason) {
+    failed.incrementAndGet();
+    if (failures.size() < MAX_RECORDED_FAILURES) {
+      failures.put(userId, reason);
+    }
+  }
+
+  void setCheckpoint(String userId) {
+    checkpoint = userId;
+  }
+
+  void complete() {
+    endTimeMillis = System.currentTimeMillis();
+  }
+
+  @Override
+  public String toString() {
+    long elapsed = (isComplete() ? endTimeMillis : System.currentTimeMillis()) - startTimeMillis;
+    return "Job " + id + " (" + jobName + ")" + (isComplete() ? " finished" : " running")
+        + ": " + getSucceededCount() + " users done, " + getFailedCount() + " failed, "
+        + (elapsed / 1000) + "s elapsed";
+  }
+}
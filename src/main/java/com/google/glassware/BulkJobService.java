@@ -0,0 +1,368 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.glassware;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs {@link BulkJob}s across every user with stored credentials. Users are
+ * walked in sorted order a chunk at a time, with a limited number of users
+ * worked on at once. When a chunk is finished its last user is written to a
+ * checkpoint file, so a job interrupted by a restart picks up from there the
+ * next time the app starts, repeating at most one chunk. A job runs at most
+ * once at a time, and a limited number of jobs run at once, with the rest
+ * waiting their turn.
+ * <p/>
+ * Tuning is done with system properties:
+ * <ul>
+ * <li>{@code glassware.jobs.dir} - where checkpoints are kept; defaults to a
+ * "jobs" directory in {@code glassware.credentialStore.dir}, or the temporary
+ * directory</li>
+ * <li>{@code glassware.jobs.chunkSize} - users per checkpoint</li>
+ * <li>{@code glassware.jobs.parallelism} - users worked on at once</li>
+ * <li>{@code glassware.jobs.maxRunning} - jobs run at once</li>
+ * </ul>
+ */
+public class BulkJobService {
+  private static final Logger LOG = Logger.getLogger(BulkJobService.class.getSimpleName());
+
+  private static final int CHUNK_SIZE = Integer.getInteger("glassware.jobs.chunkSize", 100);
+  private static final int PARALLELISM = Integer.getInteger("glassware.jobs.parallelism", 8);
+  private static final int MAX_RUNNING = Integer.getInteger("glassware.jobs.maxRunning", 2);
+  private static final int MAX_RETAINED_RUNS = 20;
+
+  private static final File DIRECTORY = jobsDirectory();
+  private static final String CHECKPOINT_SUFFIX = ".checkpoint";
+  private static final String PARAMETER_PREFIX = "param.";
+
+  private static final ConcurrentMap<String, BulkJob> jobs =
+      new ConcurrentHashMap<String, BulkJob>();
+
+  /**
+   * The run of each job that is running or waiting its turn, by job name.
+   */
+  private static final ConcurrentMap<String, BulkJobRun> running =
+      new ConcurrentHashMap<String, BulkJobRun>();
+
+  private static final ExecutorService workerExecutor =
+      Threads.newIoPool("bulk-job-%d", PARALLELISM);
+  private static final ExecutorService coordinatorExecutor =
+      Threads.newIoPool("bulk-job-coordinator-%d", MAX_RUNNING);
+
+  private static final AtomicLong nextId = new AtomicLong(System.currentTimeMillis());
+
+  /**
+   * Recent runs, oldest first.
+   */
+  private static final Map<String, BulkJobRun> runs =
+      new LinkedHashMap<String, BulkJobRun>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, BulkJobRun> eldest) {
+          return size() > MAX_RETAINED_RUNS;
+        }
+      };
+
+  static {
+    register(new SubscriptionReconciler());
+  }
+
+  /**
+   * Makes a job available to {@link #start} under its name.
+   */
+  public static void register(BulkJob job) {
+    jobs.put(job.getName(), job);
+  }
+
+  /**
+   * Starts running a job for every user. If the job is already running, that
+   * run is returned instead.
+   *
+   * @throws IllegalArgumentException if no job has that name
+   */
+  public static BulkJobRun start(String jobName, Map<String, String> parameters) {
+    BulkJob job = jobs.get(jobName);
+    if (job == null) {
+      throw new IllegalArgumentException("No such job: " + jobName);
+    }
+    BulkJobRun run = new BulkJobRun(Long.toString(nextId.incrementAndGet(), 36), jobName,
+        parameters, System.currentTimeMillis(), null, 0, 0);
+    BulkJobRun existing = running.putIfAbsent(jobName, run);
+    if (existing != null) {
+      LOG.info("Job " + jobName + " is already running as " + existing.getId());
+      return existing;
+    }
+    writeCheckpoint(run);
+    submit(job, run);
+    LOG.info("Started job " + run.getId() + " (" + jobName + ")");
+    return run;
+  }
+
+  /**
+   * Starts again every job whose checkpoint was left behind by a previous
+   * instance that stopped before the job finished.
+   */
+  public static void resumeUnfinished() {
+    File[] files = DIRECTORY.listFiles();
+    if (files == null) {
+      return;
+    }
+    for (File file : files) {
+      if (!file.getName().endsWith(CHECKPOINT_SUFFIX)) {
+        continue;
+      }
+      BulkJobRun run = readCheckpoint(file);
+      if (run == null) {
+        continue;
+      }
+      BulkJob job = jobs.get(run.getJobName());
+      if (job == null) {
+        LOG.warning("Not resuming job " + run.getId() + ": no job named " + run.getJobName());
+        continue;
+      }
+      BulkJobRun existing = running.putIfAbsent(run.getJobName(), run);
+      if (existing != null) {
+        LOG.warning("Not resuming job " + run.getId() + ": " + run.getJobName()
+            + " is already running as " + existing.getId());
+        continue;
+      }
+      submit(job, run);
+      LOG.info("Resumed job " + run.getId() + " (" + run.getJobName() + ") after "
+          + run.getCheckpoint());
+    }
+  }
+
+  /**
+   * Returns a recent run, or null if there is no such run.
+   */
+  public static BulkJobRun getRun(String runId) {
+    synchronized (runs) {
+      return runs.get(runId);
+    }
+  }
+
+  /**
+   * Returns recent runs, oldest first.
+   */
+  public static List<BulkJobRun> getRecentRuns() {
+    synchronized (runs) {
+      return new ArrayList<BulkJobRun>(runs.values());
+    }
+  }
+
+  /**
+   * Stops every running job. Their checkpoints are kept so that they resume
+   * when the app next starts.
+   */
+  public static void shutdown() {
+    coordinatorExecutor.shutdownNow();
+    workerExecutor.shutdownNow();
+  }
+
+  private static void submit(final BulkJob job, final BulkJobRun run) {
+    synchronized (runs) {
+      runs.put(run.getId(), run);
+    }
+    coordinatorExecutor.execute(new Runnable() {
+      public void run() {
+        try {
+          runJob(job, run);
+        } finally {
+          running.remove(run.getJobName(), run);
+        }
+      }
+    });
+  }
+
+  /**
+   * Works through the users after the run's checkpoint one chunk at a time,
+   * never letting more than {@code PARALLELISM} users be outstanding, and
+   * checkpoints after each chunk. An interrupted run is left unfinished, with
+   * its checkpoint file in place.
+   */
+  private static void runJob(final BulkJob job, final BulkJobRun run) {
+    final Semaphore inFlight = new Semaphore(PARALLELISM);
+    try {
+      List<String> chunk;
+      while (!(chunk = AuthUtil.listUserIds(run.getCheckpoint(), CHUNK_SIZE)).isEmpty()) {
+        final CountDownLatch done = new CountDownLatch(chunk.size());
+        for (final String userId : chunk) {
+          inFlight.acquire();
+          try {
+            workerExecutor.execute(new Runnable() {
+              public void run() {
+                try {
+                  processUser(job, run, userId);
+                } finally {
+                  inFlight.release();
+                  done.countDown();
+                }
+              }
+            });
+          } catch (RejectedExecutionException e) {
+            inFlight.release();
+            LOG.info("Job " + run.getId() + " stopped at " + run.getCheckpoint());
+            return;
+          }
+        }
+        done.await();
+        run.setCheckpoint(chunk.get(chunk.size() - 1));
+        writeCheckpoint(run);
+      }
+    } catch (InterruptedException e) {
+      LOG.info("Job " + run.getId() + " stopped at " + run.getCheckpoint());
+      Thread.currentThread().interrupt();
+      return;
+    }
+    run.complete();
+    deleteCheckpoint(run);
+    LOG.info(run.toString());
+  }
+
+  private static void processUser(BulkJob job, BulkJobRun run, String userId) {
+    try {
+      job.process(userId, run.getParameters());
+      run.recordSuccess();
+    } catch (IOException e) {
+      LOG.info("Job " + run.getId() + " failed for " + userId + ": " + e);
+      run.recordFailure(userId, e.toString());
+    } catch (RuntimeException e) {
+      LOG.log(Level.WARNING, "Job " + run.getId() + " failed for " + userId, e);
+      run.recordFailure(userId, e.toString());
+    }
+  }
+
+  private static File jobsDirectory() {
+    String path = System.getProperty("glassware.jobs.dir");
+    if (path != null) {
+      return new File(path);
+    }
+    String directory = System.getProperty("glassware.credentialStore.dir");
+    if (directory != null) {
+      return new File(directory, "jobs");
+    }
+    return new File(System.getProperty("java.io.tmpdir"), "glassware-jobs");
+  }
+
+  private static File checkpointFile(BulkJobRun run) {
+    return new File(DIRECTORY, run.getId() + CHECKPOINT_SUFFIX);
+  }
+
+  /**
+   * Writes the run's progress to a temporary file and renames it over the
+   * checkpoint, so a crash mid-write leaves the previous checkpoint intact.
+   * A failed write is logged; the job carries on, and would repeat more
+   * users if resumed.
+   */
+  private static void writeCheckpoint(BulkJobRun run) {
+    Properties properties = new Properties();
+    properties.setProperty("job", run.getJobName());
+    properties.setProperty("startTime", Long.toString(run.getStartTimeMillis()));
+    properties.setProperty("succeeded", Integer.toString(run.getSucceededCount()));
+    properties.setProperty("failed", Integer.toString(run.getFailedCount()));
+    if (run.getCheckpoint() != null) {
+      properties.setProperty("after", run.getCheckpoint());
+    }
+    for (Map.Entry<String, String> parameter : run.getParameters().entrySet()) {
+      properties.setProperty(PARAMETER_PREFIX + parameter.getKey(), parameter.getValue());
+    }
+
+    File file = checkpointFile(run);
+    File temporary = new File(DIRECTORY, file.getName() + ".tmp");
+    try {
+      Files.createParentDirs(temporary);
+      Writer writer = Files.newWriter(temporary, Charsets.UTF_8);
+      try {
+        properties.store(writer, null);
+      } finally {
+        writer.close();
+      }
+      if (!temporary.renameTo(file) && !(file.delete() && temporary.renameTo(file))) {
+        throw new IOException("Could not rename " + temporary + " to " + file);
+      }
+    } catch (IOException e) {
+      LOG.log(Level.WARNING, "Could not checkpoint job " + run.getId(), e);
+    }
+  }
+
+  private static void deleteCheckpoint(BulkJobRun run) {
+    File file = checkpointFile(run);
+    if (file.exists() && !file.delete()) {
+      LOG.warning("Could not delete " + file + "; job " + run.getId() + " will run again");
+    }
+  }
+
+  /**
+   * Returns the run a checkpoint file describes, or null if it can't be read.
+   */
+  private static BulkJobRun readCheckpoint(File file) {
+    Properties properties = new Properties();
+    try {
+      Reader reader = Files.newReader(file, Charsets.UTF_8);
+      try {
+        properties.load(reader);
+      } finally {
+        reader.close();
+      }
+    } catch (IOException e) {
+      LOG.log(Level.WARNING, "Could not read " + file, e);
+      return null;
+    }
+
+    String jobName = properties.getProperty("job");
+    if (jobName == null) {
+      LOG.warning("Ignoring " + file + ": no job name");
+      return null;
+    }
+    Map<String, String> parameters = new HashMap<String, String>();
+    for (String key : properties.stringPropertyNames()) {
+      if (key.startsWith(PARAMETER_PREFIX)) {
+        parameters.put(key.substring(PARAMETER_PREFIX.length()), properties.getProperty(key));
+      }
+    }
+    String name = file.getName();
+    try {
+      return new BulkJobRun(name.substring(0, name.length() - CHECKPOINT_SUFFIX.length()),
+          jobName, parameters, Long.parseLong(properties.getProperty("startTime", "0")),
+          properties.getProperty("after"),
+          Integer.parseInt(properties.getProperty("succeeded", "0")),
+          Integer.parseInt(properties.getProperty("failed", "0")));
+    } catch (NumberFormatException e) {
+      LOG.warning("Ignoring " + file + ": " + e);
+      return null;
+    }
+  }
+}
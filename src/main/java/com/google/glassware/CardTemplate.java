@@ -0,0 +1,213 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.glassware;
+
+import com.google.common.collect.ImmutableList;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Card HTML with named holes in it, parsed once and then rendered many times.
+ * <p/>
+ * {@code {{name}}} is replaced by a value with HTML special characters escaped,
+ * so text from users, such as a spoken note, can't add markup to a card.
+ * {@code {{{name}}}} is replaced as is, and is only for HTML the app built
+ * itself.
+ * <p/>
+ * Parsing splits the template into the literal text between holes and the
+ * holes themselves. Rendering is then a single pass that appends each piece,
+ * escaping as it goes, to one buffer sized up front. Code rendering many cards
+ * in a loop can pass its own {@link StringBuilder} to {@link #renderTo} and
+ * reuse it. Templates are immutable and safe to share between threads.
+ */
+public final class CardTemplate {
+  /**
+   * Room left for escaped characters when sizing a buffer.
+   */
+  private static final int ESCAPE_SLACK = 32;
+
+  private final String source;
+  /**
+   * The text around the holes; there is one more literal than holes.
+   */
+  private final String[] literals;
+  /**
+   * For each hole, the index of its variable.
+   */
+  private final int[] holes;
+  /**
+   * For each hole, whether its value is inserted without escaping.
+   */
+  private final boolean[] raw;
+  private final List<String> variables;
+  private final int literalLength;
+
+  private CardTemplate(String source, List<String> literals, List<Integer> holes,
+      List<Boolean> raw, List<String> variables) {
+    this.source = source;
+    this.literals = literals.toArray(new String[literals.size()]);
+    this.holes = new int[holes.size()];
+    this.raw = new boolean[raw.size()];
+    for (int i = 0; i < this.holes.length; i++) {
+      this.holes[i] = holes.get(i);
+      this.raw[i] = raw.get(i);
+    }
+    this.variables = ImmutableList.copyOf(variables);
+    int length = 0;
+    for (String literal : this.literals) {
+      length += literal.length();
+    }
+    this.literalLength = length;
+  }
+
+  /**
+   * Parses a template.
+   *
+   * @throws IllegalArgumentException if a hole is unclosed or has no name
+   */
+  public static CardTemplate compile(String template) {
+    List<String> literals = new ArrayList<String>();
+    List<Integer> holes = new ArrayList<Integer>();
+    List<Boolean> raw = new ArrayList<Boolean>();
+    List<String> variables = new ArrayList<String>();
+
+    int start = 0;
+    int open = template.indexOf("{{");
+    while (open >= 0) {
+      boolean isRaw = template.startsWith("{{{", open);
+      String close = isRaw ? "}}}" : "}}";
+      int nameStart = open + (isRaw ? 3 : 2);
+      int end = template.indexOf(close, nameStart);
+      if (end < 0) {
+        throw new IllegalArgumentException("Unclosed hole at " + open + " in " + template);
+      }
+      String name = template.substring(nameStart, end).trim();
+      if (name.isEmpty() || name.indexOf('{') >= 0 || name.indexOf('}') >= 0) {
+        throw new IllegalArgumentException("Bad hole name at " + open + " in " + template);
+      }
+      int variable = variables.indexOf(name);
+      if (variable < 0) {
+        variable = variables.size();
+        variables.add(name);
+      }
+      literals.add(template.substring(start, open));
+      holes.add(variable);
+      raw.add(isRaw);
+      start = end + close.length();
+      open = template.indexOf("{{", start);
+    }
+    literals.add(template.substring(start));
+    return new CardTemplate(template, literals, holes, raw, variables);
+  }
+
+  /**
+   * Returns the names of this template's variables, in the order their values
+   * are passed to {@link #render}: the order they first appear in.
+   */
+  public List<String> getVariables() {
+    return variables;
+  }
+
+  /**
+   * Renders the template. Null values render as nothing.
+   *
+   * @param values one value per variable, in {@link #getVariables()} order
+   */
+  public String render(String... values) {
+    checkValues(values);
+    if (holes.length == 0) {
+      return literals[0];
+    }
+    int length = literalLength + ESCAPE_SLACK;
+    for (String value : values) {
+      length += value == null ? 0 : value.length();
+    }
+    return append(new StringBuilder(length), values).toString();
+  }
+
+  /**
+   * Renders the template onto the end of {@code out}.
+   *
+   * @param values one value per variable, in {@link #getVariables()} order
+   * @return {@code out}
+   */
+  public StringBuilder renderTo(StringBuilder out, String... values) {
+    checkValues(values);
+    return append(out, values);
+  }
+
+  @Override
+  public String toString() {
+    return source;
+  }
+
+  private void checkValues(String[] values) {
+    if (values.length != variables.size()) {
+      throw new IllegalArgumentException("Expected values for " + variables + " but got "
+          + values.length);
+    }
+  }
+
+  private StringBuilder append(StringBuilder out, String[] values) {
+    for (int i = 0; i < holes.length; i++) {
+      out.append(literals[i]);
+      String value = values[holes[i]];
+      if (value == null) {
+        continue;
+      }
+      if (raw[i]) {
+        out.append(value);
+      } else {
+        appendEscaped(out, value);
+      }
+    }
+    return out.append(literals[holes.length]);
+  }
+
+  /**
+   * Appends {@code value} with HTML special characters escaped, copying the
+   * runs between them in one go.
+   */
+  static void appendEscaped(StringBuilder out, String value) {
+    int run = 0;
+    for (int i = 0; i < value.length(); i++) {
+      String escaped;
+      switch (value.charAt(i)) {
+        case '&':
+          escaped = "&amp;";
+          break;
+        case '<':
+          escaped = "&lt;";
+          break;
+        case '>':
+          escaped = "&gt;";
+          break;
+        case '"':
+          escaped = "&quot;";
+          break;
+        case '\'':
+          escaped = "&#39;";
+          break;
+        default:
+          continue;
+      }
+      out.append(value, run, i).append(escaped);
+      run = i + 1;
+    }
+    out.append(value, run, value.length());
+  }
+}
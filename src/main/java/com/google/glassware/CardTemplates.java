@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.glassware;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The app's card templates, parsed once and looked up by name. The built-in
+ * templates are also constants, so hot paths skip the lookup.
+ */
+public class CardTemplates {
+  private static final String ARTICLE_START = "<article class='auto-paginate'>";
+  private static final String ARTICLE_END =
+      "<footer><p>Java Quick Start</p></footer></article>";
+
+  private static final ConcurrentMap<String, CardTemplate> templates =
+      new ConcurrentHashMap<String, CardTemplate>();
+
+  /**
+   * Any HTML in the standard card frame. Variables: content (HTML).
+   */
+  public static final CardTemplate CARD =
+      register("card", ARTICLE_START + "{{{content}}}" + ARTICLE_END);
+
+  /**
+   * The reply to a "take a note" voice command, in the standard card frame.
+   * Variables: note (text), utterance (HTML).
+   */
+  public static final CardTemplate NOTE_REPLY = register("noteReply", CARD.render(
+      "<p class='text-auto-size'>Oh, did you say {{note}}? {{{utterance}}}</p>"));
+
+  /**
+   * The paginated cat fact inserted from the dashboard. No variables.
+   */
+  public static final CardTemplate CAT_FACT = register("catFact", ARTICLE_START
+      + "<h2 class='blue text-large'>Did you know...?</h2>"
+      + "<p>Cats are <em class='yellow'>solar-powered.</em> The time they spend napping in "
+      + "direct sunlight is necessary to regenerate their internal batteries. Cats that do not "
+      + "receive sufficient charge may exhibit the following symptoms: lethargy, "
+      + "irritability, and disdainful glares. Cats will reactivate on their own automatically "
+      + "after a complete charge cycle; it is recommended that they be left undisturbed during "
+      + "this process to maximize your enjoyment of your cat.</p><br/><p>"
+      + "For more cat maintenance tips, tap to view the website!</p>"
+      + "</article>");
+
+  /**
+   * Parses a template and makes it available under {@code name}.
+   *
+   * @throws IllegalArgumentException if the template doesn't parse, or
+   *                                  another template already has the name
+   */
+  public static CardTemplate register(String name, String template) {
+    CardTemplate compiled = CardTemplate.compile(template);
+    if (templates.putIfAbsent(name, compiled) != null) {
+      throw new IllegalArgumentException("There is already a card template named " + name);
+    }
+    return compiled;
+  }
+
+  /**
+   * Returns the template registered under {@code name}.
+   *
+   * @throws IllegalArgumentException if there is none
+   */
+  public static CardTemplate get(String name) {
+    CardTemplate template = templates.get(name);
+    if (template == null) {
+      throw new IllegalArgumentException("No card template named " + name);
+    }
+    return template;
+  }
+
+  public static Set<String> getNames() {
+    return Collections.unmodifiableSet(templates.keySet());
+  }
+}
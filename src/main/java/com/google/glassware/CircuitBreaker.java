@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.glassware;
+
+import java.io.IOException;
+import java.util.logging.Logger;
+
+/**
+ * Stops calls to an endpoint that keeps failing, so that callers fail at once
+ * instead of each waiting out timeouts and retries while it is down.
+ * <p/>
+ * The breaker opens after a run of consecutive failures. While open, every
+ * call is refused. Once the open period is over, a single trial call is let
+ * through: if it succeeds the breaker closes, otherwise it opens again. A trial
+ * that never reports back is given up on after another open period.
+ */
+public class CircuitBreaker {
+  private static final Logger LOG = Logger.getLogger(CircuitBreaker.class.getSimpleName());
+
+  public enum State {
+    CLOSED, OPEN, HALF_OPEN
+  }
+
+  private final String name;
+  private final int failureThreshold;
+  private final long openMillis;
+
+  private State state = State.CLOSED;
+  private int consecutiveFailures;
+  private long openedAtMillis;
+  private long trialStartedMillis;
+
+  /**
+   * @param name             the endpoint this breaker protects, for logging
+   * @param failureThreshold consecutive failures that open the breaker
+   * @param openMillis       how long the breaker stays open before a trial
+   */
+  public CircuitBreaker(String name, int failureThreshold, long openMillis) {
+    this.name = name;
+    this.failureThreshold = failureThreshold;
+    this.openMillis = openMillis;
+  }
+
+  /**
+   * Returns normally if a call may be made now.
+   *
+   * @throws CircuitOpenException if the endpoint is considered down
+   */
+  public synchronized void checkAllowed() throws CircuitOpenException {
+    if (state == State.CLOSED) {
+      return;
+    }
+    long now = System.currentTimeMillis();
+    long remaining = openedAtMillis + openMillis - now;
+    if ((state == State.OPEN && remaining <= 0)
+        || (state == State.HALF_OPEN && now - trialStartedMillis > openMillis)) {
+      // Let this one call through as a trial
+      state = State.HALF_OPEN;
+      trialStartedMillis = now;
+      return;
+    }
+    throw new CircuitOpenException(name + " is failing; not calling it for another "
+        + Math.max(0, remaining) + "ms");
+  }
+
+  public synchronized void recordSuccess() {
+    if (state != State.CLOSED) {
+      LOG.info("Circuit for " + name + " closed");
+    }
+    state = State.CLOSED;
+    consecutiveFailures = 0;
+  }
+
+  public synchronized void recordFailure() {
+    consecutiveFailures++;
+    if (state == State.HALF_OPEN
+        || (state == State.CLOSED && consecutiveFailures >= failureThreshold)) {
+      LOG.warning("Circuit for " + name + " opened after " + consecutiveFailures
+          + " consecutive failures");
+      state = State.OPEN;
+      openedAtMillis = System.currentTimeMillis();
+    }
+  }
+
+  public synchronized State getState() {
+    return state;
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  /**
+   * Thrown instead of making a call while its circuit is open.
+   */
+  public static class CircuitOpenException extends IOException {
+    CircuitOpenException(String message) {
+      super(message);
+    }
+  }
+}
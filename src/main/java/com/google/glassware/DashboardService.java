@@ -0,0 +1,183 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.glassware;
+
+import com.google.api.client.auth.oauth2.Credential;
+import com.google.api.services.mirror.model.Contact;
+import com.google.api.services.mirror.model.Subscription;
+import com.google.api.services.mirror.model.TimelineItem;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.Futures;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Gathers everything index.jsp shows for a user. The contact, timeline and
+ * subscriptions are fetched in parallel as one {@link TaskScope}, and the
+ * result is cached per user for a few seconds so that reloads and concurrent
+ * page views share one fetch.
+ * <p/>
+ * Tuning is done with system properties:
+ * <ul>
+ * <li>{@code glassware.dashboard.cacheMillis} - how long a dashboard is reused</li>
+ * <li>{@code glassware.dashboard.threads} - threads for the parallel fetches,
+ * unless they run on virtual threads</li>
+ * </ul>
+ */
+public class DashboardService {
+  private static final long CACHE_MILLIS = Long.getLong("glassware.dashboard.cacheMillis", 5000);
+  private static final int THREADS = Integer.getInteger("glassware.dashboard.threads", 16);
+  private static final long TIMELINE_ITEM_COUNT = 3L;
+
+  private static final ExecutorService executor = Threads.newIoPool("dashboard-%d", THREADS);
+
+  private static final Cache<String, Dashboard> dashboards = CacheBuilder.newBuilder()
+      .maximumSize(10000).expireAfterWrite(CACHE_MILLIS, TimeUnit.MILLISECONDS).build();
+
+  /**
+   * Returns the user's dashboard, fetching it if there is no recent copy.
+   * Concurrent calls for the same user wait for the same fetch.
+   */
+  public static Dashboard getDashboard(String userId, final Credential credential)
+      throws IOException {
+    try {
+      return dashboards.get(userId, new Callable<Dashboard>() {
+        public Dashboard call() throws IOException {
+          return fetchDashboard(credential);
+        }
+      });
+    } catch (ExecutionException e) {
+      throw unwrap(e);
+    }
+  }
+
+  /**
+   * Forgets a user's cached dashboard. Call this after changing anything it
+   * shows.
+   */
+  public static void invalidate(String userId) {
+    if (userId != null) {
+      dashboards.invalidate(userId);
+    }
+  }
+
+  public static void shutdown() {
+    executor.shutdownNow();
+  }
+
+  private static Dashboard fetchDashboard(final Credential credential) throws IOException {
+    TaskScope scope = new TaskScope(executor);
+    try {
+      Future<Contact> contact = scope.fork(new Callable<Contact>() {
+        public Contact call() throws IOException {
+          return MirrorClient.getContact(credential, MainServlet.CONTACT_ID);
+        }
+      });
+      Future<List<TimelineItem>> timelineItems =
+          scope.fork(new Callable<List<TimelineItem>>() {
+            public List<TimelineItem> call() throws IOException {
+              return MirrorClient.listItems(credential, TIMELINE_ITEM_COUNT).getItems();
+            }
+          });
+      Future<List<Subscription>> subscriptions =
+          scope.fork(new Callable<List<Subscription>>() {
+            public List<Subscription> call() throws IOException {
+              return MirrorClient.listSubscriptions(credential).getItems();
+            }
+          });
+      scope.join();
+      return new Dashboard(Futures.getUnchecked(contact), Futures.getUnchecked(timelineItems),
+          Futures.getUnchecked(subscriptions));
+    } finally {
+      scope.close();
+    }
+  }
+
+  private static IOException unwrap(ExecutionException e) {
+    Throwable cause = e.getCause();
+    if (cause instanceof IOException) {
+      return (IOException) cause;
+    }
+    if (cause instanceof RuntimeException) {
+      throw (RuntimeException) cause;
+    }
+    return new IOException("Failed to load dashboard", cause);
+  }
+
+  /**
+   * Everything index.jsp needs to render.
+   */
+  public static final class Dashboard {
+    private final Contact contact;
+    private final List<TimelineItem> timelineItems;
+    private final List<Subscription> subscriptions;
+    private final boolean timelineSubscriptionExists;
+    private final boolean locationSubscriptionExists;
+
+    Dashboard(Contact contact, List<TimelineItem> timelineItems,
+        List<Subscription> subscriptions) {
+      this.contact = contact;
+      this.timelineItems =
+          timelineItems == null ? Collections.<TimelineItem>emptyList() : timelineItems;
+      this.subscriptions =
+          subscriptions == null ? Collections.<Subscription>emptyList() : subscriptions;
+
+      boolean timeline = false;
+      boolean locations = false;
+      for (Subscription subscription : this.subscriptions) {
+        if (subscription.getId().equals("timeline")) {
+          timeline = true;
+        }
+        if (subscription.getId().equals("locations")) {
+          locations = true;
+        }
+      }
+      this.timelineSubscriptionExists = timeline;
+      this.locationSubscriptionExists = locations;
+    }
+
+    /**
+     * Returns the Java Quick Start contact, or null if it isn't inserted.
+     */
+    public Contact getContact() {
+      return contact;
+    }
+
+    public List<TimelineItem> getTimelineItems() {
+      return timelineItems;
+    }
+
+    public List<Subscription> getSubscriptions() {
+      return subscriptions;
+    }
+
+    public boolean hasTimelineSubscription() {
+      return timelineSubscriptionExists;
+    }
+
+    public boolean hasLocationSubscription() {
+      return locationSubscriptionExists;
+    }
+  }
+}
@@ -0,0 +1,448 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.glassware;
+
+import com.google.api.client.auth.oauth2.Credential;
+import com.google.common.base.Charsets;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * A {@link ListableMemoryCredentialStore} that survives restarts. Every store
+ * and delete is appended to a log file in a data directory; the full set of
+ * credentials is periodically written to a snapshot so the log can be thrown
+ * away.
+ * <p/>
+ * Writes are buffered and synced to disk in batches every {@code
+ * syncIntervalMillis}, so a crash can lose at most that much recent activity.
+ * At startup the snapshot and logs are memory-mapped and replayed; a torn
+ * record at the end of a log is ignored.
+ * <p/>
+ * Files in the data directory:
+ * <ul>
+ * <li>{@code credentials.snapshot} - all credentials as of some log generation</li>
+ * <li>{@code credentials-<generation>.log} - changes made since then</li>
+ * </ul>
+ */
+public class DurableCredentialStore extends ListableMemoryCredentialStore implements Closeable {
+  private static final Logger LOG = Logger.getLogger(DurableCredentialStore.class.getSimpleName());
+
+  private static final String SNAPSHOT_FILE = "credentials.snapshot";
+  private static final String LOG_PREFIX = "credentials-";
+  private static final String LOG_SUFFIX = ".log";
+  private static final int SNAPSHOT_MAGIC = 0x47435331;
+
+  private static final byte OP_STORE = 1;
+  private static final byte OP_DELETE = 2;
+  private static final long NO_EXPIRATION = Long.MIN_VALUE;
+
+  private final File directory;
+  private final long compactionThresholdBytes;
+
+  /**
+   * Guards the current log. Held just long enough to update memory and append
+   * to the log buffer so the two always agree on ordering.
+   */
+  private final Object writeLock = new Object();
+  /**
+   * Serializes syncs, and log switches against them, so a log isn't closed
+   * while it is being forced to disk. Taken before {@code writeLock}, never
+   * after, and never held by {@link #store} or {@link #delete}.
+   */
+  private final Object syncLock = new Object();
+  private long generation;
+  private FileOutputStream logFile;
+  private DataOutputStream logOut;
+  private long logBytes;
+  private boolean dirty;
+
+  private final AtomicBoolean compacting = new AtomicBoolean();
+  private final ScheduledExecutorService background = Executors.newSingleThreadScheduledExecutor(
+      new ThreadFactoryBuilder().setNameFormat("credential-store").setDaemon(true).build());
+
+  /**
+   * Opens (or creates) a store in the given directory, replaying everything on
+   * disk into memory.
+   *
+   * @param directory                where the snapshot and logs live
+   * @param syncIntervalMillis       how often buffered writes are synced
+   * @param compactionThresholdBytes log size that triggers a new snapshot
+   */
+  public DurableCredentialStore(File directory, long syncIntervalMillis,
+      long compactionThresholdBytes) throws IOException {
+    this.directory = directory;
+    this.compactionThresholdBytes = compactionThresholdBytes;
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("Could not create credential store directory " + directory);
+    }
+
+    long start = System.currentTimeMillis();
+    long firstGeneration = loadSnapshot();
+    long nextGeneration = firstGeneration;
+    for (Map.Entry<Long, File> log : findLogs().entrySet()) {
+      if (log.getKey() >= firstGeneration) {
+        replay(log.getValue());
+        nextGeneration = log.getKey() + 1;
+      }
+    }
+    openLog(nextGeneration);
+    LOG.info("Loaded " + listAllUsers().size() + " credentials from " + directory + " in "
+        + (System.currentTimeMillis() - start) + "ms");
+
+    background.scheduleWithFixedDelay(new Runnable() {
+      public void run() {
+        try {
+          sync();
+        } catch (IOException e) {
+          LOG.log(Level.SEVERE, "Failed to sync credential log", e);
+        }
+      }
+    }, syncIntervalMillis, syncIntervalMillis, TimeUnit.MILLISECONDS);
+  }
+
+  @Override
+  public void store(String userId, Credential credential) throws IOException {
+    if (userId == null) {
+      throw new IllegalArgumentException("Cannot store a credential without a user ID");
+    }
+    byte[] record = encode(OP_STORE, userId, credential.getAccessToken(),
+        credential.getRefreshToken(), credential.getExpirationTimeMilliseconds());
+    synchronized (writeLock) {
+      super.store(userId, credential);
+      append(record);
+    }
+    maybeCompact();
+  }
+
+  @Override
+  public void delete(String userId, Credential credential) throws IOException {
+    if (userId == null) {
+      return;
+    }
+    byte[] record = encode(OP_DELETE, userId, null, null, null);
+    synchronized (writeLock) {
+      super.delete(userId, credential);
+      append(record);
+    }
+    maybeCompact();
+  }
+
+  /**
+   * Forces everything written so far onto disk. Writers only wait for the
+   * buffer to be handed to the OS, not for the disk.
+   */
+  public void sync() throws IOException {
+    synchronized (syncLock) {
+      FileChannel channel;
+      synchronized (writeLock) {
+        if (!dirty || logOut == null) {
+          return;
+        }
+        logOut.flush();
+        dirty = false;
+        channel = logFile.getChannel();
+      }
+      channel.force(false);
+    }
+  }
+
+  /**
+   * Syncs and closes the log. The store must not be written to afterwards.
+   */
+  public void close() throws IOException {
+    background.shutdown();
+    try {
+      background.awaitTermination(10, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    synchronized (syncLock) {
+      FileOutputStream file;
+      DataOutputStream out;
+      synchronized (writeLock) {
+        if (logOut == null) {
+          return;
+        }
+        logOut.flush();
+        file = logFile;
+        out = logOut;
+        logOut = null;
+      }
+      file.getChannel().force(false);
+      out.close();
+    }
+  }
+
+  private void append(byte[] record) throws IOException {
+    if (logOut == null) {
+      throw new IOException("Credential store is closed");
+    }
+    CRC32 crc = new CRC32();
+    crc.update(record);
+    logOut.writeInt(record.length);
+    logOut.writeInt((int) crc.getValue());
+    logOut.write(record);
+    logBytes += 8 + record.length;
+    dirty = true;
+  }
+
+  private void maybeCompact() {
+    if (logBytes >= compactionThresholdBytes && compacting.compareAndSet(false, true)) {
+      background.execute(new Runnable() {
+        public void run() {
+          try {
+            compact();
+          } catch (IOException e) {
+            LOG.log(Level.SEVERE, "Failed to compact credential store", e);
+          } finally {
+            compacting.set(false);
+          }
+        }
+      });
+    }
+  }
+
+  /**
+   * Starts a new log, writes a snapshot that covers everything before it, then
+   * deletes the old logs. Writes carry on into the new log meanwhile; replaying
+   * it over the snapshot is safe because every record holds a user's full
+   * state.
+   */
+  private void compact() throws IOException {
+    long snapshotGeneration;
+    synchronized (syncLock) {
+      FileOutputStream oldFile;
+      DataOutputStream oldOut;
+      synchronized (writeLock) {
+        if (logOut == null) {
+          return;
+        }
+        logOut.flush();
+        oldFile = logFile;
+        oldOut = logOut;
+        snapshotGeneration = generation + 1;
+        openLog(snapshotGeneration);
+        dirty = false;
+      }
+      oldFile.getChannel().force(false);
+      oldOut.close();
+    }
+
+    File tmp = new File(directory, SNAPSHOT_FILE + ".tmp");
+    FileOutputStream snapshotFile = new FileOutputStream(tmp);
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(snapshotFile, 64 * 1024));
+    int count = 0;
+    try {
+      out.writeInt(SNAPSHOT_MAGIC);
+      out.writeLong(snapshotGeneration);
+      for (Map.Entry<String, MemoryPersistedCredential> entry : entries()) {
+        MemoryPersistedCredential item = entry.getValue();
+        byte[] record = encode(OP_STORE, entry.getKey(), item.getAccessToken(),
+            item.getRefreshToken(), item.getExpirationTimeMillis());
+        out.writeInt(record.length);
+        out.write(record);
+        count++;
+      }
+      out.writeInt(-1);
+      out.flush();
+      snapshotFile.getChannel().force(true);
+    } finally {
+      out.close();
+    }
+    File snapshot = new File(directory, SNAPSHOT_FILE);
+    if (!tmp.renameTo(snapshot)) {
+      // Windows won't rename over an existing file
+      if (!snapshot.delete() || !tmp.renameTo(snapshot)) {
+        throw new IOException("Could not replace " + snapshot);
+      }
+    }
+
+    for (Map.Entry<Long, File> log : findLogs().entrySet()) {
+      if (log.getKey() < snapshotGeneration && !log.getValue().delete()) {
+        LOG.warning("Could not delete old credential log " + log.getValue());
+      }
+    }
+    LOG.info("Compacted " + count + " credentials into " + snapshot);
+  }
+
+  private void openLog(long newGeneration) throws IOException {
+    generation = newGeneration;
+    logFile = new FileOutputStream(new File(directory, LOG_PREFIX + newGeneration + LOG_SUFFIX),
+        true);
+    logOut = new DataOutputStream(new BufferedOutputStream(logFile, 64 * 1024));
+    logBytes = logFile.getChannel().size();
+  }
+
+  private SortedMap<Long, File> findLogs() {
+    SortedMap<Long, File> logs = new TreeMap<Long, File>();
+    File[] files = directory.listFiles();
+    if (files != null) {
+      for (File file : files) {
+        String name = file.getName();
+        if (name.startsWith(LOG_PREFIX) && name.endsWith(LOG_SUFFIX)) {
+          try {
+            logs.put(Long.parseLong(
+                name.substring(LOG_PREFIX.length(), name.length() - LOG_SUFFIX.length())), file);
+          } catch (NumberFormatException e) {
+            LOG.warning("Ignoring unexpected file " + file);
+          }
+        }
+      }
+    }
+    return logs;
+  }
+
+  /**
+   * Loads the snapshot, if there is one.
+   *
+   * @return the first log generation that still needs to be replayed
+   */
+  private long loadSnapshot() throws IOException {
+    File snapshot = new File(directory, SNAPSHOT_FILE);
+    if (!snapshot.exists()) {
+      return 0;
+    }
+    ByteBuffer buffer = map(snapshot);
+    if (buffer.getInt() != SNAPSHOT_MAGIC) {
+      throw new IOException(snapshot + " is not a credential snapshot");
+    }
+    long snapshotGeneration = buffer.getLong();
+    int length;
+    while ((length = buffer.getInt()) >= 0) {
+      apply(buffer, length);
+    }
+    return snapshotGeneration;
+  }
+
+  /**
+   * Replays one log, stopping quietly at the first incomplete or corrupt
+   * record, which can only be the tail of a write cut short by a crash.
+   */
+  private void replay(File log) throws IOException {
+    ByteBuffer buffer = map(log);
+    CRC32 crc = new CRC32();
+    while (buffer.remaining() >= 8) {
+      int length = buffer.getInt();
+      int checksum = buffer.getInt();
+      if (length < 0 || length > buffer.remaining()) {
+        LOG.warning("Ignoring truncated record at the end of " + log);
+        return;
+      }
+      byte[] record = new byte[length];
+      buffer.get(record);
+      crc.reset();
+      crc.update(record);
+      if ((int) crc.getValue() != checksum) {
+        LOG.warning("Ignoring corrupt record at the end of " + log);
+        return;
+      }
+      apply(ByteBuffer.wrap(record), length);
+    }
+  }
+
+  private void apply(ByteBuffer buffer, int length) throws IOException {
+    int end = buffer.position() + length;
+    try {
+      byte op = buffer.get();
+      String userId = readString(buffer);
+      if (op == OP_STORE) {
+        String accessToken = readString(buffer);
+        String refreshToken = readString(buffer);
+        long expiration = buffer.getLong();
+        restore(userId, new MemoryPersistedCredential(accessToken, refreshToken,
+            expiration == NO_EXPIRATION ? null : expiration));
+      } else if (op == OP_DELETE) {
+        forget(userId);
+      } else {
+        throw new IOException("Unknown credential record type " + op);
+      }
+    } catch (BufferUnderflowException e) {
+      throw new IOException("Malformed credential record", e);
+    }
+    buffer.position(end);
+  }
+
+  private static ByteBuffer map(File file) throws IOException {
+    RandomAccessFile in = new RandomAccessFile(file, "r");
+    try {
+      FileChannel channel = in.getChannel();
+      if (channel.size() > Integer.MAX_VALUE) {
+        throw new IOException(file + " is too large to map");
+      }
+      MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      buffer.load();
+      return buffer;
+    } finally {
+      in.close();
+    }
+  }
+
+  private static byte[] encode(byte op, String userId, String accessToken, String refreshToken,
+      Long expirationTimeMillis) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+    DataOutputStream out = new DataOutputStream(bytes);
+    out.writeByte(op);
+    writeString(out, userId);
+    if (op == OP_STORE) {
+      writeString(out, accessToken);
+      writeString(out, refreshToken);
+      out.writeLong(expirationTimeMillis == null ? NO_EXPIRATION : expirationTimeMillis);
+    }
+    return bytes.toByteArray();
+  }
+
+  private static void writeString(DataOutputStream out, String value) throws IOException {
+    if (value == null) {
+      out.writeInt(-1);
+    } else {
+      byte[] bytes = value.getBytes(Charsets.UTF_8);
+      out.writeInt(bytes.length);
+      out.write(bytes);
+    }
+  }
+
+  private static String readString(ByteBuffer buffer) {
+    int length = buffer.getInt();
+    if (length < 0) {
+      return null;
+    }
+    byte[] bytes = new byte[length];
+    buffer.get(bytes);
+    return new String(bytes, Charsets.UTF_8);
+  }
+}
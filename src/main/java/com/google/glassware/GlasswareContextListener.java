@@ -0,0 +1,62 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.glassware;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.logging.Logger;
+
+import javax.servlet.ServletContextEvent;
+import javax.servlet.ServletContextListener;
+
+/**
+ * Sets up and tears down app-wide resources with the web app.
+ */
+public class GlasswareContextListener implements ServletContextListener {
+  private static final Logger LOG =
+      Logger.getLogger(GlasswareContextListener.class.getSimpleName());
+
+  @Override
+  public void contextInitialized(ServletContextEvent event) {
+    try {
+      // Load oauth.properties now, so a problem with it is reported at startup
+      // rather than on the first login. Until it loads it is tried again on
+      // every use, so a fixed file is picked up without a restart.
+      AuthUtil.getAuthorizationCodeFlow();
+    } catch (IOException e) {
+      LOG.warning("Could not load OAuth configuration: " + e);
+    }
+    TokenRefresher.start();
+    BulkJobService.resumeUnfinished();
+  }
+
+  @Override
+  public void contextDestroyed(ServletContextEvent event) {
+    TokenRefresher.shutdown();
+    BroadcastService.shutdown();
+    BulkJobService.shutdown();
+    DashboardService.shutdown();
+    NewUserBootstrapper.shutdown();
+    if (AuthUtil.store instanceof Closeable) {
+      try {
+        ((Closeable) AuthUtil.store).close();
+      } catch (IOException e) {
+        LOG.warning("Failed to close credential store: " + e);
+      }
+    }
+    TransportUtil.shutdown();
+  }
+}
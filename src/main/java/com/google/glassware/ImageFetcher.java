@@ -0,0 +1,370 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.glassware;
+
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpRequest;
+import com.google.api.client.http.HttpResponse;
+import com.google.api.client.http.HttpStatusCodes;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.cache.Weigher;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Logger;
+
+import javax.servlet.ServletContext;
+
+/**
+ * Fetches images that are attached to timeline items by URL, and keeps them so
+ * that inserting the same image again costs no network I/O.
+ * <p/>
+ * Image bodies are stored by the SHA-256 of their content, in memory and in
+ * files, so the same image reached through different URLs is kept once. Each
+ * URL remembers which body it last returned along with its entity tag and
+ * modification date; once that is older than the freshness window the URL is
+ * revalidated with a conditional request. Images under this app's {@code
+ * /static/} directory are read straight from the webapp.
+ * <p/>
+ * Remote fetches run on a small bounded pool with connect and read timeouts,
+ * and concurrent fetches of the same URL share a single request.
+ * <p/>
+ * Tuning is done with system properties:
+ * <ul>
+ * <li>{@code glassware.imageFetch.threads} - concurrent remote fetches</li>
+ * <li>{@code glassware.imageFetch.timeoutMillis} - longest wait for a fetch</li>
+ * <li>{@code glassware.imageFetch.maxImageBytes} - largest image accepted</li>
+ * <li>{@code glassware.imageFetch.freshMillis} - how long a URL is trusted
+ * without revalidating it</li>
+ * </ul>
+ */
+public class ImageFetcher {
+  private static final Logger LOG = Logger.getLogger(ImageFetcher.class.getSimpleName());
+
+  private static final int THREADS = Integer.getInteger("glassware.imageFetch.threads", 4);
+  private static final long TIMEOUT_MILLIS =
+      Long.getLong("glassware.imageFetch.timeoutMillis", 15 * 1000);
+  private static final int MAX_IMAGE_BYTES =
+      Integer.getInteger("glassware.imageFetch.maxImageBytes", 10 * 1024 * 1024);
+  private static final long FRESH_MILLIS =
+      Long.getLong("glassware.imageFetch.freshMillis", 10 * 60 * 1000);
+  private static final int CONNECT_TIMEOUT_MILLIS = 5 * 1000;
+  private static final int READ_TIMEOUT_MILLIS = 10 * 1000;
+  private static final int MAX_QUEUED_FETCHES = 100;
+  private static final String STATIC_PATH = "/static/";
+
+  private final ServletContext context;
+  private final File directory;
+  private final ThreadPoolExecutor executor;
+  private final Cache<String, UrlEntry> urls;
+  private final Cache<String, byte[]> memory;
+  private final Cache<String, File> disk;
+  private final ConcurrentMap<String, Future<Image>> inFlight =
+      new ConcurrentHashMap<String, Future<Image>>();
+
+  /**
+   * @param context         the webapp to read local static images from
+   * @param directory       where image bodies are stored; cleared on start
+   * @param maxMemoryBytes  total size of image bodies kept in memory
+   * @param maxDiskBytes    total size of image bodies kept on disk
+   */
+  public ImageFetcher(ServletContext context, File directory, long maxMemoryBytes,
+      long maxDiskBytes) throws IOException {
+    this.context = context;
+    this.directory = directory;
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("Could not create image cache directory " + directory);
+    }
+    File[] leftovers = directory.listFiles();
+    if (leftovers != null) {
+      for (File file : leftovers) {
+        file.delete();
+      }
+    }
+
+    executor = new ThreadPoolExecutor(THREADS, THREADS, 60, TimeUnit.SECONDS,
+        new LinkedBlockingQueue<Runnable>(MAX_QUEUED_FETCHES),
+        Threads.newThreadFactory("image-fetch-%d"));
+    executor.allowCoreThreadTimeOut(true);
+
+    urls = CacheBuilder.newBuilder().maximumSize(10000).build();
+    memory = CacheBuilder.newBuilder()
+        .maximumWeight(Math.max(1, maxMemoryBytes))
+        .weigher(new Weigher<String, byte[]>() {
+          public int weigh(String hash, byte[] body) {
+            return body.length;
+          }
+        }).build();
+    disk = CacheBuilder.newBuilder()
+        .maximumWeight(Math.max(1, maxDiskBytes / 1024))
+        .weigher(new Weigher<String, File>() {
+          public int weigh(String hash, File file) {
+            return (int) Math.min(Integer.MAX_VALUE, (file.length() + 1023) / 1024);
+          }
+        })
+        .removalListener(new RemovalListener<String, File>() {
+          public void onRemoval(RemovalNotification<String, File> notification) {
+            // A body's file is named after its hash, so a replaced entry's
+            // file is the new entry's file too
+            if (notification.wasEvicted() && !notification.getValue().delete()) {
+              LOG.fine("Could not delete evicted image " + notification.getValue());
+            }
+          }
+        }).build();
+  }
+
+  /**
+   * Returns the image at a URL.
+   *
+   * @param url           the image to fetch
+   * @param staticBaseUrl the absolute URL of this app's {@code /static/}
+   *                      directory; images under it are read locally
+   */
+  public Image fetch(final String url, String staticBaseUrl) throws IOException {
+    if (staticBaseUrl != null && url.startsWith(staticBaseUrl)) {
+      Image image = readStatic(STATIC_PATH + url.substring(staticBaseUrl.length()));
+      if (image != null) {
+        return image;
+      }
+    }
+
+    UrlEntry entry = urls.getIfPresent(url);
+    if (entry != null && System.currentTimeMillis() - entry.validatedMillis < FRESH_MILLIS) {
+      byte[] body = getBody(entry.hash);
+      if (body != null) {
+        return new Image(entry.contentType, body);
+      }
+    }
+
+    FutureTask<Image> task = new FutureTask<Image>(new Callable<Image>() {
+      public Image call() throws IOException {
+        try {
+          return fetchRemote(url);
+        } finally {
+          inFlight.remove(url);
+        }
+      }
+    });
+    Future<Image> running = inFlight.putIfAbsent(url, task);
+    if (running == null) {
+      running = task;
+      try {
+        executor.execute(task);
+      } catch (RejectedExecutionException e) {
+        inFlight.remove(url, task);
+        throw new IOException("Too many image fetches in progress");
+      }
+    }
+
+    try {
+      return running.get(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while fetching " + url, e);
+    } catch (TimeoutException e) {
+      throw new IOException("Timed out fetching " + url);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      throw new IOException("Could not fetch " + url, e.getCause());
+    }
+  }
+
+  public void shutdown() {
+    executor.shutdownNow();
+  }
+
+  /**
+   * Reads an image from the webapp, or returns null if there is no such file.
+   */
+  private Image readStatic(String path) throws IOException {
+    if (path.contains("..")) {
+      return null;
+    }
+    InputStream in = context.getResourceAsStream(path);
+    if (in == null) {
+      return null;
+    }
+    try {
+      return new Image(context.getMimeType(path), ByteStreams.toByteArray(in));
+    } finally {
+      in.close();
+    }
+  }
+
+  private Image fetchRemote(String url) throws IOException {
+    UrlEntry previous = urls.getIfPresent(url);
+    byte[] previousBody = previous == null ? null : getBody(previous.hash);
+
+    HttpRequest request = TransportUtil.getHttpTransport().createRequestFactory()
+        .buildGetRequest(new GenericUrl(url));
+    request.setConnectTimeout(CONNECT_TIMEOUT_MILLIS);
+    request.setReadTimeout(READ_TIMEOUT_MILLIS);
+    request.setThrowExceptionOnExecuteError(false);
+    if (previousBody != null) {
+      request.getHeaders().setIfNoneMatch(previous.etag);
+      request.getHeaders().setIfModifiedSince(previous.lastModified);
+    }
+
+    HttpResponse response = request.execute();
+    try {
+      if (response.getStatusCode() == HttpStatusCodes.STATUS_CODE_NOT_MODIFIED
+          && previousBody != null) {
+        urls.put(url, previous.revalidated());
+        return new Image(previous.contentType, previousBody);
+      }
+      if (!response.isSuccessStatusCode()) {
+        throw new IOException("Fetching " + url + " returned " + response.getStatusCode());
+      }
+      Long length = response.getHeaders().getContentLength();
+      if (length != null && length > MAX_IMAGE_BYTES) {
+        throw new IOException(url + " is larger than " + MAX_IMAGE_BYTES + " bytes");
+      }
+      InputStream in = response.getContent();
+      byte[] body;
+      try {
+        body = ByteStreams.toByteArray(ByteStreams.limit(in, MAX_IMAGE_BYTES + 1L));
+      } finally {
+        in.close();
+      }
+      if (body.length > MAX_IMAGE_BYTES) {
+        throw new IOException(url + " is larger than " + MAX_IMAGE_BYTES + " bytes");
+      }
+
+      String hash = Hashing.sha256().hashBytes(body).toString();
+      putBody(hash, body);
+      String contentType = response.getContentType();
+      urls.put(url, new UrlEntry(hash, contentType, response.getHeaders().getETag(),
+          response.getHeaders().getLastModified()));
+      return new Image(contentType, body);
+    } finally {
+      response.disconnect();
+    }
+  }
+
+  /**
+   * Returns a stored image body, or null if it has been evicted from both
+   * memory and disk.
+   */
+  private byte[] getBody(String hash) throws IOException {
+    byte[] body = memory.getIfPresent(hash);
+    if (body != null) {
+      return body;
+    }
+    File file = disk.getIfPresent(hash);
+    if (file == null || !file.isFile()) {
+      return null;
+    }
+    body = Files.toByteArray(file);
+    memory.put(hash, body);
+    return body;
+  }
+
+  private void putBody(String hash, byte[] body) throws IOException {
+    memory.put(hash, body);
+    if (disk.getIfPresent(hash) != null) {
+      return;
+    }
+    File tmp = File.createTempFile(hash, ".tmp", directory);
+    try {
+      Files.write(body, tmp);
+      File file = new File(directory, hash);
+      if (!tmp.renameTo(file)) {
+        throw new IOException("Could not move image into " + file);
+      }
+      disk.asMap().putIfAbsent(hash, file);
+    } finally {
+      tmp.delete();
+    }
+  }
+
+  /**
+   * What a URL last returned and the validators to check it with.
+   */
+  private static final class UrlEntry {
+    final String hash;
+    final String contentType;
+    final String etag;
+    final String lastModified;
+    final long validatedMillis;
+
+    UrlEntry(String hash, String contentType, String etag, String lastModified) {
+      this(hash, contentType, etag, lastModified, System.currentTimeMillis());
+    }
+
+    private UrlEntry(String hash, String contentType, String etag, String lastModified,
+        long validatedMillis) {
+      this.hash = hash;
+      this.contentType = contentType;
+      this.etag = etag;
+      this.lastModified = lastModified;
+      this.validatedMillis = validatedMillis;
+    }
+
+    UrlEntry revalidated() {
+      return new UrlEntry(hash, contentType, etag, lastModified);
+    }
+  }
+
+  /**
+   * A fetched image. The body is shared with the cache and must not be
+   * modified.
+   */
+  public static final class Image {
+    private final String contentType;
+    private final byte[] body;
+
+    Image(String contentType, byte[] body) {
+      this.contentType = contentType;
+      this.body = body;
+    }
+
+    /**
+     * Returns the content type the image was served with, or null if unknown.
+     */
+    public String getContentType() {
+      return contentType;
+    }
+
+    public int getLength() {
+      return body.length;
+    }
+
+    public InputStream openStream() {
+      return new ByteArrayInputStream(body);
+    }
+  }
+}
@@ -0,0 +1,226 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.glassware;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs tasks in parallel across keys, but strictly in submission order for any
+ * one key. Each key is hashed onto one of a fixed number of lanes; a lane is a
+ * single worker thread, virtual if {@link Threads} allows, draining a bounded
+ * queue.
+ * <p/>
+ * When a lane's queue is full the {@link OverflowPolicy} decides what happens,
+ * so callers get explicit backpressure instead of an ever-growing backlog.
+ */
+public class KeyedExecutor {
+  private static final Logger LOG = Logger.getLogger(KeyedExecutor.class.getSimpleName());
+
+  /**
+   * What to do with a task when its lane is full.
+   */
+  public enum OverflowPolicy {
+    /** Refuse the new task right away. */
+    REJECT,
+    /** Wait up to the offer timeout for room, then refuse the new task. */
+    BLOCK,
+    /**
+     * Drop the oldest queued task in the lane to make room. The dropped task
+     * never runs; if it is a {@link DiscardableTask} it is told so.
+     */
+    DISCARD_OLDEST
+  }
+
+  /**
+   * A task that needs to undo something when it is dropped without running.
+   */
+  public interface DiscardableTask extends Runnable {
+    /**
+     * Called on the submitting thread once the task has been dropped.
+     */
+    void discarded();
+  }
+
+  private static final Runnable SHUTDOWN = new Runnable() {
+    public void run() {
+    }
+  };
+
+  private final Lane[] lanes;
+  private final OverflowPolicy overflowPolicy;
+  private final long offerTimeoutMillis;
+  private volatile boolean shutdown;
+
+  private final AtomicLong accepted = new AtomicLong();
+  private final AtomicLong rejected = new AtomicLong();
+  private final AtomicLong discarded = new AtomicLong();
+
+  /**
+   * @param name               used to name the worker threads
+   * @param laneCount          number of worker threads
+   * @param laneCapacity       queued tasks allowed per worker
+   * @param overflowPolicy     what to do when a lane is full
+   * @param offerTimeoutMillis how long {@link OverflowPolicy#BLOCK} waits
+   */
+  public KeyedExecutor(String name, int laneCount, int laneCapacity,
+      OverflowPolicy overflowPolicy, long offerTimeoutMillis) {
+    this.overflowPolicy = overflowPolicy;
+    this.offerTimeoutMillis = offerTimeoutMillis;
+    this.lanes = new Lane[laneCount];
+    for (int i = 0; i < laneCount; i++) {
+      lanes[i] = new Lane(name + "-" + i, laneCapacity);
+    }
+  }
+
+  /**
+   * Queues a task behind every earlier task with the same key.
+   *
+   * @return true if the task was queued, false if it was shed
+   */
+  public boolean submit(String key, Runnable task) {
+    if (shutdown) {
+      rejected.incrementAndGet();
+      return false;
+    }
+    BlockingQueue<Runnable> queue = laneFor(key).queue;
+    boolean queued;
+    switch (overflowPolicy) {
+      case BLOCK:
+        try {
+          queued = queue.offer(task, offerTimeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          queued = false;
+        }
+        break;
+      case DISCARD_OLDEST:
+        queued = queue.offer(task);
+        while (!queued) {
+          Runnable oldest = queue.poll();
+          if (oldest != null) {
+            discarded.incrementAndGet();
+            if (oldest instanceof DiscardableTask) {
+              ((DiscardableTask) oldest).discarded();
+            }
+          }
+          queued = queue.offer(task);
+        }
+        break;
+      default:
+        queued = queue.offer(task);
+    }
+    if (queued) {
+      accepted.incrementAndGet();
+    } else {
+      rejected.incrementAndGet();
+    }
+    return queued;
+  }
+
+  /**
+   * Returns the number of tasks waiting across all lanes.
+   */
+  public int getQueuedCount() {
+    int queued = 0;
+    for (Lane lane : lanes) {
+      queued += lane.queue.size();
+    }
+    return queued;
+  }
+
+  public long getAcceptedCount() {
+    return accepted.get();
+  }
+
+  public long getRejectedCount() {
+    return rejected.get();
+  }
+
+  public long getDiscardedCount() {
+    return discarded.get();
+  }
+
+  /**
+   * Stops accepting tasks and lets each lane finish what is already queued,
+   * waiting up to the given time in total, then interrupts whatever is still
+   * running.
+   */
+  public void shutdown(long timeoutMillis) {
+    shutdown = true;
+    long deadline = System.currentTimeMillis() + timeoutMillis;
+    for (Lane lane : lanes) {
+      try {
+        lane.queue.offer(SHUTDOWN, Math.max(1, deadline - System.currentTimeMillis()),
+            TimeUnit.MILLISECONDS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        break;
+      }
+    }
+    for (Lane lane : lanes) {
+      try {
+        lane.thread.join(Math.max(1, deadline - System.currentTimeMillis()));
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        break;
+      }
+    }
+    for (Lane lane : lanes) {
+      lane.thread.interrupt();
+    }
+  }
+
+  private Lane laneFor(String key) {
+    int hash = key == null ? 0 : key.hashCode();
+    return lanes[(hash & Integer.MAX_VALUE) % lanes.length];
+  }
+
+  private static final class Lane implements Runnable {
+    private final BlockingQueue<Runnable> queue;
+    private final Thread thread;
+
+    Lane(String name, int capacity) {
+      queue = new ArrayBlockingQueue<Runnable>(capacity);
+      thread = Threads.newThread(name, this);
+      thread.start();
+    }
+
+    public void run() {
+      while (true) {
+        Runnable task;
+        try {
+          task = queue.take();
+        } catch (InterruptedException e) {
+          return;
+        }
+        if (task == SHUTDOWN) {
+          return;
+        }
+        try {
+          task.run();
+        } catch (Throwable t) {
+          // Keep the lane alive; every key hashed onto it depends on it
+          LOG.log(Level.SEVERE, "Task failed on " + thread.getName(), t);
+        }
+      }
+    }
+  }
+}
@@ -19,93 +19,145 @@ import com.google.api.client.auth.oauth2.Credential;
 import com.google.api.client.auth.oauth2.CredentialStore;
 
 
-import java.util.*;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
 
 /**
  * A new credential store. It's exactly the same as
  * com.google.api.client.auth.oauth2.MemoryCredentialStore except it
  * has the added ability to list all of the users.
+ * <p/>
+ * Reads and writes never lock: each stored credential is an immutable
+ * snapshot that is swapped in atomically. Users are kept sorted by ID so they
+ * can be walked in pages without copying the whole store. There is never a
+ * credential for a null user ID: loading or deleting one does nothing.
  *
  * @author Jenny Murphy - http://google.com/+JennyMurphy
  */
 public class ListableMemoryCredentialStore implements CredentialStore {
 
-  /**
-   * Lock on access to the store.
-   */
-  private final Lock lock = new ReentrantLock();
-
   /**
    * Store of memory persisted credentials, indexed by userId.
    */
-  private final Map<String, MemoryPersistedCredential> store =
-      new HashMap<String, MemoryPersistedCredential>();
-
-  public void store(String userId, Credential credential) {
-    lock.lock();
-    try {
-      MemoryPersistedCredential item = store.get(userId);
-      if (item == null) {
-        item = new MemoryPersistedCredential();
-        store.put(userId, item);
-      }
-      item.store(credential);
-    } finally {
-      lock.unlock();
+  private final ConcurrentNavigableMap<String, MemoryPersistedCredential> store =
+      new ConcurrentSkipListMap<String, MemoryPersistedCredential>();
+
+  public void store(String userId, Credential credential) throws IOException {
+    if (userId == null) {
+      throw new IllegalArgumentException("Cannot store a credential without a user ID");
     }
+    store.put(userId, new MemoryPersistedCredential(credential));
   }
 
-  public void delete(String userId, Credential credential) {
-    lock.lock();
-    try {
+  public void delete(String userId, Credential credential) throws IOException {
+    if (userId != null) {
       store.remove(userId);
-    } finally {
-      lock.unlock();
     }
   }
 
   public boolean load(String userId, Credential credential) {
-    lock.lock();
-    try {
-      MemoryPersistedCredential item = store.get(userId);
-      if (item != null) {
-        item.load(credential);
-      }
-      return item != null;
-    } finally {
-      lock.unlock();
+    if (userId == null) {
+      return false;
     }
+    MemoryPersistedCredential item = store.get(userId);
+    if (item != null) {
+      item.load(credential);
+    }
+    return item != null;
   }
 
+  /**
+   * Returns a snapshot of every user ID in the store. Prefer {@link
+   * #iterateUsers()} or {@link #listUsers(String, int)} when there are many
+   * users.
+   */
   public List<String> listAllUsers() {
-    List<String> allUsers = new ArrayList<String>();
-    // Is that a 47 character long generic for one line of behavior? Yes, yes it is.
-    for (Iterator<Map.Entry<String, MemoryPersistedCredential>> iterator = store.entrySet()
-        .iterator();
-         iterator.hasNext(); ) {
-      allUsers.add(iterator.next().getKey());
+    return new ArrayList<String>(store.keySet());
+  }
+
+  /**
+   * Returns an iterator over all user IDs in sorted order. It never throws
+   * {@link java.util.ConcurrentModificationException}; users added or removed
+   * while iterating may or may not be seen.
+   */
+  public Iterator<String> iterateUsers() {
+    return Collections.unmodifiableSet(store.keySet()).iterator();
+  }
+
+  /**
+   * Returns up to {@code limit} user IDs that sort after {@code afterUserId}.
+   * Pass the last ID of one page to get the next one.
+   *
+   * @param afterUserId the last user ID already seen, or null to start at the
+   *                    beginning
+   * @param limit       maximum number of IDs to return
+   */
+  public List<String> listUsers(String afterUserId, int limit) {
+    ConcurrentNavigableMap<String, MemoryPersistedCredential> tail =
+        afterUserId == null ? store : store.tailMap(afterUserId, false);
+    List<String> page = new ArrayList<String>(Math.min(limit, 1024));
+    for (String userId : tail.keySet()) {
+      if (page.size() >= limit) {
+        break;
+      }
+      page.add(userId);
     }
-    return allUsers;
+    return page;
+  }
+
+  /**
+   * Returns the snapshot currently stored for a user, or null if there is
+   * none. Snapshots are replaced rather than modified, so comparing two of
+   * them by identity tells whether the user's credential changed in between.
+   */
+  MemoryPersistedCredential get(String userId) {
+    return userId == null ? null : store.get(userId);
   }
 
-  class MemoryPersistedCredential {
+  /**
+   * Puts an already persisted credential straight into memory, e.g. while
+   * replaying it from disk.
+   */
+  void restore(String userId, MemoryPersistedCredential item) {
+    store.put(userId, item);
+  }
+
+  /**
+   * Removes a user from memory without any other side effects.
+   */
+  void forget(String userId) {
+    store.remove(userId);
+  }
+
+  /**
+   * Returns a live, weakly consistent view of every stored credential.
+   */
+  Iterable<Map.Entry<String, MemoryPersistedCredential>> entries() {
+    return store.entrySet();
+  }
+
+  static final class MemoryPersistedCredential {
 
     /**
      * Access token or {@code null} for none.
      */
-    private String accessToken;
+    private final String accessToken;
 
     /**
      * Refresh token {@code null} for none.
      */
-    private String refreshToken;
+    private final String refreshToken;
 
     /**
      * Expiration time in milliseconds {@code null} for none.
      */
-    private Long expirationTimeMillis;
+    private final Long expirationTimeMillis;
 
     /**
      * Store information from the credential.
@@ -114,10 +166,28 @@ public class ListableMemoryCredentialStore implements CredentialStore {
      *                   {@link Credential#getRefreshToken refresh token}, and
      *                   {@link Credential#getExpirationTimeMilliseconds expiration time} need to be stored
      */
-    void store(Credential credential) {
-      accessToken = credential.getAccessToken();
-      refreshToken = credential.getRefreshToken();
-      expirationTimeMillis = credential.getExpirationTimeMilliseconds();
+    MemoryPersistedCredential(Credential credential) {
+      this(credential.getAccessToken(), credential.getRefreshToken(),
+          credential.getExpirationTimeMilliseconds());
+    }
+
+    MemoryPersistedCredential(String accessToken, String refreshToken,
+        Long expirationTimeMillis) {
+      this.accessToken = accessToken;
+      this.refreshToken = refreshToken;
+      this.expirationTimeMillis = expirationTimeMillis;
+    }
+
+    String getAccessToken() {
+      return accessToken;
+    }
+
+    String getRefreshToken() {
+      return refreshToken;
+    }
+
+    Long getExpirationTimeMillis() {
+      return expirationTimeMillis;
     }
 
     /**
@@ -0,0 +1,165 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.glassware;
+
+import com.google.api.client.auth.oauth2.Credential;
+import com.google.api.client.googleapis.json.GoogleJsonResponseException;
+import com.google.api.client.http.HttpStatusCodes;
+import com.google.api.services.mirror.Mirror;
+import com.google.api.services.mirror.model.Location;
+import com.google.api.services.mirror.model.MenuItem;
+import com.google.api.services.mirror.model.NotificationConfig;
+import com.google.api.services.mirror.model.TimelineItem;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.Lists;
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Collapses bursts of location notifications. The first notification for a
+ * user opens a window; when it closes, the user's latest location is fetched
+ * once and shown on a single card, however many notifications arrived in
+ * between. The card is updated in place on later windows rather than a new one
+ * being inserted each time.
+ */
+public class LocationCoalescer {
+  private static final Logger LOG = Logger.getLogger(LocationCoalescer.class.getSimpleName());
+
+  /**
+   * Location card IDs are remembered for this many users at most.
+   */
+  private static final int MAX_REMEMBERED_CARDS = 100000;
+
+  private final long windowMillis;
+  private final ScheduledExecutorService scheduler;
+
+  /**
+   * Users with a window open. TRUE while notifications are waiting to be
+   * handled, FALSE while the latest location is being fetched and shown.
+   */
+  private final ConcurrentMap<String, Boolean> pending = new ConcurrentHashMap<String, Boolean>();
+
+  /**
+   * The location card last shown to each user.
+   */
+  private final Cache<String, String> cardIds = CacheBuilder.newBuilder()
+      .maximumSize(MAX_REMEMBERED_CARDS).expireAfterAccess(1, TimeUnit.DAYS).build();
+
+  /**
+   * @param windowMillis how long to collect notifications before acting
+   * @param threads      threads for fetching locations and updating cards
+   */
+  public LocationCoalescer(long windowMillis, int threads) {
+    this.windowMillis = windowMillis;
+    this.scheduler =
+        new ScheduledThreadPoolExecutor(threads, Threads.newThreadFactory("location-%d"));
+  }
+
+  /**
+   * Notes that a user's location changed. Returns immediately.
+   */
+  public void offer(String userId) {
+    if (pending.put(userId, Boolean.TRUE) == null) {
+      schedule(userId, windowMillis);
+    }
+  }
+
+  public void shutdown() {
+    scheduler.shutdownNow();
+  }
+
+  private void schedule(final String userId, long delayMillis) {
+    try {
+      scheduler.schedule(new Runnable() {
+        public void run() {
+          flush(userId);
+        }
+      }, delayMillis, TimeUnit.MILLISECONDS);
+    } catch (RejectedExecutionException e) {
+      pending.remove(userId);
+    }
+  }
+
+  private void flush(String userId) {
+    pending.put(userId, Boolean.FALSE);
+    long delayMillis = windowMillis;
+    try {
+      showLatestLocation(userId);
+    } catch (RateLimiter.RateLimitedException e) {
+      LOG.info("Deferring location update for " + userId + ": " + e.getMessage());
+      pending.put(userId, Boolean.TRUE);
+      delayMillis = Math.max(windowMillis, e.getRetryAfterMillis());
+    } catch (IOException e) {
+      LOG.log(Level.WARNING, "Failed to show the latest location for " + userId, e);
+    } catch (RuntimeException e) {
+      LOG.log(Level.SEVERE, "Failed to show the latest location for " + userId, e);
+    } finally {
+      // Anything that arrived while we were busy gets a window of its own
+      if (!pending.remove(userId, Boolean.FALSE)) {
+        schedule(userId, delayMillis);
+      }
+    }
+  }
+
+  /**
+   * Fetches a user's latest location and shows it on their location card.
+   */
+  void showLatestLocation(String userId) throws IOException {
+    Credential credential = AuthUtil.getCredential(userId);
+    if (credential == null) {
+      LOG.info("No credential for " + userId + ". Ignoring their location.");
+      return;
+    }
+    // Fail fast rather than hold a thread while waiting for quota; the flush
+    // is deferred instead
+    Mirror glass = MirrorClient.getMirror(credential, RateLimiter.Priority.BACKGROUND,
+        RateLimiter.Mode.FAIL_FAST);
+    Location location = glass.locations().get("latest").execute();
+
+    LOG.info("New location is " + location.getLatitude() + ", " + location.getLongitude());
+    TimelineItem card = new TimelineItem()
+        .setText("Java Quick Start says you are now at " + location.getLatitude()
+            + " by " + location.getLongitude())
+        .setLocation(location)
+        .setMenuItems(Lists.newArrayList(new MenuItem().setAction("NAVIGATE")));
+
+    String cardId = cardIds.getIfPresent(userId);
+    if (cardId != null) {
+      try {
+        glass.timeline().update(cardId, card).execute();
+        return;
+      } catch (GoogleJsonResponseException e) {
+        if (e.getStatusCode() != HttpStatusCodes.STATUS_CODE_NOT_FOUND) {
+          throw e;
+        }
+        // The user deleted the old card, so start a new one
+      }
+    }
+
+    // Only a new card pings the device; updates replace it quietly
+    card.setNotification(new NotificationConfig().setLevel("DEFAULT"));
+    cardIds.put(userId, glass.timeline().insert(card).execute().getId());
+  }
+}
@@ -16,130 +16,204 @@
 package com.google.glassware;
 
 import com.google.api.client.auth.oauth2.Credential;
-import com.google.api.client.googleapis.batch.BatchRequest;
-import com.google.api.client.googleapis.batch.json.JsonBatchCallback;
-import com.google.api.client.googleapis.json.GoogleJsonError;
+import com.google.api.client.auth.oauth2.TokenResponseException;
 import com.google.api.client.googleapis.json.GoogleJsonResponseException;
-import com.google.api.client.http.HttpHeaders;
 import com.google.api.services.mirror.model.Command;
 import com.google.api.services.mirror.model.Contact;
 import com.google.api.services.mirror.model.MenuItem;
 import com.google.api.services.mirror.model.MenuValue;
 import com.google.api.services.mirror.model.NotificationConfig;
 import com.google.api.services.mirror.model.TimelineItem;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 
+import java.io.File;
 import java.io.IOException;
-import java.net.URL;
 import java.util.ArrayList;
+import java.util.Enumeration;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpSession;
 
 /**
  * Handles POST requests from index.jsp
+ * <p/>
+ * Requests are handled asynchronously. The container thread copies what the
+ * operation needs from the request and hands it to a bounded pool; the
+ * redirect back to the dashboard is sent from that pool once the Mirror calls
+ * are done, so container threads never wait on the network. When the pool is
+ * full the user is sent straight back with a "busy" message. An operation that
+ * outlives its timeout keeps running, and its result is shown on a later page
+ * load.
+ * <p/>
+ * Tuning is done with system properties:
+ * <ul>
+ * <li>{@code glassware.main.threads} - operations run at once</li>
+ * <li>{@code glassware.main.maxQueued} - operations waiting for a thread
+ * before new ones are turned away</li>
+ * <li>{@code glassware.main.timeoutMillis} - longest a browser is kept waiting
+ * for its redirect</li>
+ * </ul>
  *
  * @author Jenny Murphy - http://google.com/+JennyMurphy
  */
 public class MainServlet extends HttpServlet {
 
+  private static final Logger LOG = Logger.getLogger(MainServlet.class.getSimpleName());
+  public static final String CONTACT_ID = "com.google.glassware.contact.java-quick-start";
+  public static final String CONTACT_NAME = "Java Quick Start";
+
   /**
-   * Private class to process batch request results.
-   * <p/>
-   * For more information, see
-   * https://code.google.com/p/google-api-java-client/wiki/Batch.
+   * The operations index.jsp can ask for, used to label metrics.
    */
-  private final class BatchCallback extends JsonBatchCallback<TimelineItem> {
-    private int success = 0;
-    private int failure = 0;
+  private static final Set<String> OPERATIONS = ImmutableSet.of("insertSubscription",
+      "deleteSubscription", "insertItem", "insertPaginatedItem", "insertItemWithAction",
+      "insertContact", "deleteContact", "insertItemAllUsers", "retryBroadcast",
+      "deleteTimelineItem", "reconcileSubscriptions");
+
+  private static final long IMAGE_CACHE_MEMORY_BYTES =
+      Long.getLong("glassware.imageCache.memoryBytes", 32L * 1024 * 1024);
+  private static final long IMAGE_CACHE_DISK_BYTES =
+      Long.getLong("glassware.imageCache.diskBytes", 256L * 1024 * 1024);
+  private static final String IMAGE_CACHE_DIR = System.getProperty("glassware.imageCache.dir",
+      new File(System.getProperty("java.io.tmpdir"), "glassware-images").getPath());
+
+  private static final int OPERATION_THREADS = Integer.getInteger("glassware.main.threads", 32);
+  private static final int MAX_QUEUED_OPERATIONS =
+      Integer.getInteger("glassware.main.maxQueued", 500);
+  private static final long OPERATION_TIMEOUT_MILLIS =
+      Long.getLong("glassware.main.timeoutMillis", 60 * 1000);
+
+  private ImageFetcher imageFetcher;
+  private ThreadPoolExecutor executor;
 
-    @Override
-    public void onSuccess(TimelineItem item, HttpHeaders headers) throws IOException {
-      ++success;
+  @Override
+  public void init() throws ServletException {
+    try {
+      imageFetcher = new ImageFetcher(getServletContext(), new File(IMAGE_CACHE_DIR),
+          IMAGE_CACHE_MEMORY_BYTES, IMAGE_CACHE_DISK_BYTES);
+    } catch (IOException e) {
+      throw new ServletException("Could not create image cache", e);
     }
+    executor = new ThreadPoolExecutor(OPERATION_THREADS, OPERATION_THREADS, 60, TimeUnit.SECONDS,
+        new LinkedBlockingQueue<Runnable>(MAX_QUEUED_OPERATIONS),
+        Threads.newThreadFactory("main-operation-%d"));
+    executor.allowCoreThreadTimeOut(true);
+
+    Metrics.gauge(new Metrics.Gauge() {
+      public double getValue() {
+        return executor.getQueue().size();
+      }
+    }, "glassware_main_queued");
+    Metrics.gauge(new Metrics.Gauge() {
+      public double getValue() {
+        return executor.getActiveCount();
+      }
+    }, "glassware_main_active");
+  }
 
-    @Override
-    public void onFailure(GoogleJsonError error, HttpHeaders headers) throws IOException {
-      ++failure;
-      LOG.info("Failed to insert item: " + error.getMessage());
+  @Override
+  public void destroy() {
+    executor.shutdown();
+    try {
+      executor.awaitTermination(10, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
     }
+    imageFetcher.shutdown();
   }
 
-  private static final Logger LOG = Logger.getLogger(MainServlet.class.getSimpleName());
-  public static final String CONTACT_ID = "com.google.glassware.contact.java-quick-start";
-  public static final String CONTACT_NAME = "Java Quick Start";
-
-  private static final String PAGINATED_HTML =
-      "<article class='auto-paginate'>"
-      + "<h2 class='blue text-large'>Did you know...?</h2>"
-      + "<p>Cats are <em class='yellow'>solar-powered.</em> The time they spend napping in "
-      + "direct sunlight is necessary to regenerate their internal batteries. Cats that do not "
-      + "receive sufficient charge may exhibit the following symptoms: lethargy, "
-      + "irritability, and disdainful glares. Cats will reactivate on their own automatically "
-      + "after a complete charge cycle; it is recommended that they be left undisturbed during "
-      + "this process to maximize your enjoyment of your cat.</p><br/><p>"
-      + "For more cat maintenance tips, tap to view the website!</p>"
-      + "</article>";
+  @Override
+  protected void doPost(HttpServletRequest req, HttpServletResponse res) throws IOException {
+    AsyncContext async = req.startAsync(req, res);
+    async.setTimeout(OPERATION_TIMEOUT_MILLIS);
+    Operation op = new Operation(async);
+    async.addListener(op);
+    try {
+      executor.execute(op);
+    } catch (RejectedExecutionException e) {
+      LOG.warning("Too many operations in progress; turning away " + op.getName());
+      Metrics.counter("glassware_main_rejected").incrementAndGet();
+      op.redirect("The server is busy right now. Please try again in a moment.", "/");
+    }
+  }
 
   /**
    * Do stuff when buttons on index.jsp are clicked
    */
-  @Override
-  protected void doPost(HttpServletRequest req, HttpServletResponse res) throws IOException {
-
-    String userId = AuthUtil.getUserId(req);
-    Credential credential = AuthUtil.newAuthorizationCodeFlow().loadCredential(userId);
+  private String handleOperation(Operation op) throws IOException {
+    Credential credential = op.getCredential();
     String message = "";
 
-    if (req.getParameter("operation").equals("insertSubscription")) {
+    if (op.getParameter("operation").equals("insertSubscription")) {
 
       // subscribe (only works deployed to production)
       try {
-        MirrorClient.insertSubscription(credential, WebUtil.buildUrl(req, "/notify"), userId,
-            req.getParameter("collection"));
+        MirrorClient.insertSubscription(credential, op.buildUrl("/notify"), op.getUserId(),
+            op.getParameter("collection"));
         message = "Application is now subscribed to updates.";
       } catch (GoogleJsonResponseException e) {
-        LOG.warning("Could not subscribe " + WebUtil.buildUrl(req, "/notify") + " because "
+        LOG.warning("Could not subscribe " + op.buildUrl("/notify") + " because "
             + e.getDetails().toPrettyString());
         message = "Failed to subscribe. Check your log for details";
       }
 
-    } else if (req.getParameter("operation").equals("deleteSubscription")) {
+    } else if (op.getParameter("operation").equals("deleteSubscription")) {
 
       // subscribe (only works deployed to production)
-      MirrorClient.deleteSubscription(credential, req.getParameter("subscriptionId"));
+      MirrorClient.deleteSubscription(credential, op.getParameter("subscriptionId"));
 
       message = "Application has been unsubscribed.";
 
-    } else if (req.getParameter("operation").equals("insertItem")) {
+    } else if (op.getParameter("operation").equals("insertItem")) {
       LOG.fine("Inserting Timeline Item");
       TimelineItem timelineItem = new TimelineItem();
 
-      if (req.getParameter("message") != null) {
-        timelineItem.setText(req.getParameter("message"));
+      if (op.getParameter("message") != null) {
+        timelineItem.setText(op.getParameter("message"));
       }
 
       // Triggers an audible tone when the timeline item is received
       timelineItem.setNotification(new NotificationConfig().setLevel("DEFAULT"));
 
-      if (req.getParameter("imageUrl") != null) {
+      if (op.getParameter("imageUrl") != null) {
         // Attach an image, if we have one
-        URL url = new URL(req.getParameter("imageUrl"));
-        String contentType = req.getParameter("contentType");
-        MirrorClient.insertTimelineItem(credential, timelineItem, contentType, url.openStream());
+        ImageFetcher.Image image = imageFetcher.fetch(op.getParameter("imageUrl"),
+            op.buildUrl("/static/"));
+        String contentType = op.getParameter("contentType");
+        if (contentType == null) {
+          contentType = image.getContentType();
+        }
+        MirrorClient.insertTimelineItem(credential, timelineItem, contentType,
+            image.openStream());
       } else {
         MirrorClient.insertTimelineItem(credential, timelineItem);
       }
 
       message = "A timeline item has been inserted.";
 
-    } else if (req.getParameter("operation").equals("insertPaginatedItem")) {
+    } else if (op.getParameter("operation").equals("insertPaginatedItem")) {
       LOG.fine("Inserting Timeline Item");
       TimelineItem timelineItem = new TimelineItem();
-      timelineItem.setHtml(PAGINATED_HTML);
+      timelineItem.setHtml(CardTemplates.CAT_FACT.render());
 
       List<MenuItem> menuItemList = new ArrayList<MenuItem>();
       menuItemList.add(new MenuItem().setAction("OPEN_URI").setPayload(
@@ -153,7 +227,7 @@ public class MainServlet extends HttpServlet {
 
       message = "A timeline item has been inserted.";
 
-    } else if (req.getParameter("operation").equals("insertItemWithAction")) {
+    } else if (op.getParameter("operation").equals("insertItemWithAction")) {
       LOG.fine("Inserting Timeline Item");
       TimelineItem timelineItem = new TimelineItem();
       timelineItem.setText("Tell me what you had for lunch :)");
@@ -165,7 +239,7 @@ public class MainServlet extends HttpServlet {
 
       // And custom actions
       List<MenuValue> menuValues = new ArrayList<MenuValue>();
-      menuValues.add(new MenuValue().setIconUrl(WebUtil.buildUrl(req, "/static/images/drill.png"))
+      menuValues.add(new MenuValue().setIconUrl(op.buildUrl("/static/images/drill.png"))
           .setDisplayName("Drill In"));
       menuItemList.add(new MenuItem().setValues(menuValues).setId("drill").setAction("CUSTOM"));
 
@@ -176,77 +250,212 @@ public class MainServlet extends HttpServlet {
 
       message = "A timeline item with actions has been inserted.";
 
-    } else if (req.getParameter("operation").equals("insertContact")) {
-      if (req.getParameter("iconUrl") == null || req.getParameter("name") == null) {
+    } else if (op.getParameter("operation").equals("insertContact")) {
+      if (op.getParameter("iconUrl") == null || op.getParameter("name") == null) {
         message = "Must specify iconUrl and name to insert contact";
       } else {
         // Insert a contact
         LOG.fine("Inserting contact Item");
         Contact contact = new Contact();
-        contact.setId(req.getParameter("id"));
-        contact.setDisplayName(req.getParameter("name"));
-        contact.setImageUrls(Lists.newArrayList(req.getParameter("iconUrl")));
+        contact.setId(op.getParameter("id"));
+        contact.setDisplayName(op.getParameter("name"));
+        contact.setImageUrls(Lists.newArrayList(op.getParameter("iconUrl")));
         contact.setAcceptCommands(Lists.newArrayList(new Command().setType("TAKE_A_NOTE")));
         MirrorClient.insertContact(credential, contact);
 
-        message = "Inserted contact: " + req.getParameter("name");
+        message = "Inserted contact: " + op.getParameter("name");
       }
 
-    } else if (req.getParameter("operation").equals("deleteContact")) {
+    } else if (op.getParameter("operation").equals("deleteContact")) {
 
       // Insert a contact
       LOG.fine("Deleting contact Item");
-      MirrorClient.deleteContact(credential, req.getParameter("id"));
+      MirrorClient.deleteContact(credential, op.getParameter("id"));
 
       message = "Contact has been deleted.";
 
-    } else if (req.getParameter("operation").equals("insertItemAllUsers")) {
-      if (req.getServerName().contains("glass-java-starter-demo.appspot.com")) {
+    } else if (op.getParameter("operation").equals("insertItemAllUsers")) {
+      if (op.getServerName().contains("glass-java-starter-demo.appspot.com")) {
         message = "This function is disabled on the demo instance.";
-      }
-
-      // Insert a contact
-      List<String> users = AuthUtil.getAllUserIds();
-      LOG.info("found " + users.size() + " users");
-      if (users.size() > 10) {
-        // We wouldn't want you to run out of quota on your first day!
-        message =
-            "Total user count is " + users.size() + ". Aborting broadcast " + "to save your quota.";
       } else {
         TimelineItem allUsersItem = new TimelineItem();
         allUsersItem.setText("Hello Everyone!");
 
-        BatchRequest batch = MirrorClient.getMirror(null).batch();
-        BatchCallback callback = new BatchCallback();
-
         // TODO: add a picture of a cat
-        for (String user : users) {
-          Credential userCredential = AuthUtil.getCredential(user);
-          MirrorClient.getMirror(userCredential).timeline().insert(allUsersItem)
-              .queue(batch, callback);
-        }
+        Broadcast broadcast = BroadcastService.broadcastToAllUsers(allUsersItem);
+        message = "Started broadcast " + broadcast.getId() + ". Reload to check its progress.";
+      }
 
-        batch.execute();
-        message =
-            "Successfully sent cards to " + callback.success + " users (" + callback.failure
-                + " failed).";
+    } else if (op.getParameter("operation").equals("retryBroadcast")) {
+      Broadcast broadcast = BroadcastService.retryFailures(op.getParameter("broadcastId"));
+      if (broadcast == null) {
+        message = "There is nothing to retry for that broadcast.";
+      } else {
+        message = "Retrying failed users as broadcast " + broadcast.getId() + ".";
       }
 
+    } else if (op.getParameter("operation").equals("reconcileSubscriptions")) {
+      if (op.getServerName().contains("glass-java-starter-demo.appspot.com")) {
+        message = "This function is disabled on the demo instance.";
+      } else {
+        BulkJobRun run = BulkJobService.start(SubscriptionReconciler.NAME,
+            ImmutableMap.of(SubscriptionReconciler.CALLBACK_URL, op.buildUrl("/notify")));
+        message = "Fixing subscriptions as job " + run.getId()
+            + ". Reload to check its progress.";
+      }
 
-    } else if (req.getParameter("operation").equals("deleteTimelineItem")) {
+    } else if (op.getParameter("operation").equals("deleteTimelineItem")) {
 
       // Delete a timeline item
       LOG.fine("Deleting Timeline Item");
-      MirrorClient.deleteTimelineItem(credential, req.getParameter("itemId"));
+      MirrorClient.deleteTimelineItem(credential, op.getParameter("itemId"));
 
       message = "Timeline Item has been deleted.";
 
     } else {
-      String operation = req.getParameter("operation");
+      String operation = op.getParameter("operation");
       LOG.warning("Unknown operation specified " + operation);
       message = "I don't know how to do that";
     }
-    WebUtil.setFlash(req, message);
-    res.sendRedirect(WebUtil.buildUrl(req, "/"));
+    // Show the effect of this operation on the next page load
+    DashboardService.invalidate(op.getUserId());
+    return message;
+  }
+
+  /**
+   * One dashboard button press. Everything the operation needs from the
+   * request is copied up front, since the request is recycled as soon as a
+   * response has gone out, which may be before the operation is done.
+   */
+  private class Operation implements Runnable, AsyncListener {
+    private final AsyncContext async;
+    private final long startNanos = System.nanoTime();
+    private final Map<String, String> parameters = Maps.newHashMap();
+    private final String requestUrl;
+    private final String serverName;
+    private final String userId;
+    private final Credential credential;
+    private final HttpSession session;
+    /**
+     * Set once a response has been sent, whether by the operation or the
+     * timeout.
+     */
+    private final AtomicBoolean responded = new AtomicBoolean();
+
+    Operation(AsyncContext async) throws IOException {
+      this.async = async;
+      HttpServletRequest req = (HttpServletRequest) async.getRequest();
+      for (Enumeration<String> names = req.getParameterNames(); names.hasMoreElements(); ) {
+        String name = names.nextElement();
+        parameters.put(name, req.getParameter(name));
+      }
+      requestUrl = req.getRequestURL().toString();
+      serverName = req.getServerName();
+      userId = AuthUtil.getUserId(req);
+      credential = AuthUtil.getCredential(req);
+      session = req.getSession();
+    }
+
+    String getName() {
+      String operation = getParameter("operation");
+      return OPERATIONS.contains(operation) ? operation : "unknown";
+    }
+
+    String getParameter(String name) {
+      return parameters.get(name);
+    }
+
+    String buildUrl(String relativePath) {
+      return WebUtil.buildUrl(requestUrl, relativePath);
+    }
+
+    String getServerName() {
+      return serverName;
+    }
+
+    String getUserId() {
+      return userId;
+    }
+
+    Credential getCredential() {
+      return credential;
+    }
+
+    public void run() {
+      String message;
+      try {
+        message = handleOperation(this);
+      } catch (TokenResponseException e) {
+        if (e.getDetails() != null && e.getDetails().getError().contains("invalid_grant")) {
+          LOG.warning("User disabled Glassware. Attempting to re-authenticate");
+          NewUserBootstrapper.forget(userId);
+          redirect(null, "/oauth2callback");
+        } else {
+          fail(e);
+        }
+        return;
+      } catch (IOException e) {
+        fail(e);
+        return;
+      } catch (RuntimeException e) {
+        fail(e);
+        return;
+      } finally {
+        Metrics.histogram("glassware_main_operation_seconds", "operation", getName())
+            .recordSince(startNanos);
+      }
+      redirect(message, "/");
+    }
+
+    /**
+     * Shows {@code flash} on the next page load and, unless a response has
+     * already gone out, redirects to {@code relativePath}.
+     */
+    void redirect(String flash, String relativePath) {
+      if (flash != null) {
+        WebUtil.setFlash(session, flash);
+      }
+      if (responded.compareAndSet(false, true)) {
+        try {
+          ((HttpServletResponse) async.getResponse()).sendRedirect(buildUrl(relativePath));
+        } catch (IOException e) {
+          LOG.fine("Could not redirect after " + getName() + ": " + e);
+        } finally {
+          async.complete();
+        }
+      }
+    }
+
+    private void fail(Exception e) {
+      LOG.log(Level.SEVERE, "Operation " + getName() + " failed", e);
+      if (responded.compareAndSet(false, true)) {
+        try {
+          ((HttpServletResponse) async.getResponse())
+              .sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+        } catch (IOException sendFailed) {
+          LOG.fine("Could not report failure of " + getName() + ": " + sendFailed);
+        } finally {
+          async.complete();
+        }
+      }
+    }
+
+    public void onTimeout(AsyncEvent event) {
+      LOG.info("Operation " + getName() + " is taking over " + OPERATION_TIMEOUT_MILLIS
+          + "ms; sending the user back while it finishes");
+      redirect("Still working on that. Reload in a moment to see the result.", "/");
+    }
+
+    public void onError(AsyncEvent event) {
+      if (responded.compareAndSet(false, true)) {
+        async.complete();
+      }
+    }
+
+    public void onComplete(AsyncEvent event) {
+    }
+
+    public void onStartAsync(AsyncEvent event) {
+    }
   }
 }
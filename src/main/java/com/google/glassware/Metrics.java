@@ -0,0 +1,274 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.glassware;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * In-process counters, gauges and latency histograms, written out in the
+ * Prometheus text format by {@link MetricsServlet}.
+ * <p/>
+ * Recording is a handful of atomic increments with no locking or allocation
+ * beyond looking the metric up, so it is cheap enough to leave on. Histograms
+ * use buckets whose width grows with the value, so percentiles are accurate to
+ * within about 6% from microseconds to hours.
+ * <p/>
+ * A metric is named by a metric name and, optionally, label pairs, e.g.
+ * {@code Metrics.histogram("glassware_mirror_request_seconds", "method", "GET timeline")}.
+ * Label values should come from a small fixed set, never from user input.
+ */
+public class Metrics {
+  /**
+   * Something whose current value is read when metrics are written out.
+   */
+  public interface Gauge {
+    double getValue();
+  }
+
+  private static final double[] QUANTILES = {0.5, 0.99, 0.999};
+
+  private static final ConcurrentMap<String, Histogram> histograms =
+      new ConcurrentHashMap<String, Histogram>();
+  private static final ConcurrentMap<String, AtomicLong> counters =
+      new ConcurrentHashMap<String, AtomicLong>();
+  private static final ConcurrentMap<String, Gauge> gauges =
+      new ConcurrentHashMap<String, Gauge>();
+
+  /**
+   * Orders metrics so that everything with the same name is written together.
+   */
+  private static final Comparator<String> BY_NAME_THEN_LABELS = new Comparator<String>() {
+    public int compare(String a, String b) {
+      int byName = nameOf(a).compareTo(nameOf(b));
+      return byName != 0 ? byName : a.compareTo(b);
+    }
+  };
+
+  /**
+   * Returns the histogram with the given name and labels, creating it if
+   * needed. Hold on to the result when recording from a hot path.
+   */
+  public static Histogram histogram(String name, String... labels) {
+    String key = key(name, labels);
+    Histogram histogram = histograms.get(key);
+    if (histogram == null) {
+      Histogram created = new Histogram();
+      histogram = histograms.putIfAbsent(key, created);
+      if (histogram == null) {
+        histogram = created;
+      }
+    }
+    return histogram;
+  }
+
+  /**
+   * Returns the counter with the given name and labels, creating it if needed.
+   */
+  public static AtomicLong counter(String name, String... labels) {
+    String key = key(name, labels);
+    AtomicLong counter = counters.get(key);
+    if (counter == null) {
+      AtomicLong created = new AtomicLong();
+      counter = counters.putIfAbsent(key, created);
+      if (counter == null) {
+        counter = created;
+      }
+    }
+    return counter;
+  }
+
+  /**
+   * Registers a gauge, replacing any registered with the same name and labels.
+   */
+  public static void gauge(Gauge gauge, String name, String... labels) {
+    gauges.put(key(name, labels), gauge);
+  }
+
+  /**
+   * Writes every metric in the Prometheus text exposition format. Histograms
+   * are written as summaries with p50, p99 and p999 quantiles.
+   */
+  public static void writeTo(Writer out) throws IOException {
+    String lastName = null;
+    for (Map.Entry<String, Histogram> entry : sorted(histograms).entrySet()) {
+      String name = nameOf(entry.getKey());
+      String labels = labelsOf(entry.getKey());
+      if (!name.equals(lastName)) {
+        out.write("# TYPE " + name + " summary\n");
+        lastName = name;
+      }
+      Histogram histogram = entry.getValue();
+      for (double quantile : QUANTILES) {
+        out.write(name + withLabel(labels, "quantile=\"" + quantile + "\"") + " "
+            + histogram.getQuantileSeconds(quantile) + "\n");
+      }
+      out.write(name + "_sum" + labels + " " + histogram.getSumSeconds() + "\n");
+      out.write(name + "_count" + labels + " " + histogram.getCount() + "\n");
+    }
+    lastName = null;
+    for (Map.Entry<String, AtomicLong> entry : sorted(counters).entrySet()) {
+      String name = nameOf(entry.getKey());
+      if (!name.equals(lastName)) {
+        out.write("# TYPE " + name + " counter\n");
+        lastName = name;
+      }
+      out.write(entry.getKey() + " " + entry.getValue().get() + "\n");
+    }
+    lastName = null;
+    for (Map.Entry<String, Gauge> entry : sorted(gauges).entrySet()) {
+      String name = nameOf(entry.getKey());
+      if (!name.equals(lastName)) {
+        out.write("# TYPE " + name + " gauge\n");
+        lastName = name;
+      }
+      out.write(entry.getKey() + " " + entry.getValue().getValue() + "\n");
+    }
+  }
+
+  private static <T> SortedMap<String, T> sorted(Map<String, T> metrics) {
+    SortedMap<String, T> sorted = new TreeMap<String, T>(BY_NAME_THEN_LABELS);
+    sorted.putAll(metrics);
+    return sorted;
+  }
+
+  private static String key(String name, String... labels) {
+    if (labels.length == 0) {
+      return name;
+    }
+    StringBuilder key = new StringBuilder(name).append('{');
+    for (int i = 0; i + 1 < labels.length; i += 2) {
+      if (i > 0) {
+        key.append(',');
+      }
+      key.append(labels[i]).append("=\"")
+          .append(labels[i + 1].replace("\\", "\\\\").replace("\"", "\\\"")).append('"');
+    }
+    return key.append('}').toString();
+  }
+
+  private static String nameOf(String key) {
+    int brace = key.indexOf('{');
+    return brace < 0 ? key : key.substring(0, brace);
+  }
+
+  private static String labelsOf(String key) {
+    int brace = key.indexOf('{');
+    return brace < 0 ? "" : key.substring(brace);
+  }
+
+  private static String withLabel(String labels, String label) {
+    return labels.isEmpty()
+        ? "{" + label + "}" : labels.substring(0, labels.length() - 1) + "," + label + "}";
+  }
+
+  /**
+   * A latency histogram with log-linear buckets: each power of two is split
+   * into 16 equal buckets. Values are recorded in microseconds.
+   */
+  public static final class Histogram {
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    /**
+     * Enough buckets for values up to 2^40 microseconds, about 12 days.
+     */
+    private static final int MAX_EXPONENT = 40;
+
+    private final AtomicLongArray buckets =
+        new AtomicLongArray((MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sumMicros = new AtomicLong();
+
+    Histogram() {
+    }
+
+    /**
+     * Records the time since {@code startNanos}, a value from {@link
+     * System#nanoTime()}.
+     */
+    public void recordSince(long startNanos) {
+      recordMicros(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNanos));
+    }
+
+    public void recordMicros(long micros) {
+      long value = Math.max(0, micros);
+      buckets.incrementAndGet(indexOf(value));
+      count.incrementAndGet();
+      sumMicros.addAndGet(value);
+    }
+
+    public long getCount() {
+      return count.get();
+    }
+
+    public double getSumSeconds() {
+      return sumMicros.get() / 1e6;
+    }
+
+    /**
+     * Returns the value below which the given share of recorded values fall,
+     * in seconds, or 0 if nothing has been recorded.
+     */
+    public double getQuantileSeconds(double quantile) {
+      long total = 0;
+      long[] snapshot = new long[buckets.length()];
+      for (int i = 0; i < snapshot.length; i++) {
+        snapshot[i] = buckets.get(i);
+        total += snapshot[i];
+      }
+      if (total == 0) {
+        return 0;
+      }
+      long rank = (long) Math.ceil(quantile * total);
+      long seen = 0;
+      for (int i = 0; i < snapshot.length; i++) {
+        seen += snapshot[i];
+        if (seen >= rank) {
+          return upperBoundOf(i) / 1e6;
+        }
+      }
+      return upperBoundOf(snapshot.length - 1) / 1e6;
+    }
+
+    private int indexOf(long value) {
+      if (value < SUB_BUCKETS) {
+        return (int) value;
+      }
+      int exponent = Math.min(MAX_EXPONENT, 63 - Long.numberOfLeadingZeros(value));
+      int subBucket = (int) ((value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1));
+      return ((exponent - SUB_BUCKET_BITS + 1) << SUB_BUCKET_BITS) + subBucket;
+    }
+
+    private long upperBoundOf(int index) {
+      if (index < SUB_BUCKETS) {
+        return index;
+      }
+      int exponent = (index >> SUB_BUCKET_BITS) + SUB_BUCKET_BITS - 1;
+      long subBucket = index & (SUB_BUCKETS - 1);
+      long width = 1L << (exponent - SUB_BUCKET_BITS);
+      return (1L << exponent) + (subBucket + 1) * width - 1;
+    }
+  }
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.glassware;
+
+import com.google.common.base.Charsets;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.security.MessageDigest;
+import java.util.logging.Logger;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Serves {@link Metrics} in the Prometheus text format. Who may read them is
+ * set with system properties:
+ * <ul>
+ * <li>{@code glassware.metrics.token} - if set, only requests with an
+ * {@code Authorization: Bearer <token>} header are answered, wherever they
+ * come from. Use this behind a reverse proxy.</li>
+ * <li>{@code glassware.metrics.allowRemote} - if true and no token is set,
+ * anyone may read them</li>
+ * </ul>
+ * Otherwise only requests from the local machine are answered. That check
+ * trusts the connection's address, so it is only meant for deployments
+ * without a proxy in front: behind one, every request comes from the proxy.
+ * Requests carrying proxy forwarding headers are refused to make that
+ * mistake harder.
+ */
+public class MetricsServlet extends HttpServlet {
+  private static final Logger LOG = Logger.getLogger(MetricsServlet.class.getSimpleName());
+
+  private static final String TOKEN = System.getProperty("glassware.metrics.token");
+  private static final boolean ALLOW_REMOTE = Boolean.getBoolean("glassware.metrics.allowRemote");
+
+  @Override
+  protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+    if (!isAllowed(req)) {
+      LOG.warning("Refusing metrics request from " + req.getRemoteAddr());
+      resp.sendError(HttpServletResponse.SC_FORBIDDEN);
+      return;
+    }
+    resp.setContentType("text/plain; version=0.0.4");
+    resp.setCharacterEncoding("UTF-8");
+    Writer writer = resp.getWriter();
+    Metrics.writeTo(writer);
+    writer.close();
+  }
+
+  private static boolean isAllowed(HttpServletRequest req) {
+    if (TOKEN != null) {
+      String authorization = req.getHeader("Authorization");
+      return authorization != null && MessageDigest.isEqual(
+          authorization.getBytes(Charsets.UTF_8), ("Bearer " + TOKEN).getBytes(Charsets.UTF_8));
+    }
+    if (ALLOW_REMOTE) {
+      return true;
+    }
+    return isLocal(req.getRemoteAddr()) && req.getHeader("X-Forwarded-For") == null
+        && req.getHeader("Forwarded") == null;
+  }
+
+  private static boolean isLocal(String address) {
+    return address != null && (address.startsWith("127.") || address.equals("::1")
+        || address.equals("0:0:0:0:0:0:0:1"));
+  }
+}
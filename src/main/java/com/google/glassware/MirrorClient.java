@@ -17,11 +17,21 @@ package com.google.glassware;
 
 import com.google.api.client.auth.oauth2.Credential;
 import com.google.api.client.googleapis.json.GoogleJsonResponseException;
+import com.google.api.client.googleapis.media.MediaHttpUploader;
 import com.google.api.client.http.ByteArrayContent;
 import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpBackOffIOExceptionHandler;
+import com.google.api.client.http.HttpBackOffUnsuccessfulResponseHandler;
+import com.google.api.client.http.HttpExecuteInterceptor;
+import com.google.api.client.http.HttpIOExceptionHandler;
+import com.google.api.client.http.HttpRequest;
+import com.google.api.client.http.HttpRequestInitializer;
 import com.google.api.client.http.HttpResponse;
-import com.google.api.client.http.javanet.NetHttpTransport;
-import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.client.http.HttpResponseInterceptor;
+import com.google.api.client.http.HttpStatusCodes;
+import com.google.api.client.http.HttpUnsuccessfulResponseHandler;
+import com.google.api.client.http.InputStreamContent;
+import com.google.api.client.util.ExponentialBackOff;
 import com.google.api.services.mirror.Mirror;
 import com.google.api.services.mirror.model.Attachment;
 import com.google.api.services.mirror.model.Contact;
@@ -30,23 +40,482 @@ import com.google.api.services.mirror.model.Subscription;
 import com.google.api.services.mirror.model.SubscriptionsListResponse;
 import com.google.api.services.mirror.model.TimelineItem;
 import com.google.api.services.mirror.model.TimelineListResponse;
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.hash.Hashing;
 import com.google.common.io.ByteStreams;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
 
 /**
  * A facade for easier access to basic API operations
+ * <p/>
+ * Every call made through a service from {@link #getMirror} is rate limited,
+ * retried with backoff when that is safe, and refused while its endpoint's
+ * circuit breaker is open. Tuning is done with system properties:
+ * <ul>
+ * <li>{@code glassware.retry.maxElapsedMillis} - how long to keep retrying</li>
+ * <li>{@code glassware.circuit.failureThreshold} - failures that open a circuit</li>
+ * <li>{@code glassware.circuit.openMillis} - how long a circuit stays open</li>
+ * <li>{@code glassware.hedge.delayMillis} - when to hedge a slow read</li>
+ * <li>{@code glassware.hedge.threads} - threads for hedged reads, unless they
+ * run on virtual threads</li>
+ * <li>{@code glassware.mirror.rootUrl} - where to find the Mirror API, e.g. a
+ * local {@code FakeMirrorServer} for load testing</li>
+ * </ul>
  *
  * @author Jenny Murphy - http://google.com/+JennyMurphy
  */
 public class MirrorClient {
   private static final Logger LOG = Logger.getLogger(MirrorClient.class.getSimpleName());
 
+  /**
+   * Size of each piece of a resumable upload. Must be a multiple of 256KB.
+   */
+  private static final int UPLOAD_CHUNK_SIZE = Math.max(1,
+      Integer.getInteger("glassware.upload.chunkSize", 1024 * 1024)
+          / MediaHttpUploader.MINIMUM_CHUNK_SIZE) * MediaHttpUploader.MINIMUM_CHUNK_SIZE;
+
+  /**
+   * Root URL of the Mirror API, or null for Google's.
+   */
+  private static final String MIRROR_ROOT_URL = System.getProperty("glassware.mirror.rootUrl");
+
+  private static final boolean RATE_LIMIT_DISABLED =
+      Boolean.getBoolean("glassware.rateLimit.disabled");
+  private static final RateLimiter RATE_LIMITER = new RateLimiter(
+      Double.parseDouble(System.getProperty("glassware.rateLimit.userPerSecond", "5")),
+      Integer.getInteger("glassware.rateLimit.userBurst", 20),
+      Double.parseDouble(System.getProperty("glassware.rateLimit.methodPerSecond", "100")),
+      Integer.getInteger("glassware.rateLimit.methodBurst", 200),
+      Long.getLong("glassware.rateLimit.dailyQuota", 1000000),
+      Integer.getInteger("glassware.rateLimit.backgroundPercent", 80),
+      Long.getLong("glassware.rateLimit.maxWaitMillis", 5 * 1000));
+
+  private static final Set<String> IDEMPOTENT_METHODS =
+      ImmutableSet.of("GET", "HEAD", "PUT", "DELETE");
+
+  /**
+   * Responses worth retrying: server errors and rate limiting.
+   */
+  private static final HttpBackOffUnsuccessfulResponseHandler.BackOffRequired RETRYABLE_RESPONSE =
+      new HttpBackOffUnsuccessfulResponseHandler.BackOffRequired() {
+        public boolean isRequired(HttpResponse response) {
+          return response.getStatusCode() / 100 == 5 || response.getStatusCode() == 429;
+        }
+      };
+
+  private static final int RETRY_MAX_ELAPSED_MILLIS =
+      Integer.getInteger("glassware.retry.maxElapsedMillis", 15 * 1000);
+  private static final int CIRCUIT_FAILURE_THRESHOLD =
+      Integer.getInteger("glassware.circuit.failureThreshold", 10);
+  private static final long CIRCUIT_OPEN_MILLIS =
+      Long.getLong("glassware.circuit.openMillis", 30 * 1000);
+  private static final ConcurrentMap<String, CircuitBreaker> CIRCUIT_BREAKERS =
+      new ConcurrentHashMap<String, CircuitBreaker>();
+
+  /**
+   * How long a hedged read waits before sending a second copy. Zero or less
+   * turns hedging off.
+   */
+  private static final long HEDGE_DELAY_MILLIS = Long.getLong("glassware.hedge.delayMillis", 500);
+  private static final ExecutorService HEDGE_EXECUTOR = Threads.newCachedPool("mirror-hedge-%d",
+      Integer.getInteger("glassware.hedge.threads", 32));
+
+  static {
+    Metrics.gauge(new Metrics.Gauge() {
+      public double getValue() {
+        return RATE_LIMITER.getDailyUsage();
+      }
+    }, "glassware_mirror_quota_used");
+    Metrics.gauge(new Metrics.Gauge() {
+      public double getValue() {
+        return RATE_LIMITER.getDailyQuota();
+      }
+    }, "glassware_mirror_quota_limit");
+    Metrics.gauge(new Metrics.Gauge() {
+      public double getValue() {
+        return RATE_LIMITER.getThrottledCount();
+      }
+    }, "glassware_mirror_throttled");
+  }
+
+  /**
+   * Returns the rate limiter every Mirror call goes through, e.g. to check how
+   * much of the daily quota is left.
+   */
+  public static RateLimiter getRateLimiter() {
+    return RATE_LIMITER;
+  }
+
+  /**
+   * Returns a Mirror service authorized with the given credential. The
+   * service is a thin wrapper; the underlying HTTP transport and JSON factory
+   * are shared, so this is cheap to call once per operation.
+   *
+   * @param credential the user's credential, or null for an unauthorized
+   *                   service (e.g. to create a batch)
+   */
   public static Mirror getMirror(Credential credential) {
-    return new Mirror.Builder(new NetHttpTransport(), new JacksonFactory(), credential)
-        .setApplicationName("PG Java Starter").build();
+    return getMirror(credential, RateLimiter.Priority.INTERACTIVE, RateLimiter.Mode.WAIT);
+  }
+
+  /**
+   * Returns a Mirror service whose calls are rate limited as given. Background
+   * work should use {@link RateLimiter.Priority#BACKGROUND} so that it gives
+   * way to interactive users as the daily quota runs low.
+   *
+   * @param credential the user's credential, or null for an unauthorized
+   *                   service (e.g. to create a batch)
+   */
+  public static Mirror getMirror(Credential credential, RateLimiter.Priority priority,
+      RateLimiter.Mode mode) {
+    return newMirrorBuilder(newRequestInitializer(credential, priority, mode, false, false, null))
+        .build();
+  }
+
+  /**
+   * Returns a Mirror service for calls that are queued on a {@link
+   * com.google.api.client.googleapis.batch.BatchRequest} rather than executed
+   * one by one. They are rate limited as given but leave the circuit breakers
+   * alone: the client library never reports a part's success, so its failures
+   * would look consecutive, and a part refused by an open breaker would fail
+   * the whole batch. The batch request itself still goes through the {@code
+   * POST batch} breaker.
+   */
+  public static Mirror getBatchMirror(Credential credential, RateLimiter.Priority priority,
+      RateLimiter.Mode mode) {
+    return newMirrorBuilder(newRequestInitializer(credential, priority, mode, false, true, null))
+        .build();
+  }
+
+  private static Mirror.Builder newMirrorBuilder(HttpRequestInitializer initializer) {
+    Mirror.Builder builder = new Mirror.Builder(TransportUtil.getHttpTransport(),
+        TransportUtil.getJsonFactory(), initializer).setApplicationName("PG Java Starter");
+    if (MIRROR_ROOT_URL != null) {
+      builder.setRootUrl(MIRROR_ROOT_URL);
+    }
+    return builder;
+  }
+
+  /**
+   * Returns an initializer that sets up a request's credential, timeouts and
+   * compression, and the rest of what every Mirror call goes through:
+   * <ul>
+   * <li>the endpoint's circuit breaker, which refuses calls while it is open</li>
+   * <li>the rate limiter, before every attempt</li>
+   * <li>retries with jittered exponential backoff after I/O errors, server
+   * errors and 429s, for idempotent methods or if {@code alwaysRetry}</li>
+   * </ul>
+   *
+   * @param alwaysRetry retry even methods that aren't idempotent, e.g. the
+   *                    chunks of a resumable upload, which the server dedups
+   * @param batchPart   the requests are parts of a batch, so skip the circuit
+   *                    breaker and latency histogram
+   * @param sent        counted down once a request has been let through and
+   *                    is about to be sent, or null
+   */
+  private static HttpRequestInitializer newRequestInitializer(final Credential credential,
+      final RateLimiter.Priority priority, final RateLimiter.Mode mode,
+      final boolean alwaysRetry, final boolean batchPart, final CountDownLatch sent) {
+    final HttpRequestInitializer initializer = TransportUtil.newRequestInitializer(credential);
+    return new HttpRequestInitializer() {
+      public void initialize(HttpRequest request) throws IOException {
+        initializer.initialize(request);
+        // The request's method and URL aren't set until after this, so what
+        // depends on them is worked out as each attempt is sent
+        final Attempt attempt = new Attempt(batchPart);
+
+        final HttpExecuteInterceptor interceptor = request.getInterceptor();
+        request.setInterceptor(new HttpExecuteInterceptor() {
+          public void intercept(HttpRequest request) throws IOException {
+            attempt.begin(request);
+            attempt.checkAllowed();
+            // A request without a credential is a batch, whose parts are
+            // limited individually
+            if (credential != null && !RATE_LIMIT_DISABLED) {
+              RATE_LIMITER.acquire(userKeyOf(credential), attempt.method, priority, mode);
+            }
+            if (interceptor != null) {
+              interceptor.intercept(request);
+            }
+            attempt.startNanos = System.nanoTime();
+            if (sent != null) {
+              sent.countDown();
+            }
+          }
+        });
+
+        // Keep the credential's handler, which refreshes expired tokens
+        final HttpUnsuccessfulResponseHandler authHandler =
+            request.getUnsuccessfulResponseHandler();
+        final HttpUnsuccessfulResponseHandler backOffHandler =
+            new HttpBackOffUnsuccessfulResponseHandler(newBackOff())
+                .setBackOffRequired(RETRYABLE_RESPONSE);
+        request.setUnsuccessfulResponseHandler(new HttpUnsuccessfulResponseHandler() {
+          public boolean handleResponse(HttpRequest request, HttpResponse response,
+              boolean supportsRetry) throws IOException {
+            Metrics.counter("glassware_mirror_errors_total", "method", attempt.method,
+                "status", (response.getStatusCode() / 100) + "xx").incrementAndGet();
+            attempt.finish(!RETRYABLE_RESPONSE.isRequired(response));
+            return (authHandler != null
+                && authHandler.handleResponse(request, response, supportsRetry))
+                || (isRetryable(request, alwaysRetry)
+                && backOffHandler.handleResponse(request, response, supportsRetry));
+          }
+        });
+
+        final HttpIOExceptionHandler ioExceptionHandler =
+            new HttpBackOffIOExceptionHandler(newBackOff());
+        request.setIOExceptionHandler(new HttpIOExceptionHandler() {
+          public boolean handleIOException(HttpRequest request, boolean supportsRetry)
+              throws IOException {
+            Metrics.counter("glassware_mirror_errors_total", "method", attempt.method,
+                "status", "io").incrementAndGet();
+            attempt.finish(false);
+            return isRetryable(request, alwaysRetry)
+                && ioExceptionHandler.handleIOException(request, supportsRetry);
+          }
+        });
+
+        request.setResponseInterceptor(new HttpResponseInterceptor() {
+          public void interceptResponse(HttpResponse response) {
+            if (response.isSuccessStatusCode()) {
+              attempt.finish(true);
+            }
+          }
+        });
+      }
+    };
+  }
+
+  private static boolean isRetryable(HttpRequest request, boolean alwaysRetry) {
+    return alwaysRetry || IDEMPOTENT_METHODS.contains(request.getRequestMethod());
+  }
+
+  /**
+   * The API method, circuit breaker and latency histogram of a request's
+   * current attempt, and when the attempt was sent. Batch parts have neither
+   * a breaker nor a histogram.
+   */
+  private static final class Attempt {
+    private final boolean batchPart;
+    String method;
+    private CircuitBreaker breaker;
+    private Metrics.Histogram latency;
+    long startNanos;
+
+    Attempt(boolean batchPart) {
+      this.batchPart = batchPart;
+    }
+
+    void begin(HttpRequest request) {
+      method = methodOf(request);
+      if (!batchPart) {
+        breaker = getCircuitBreaker(method);
+        latency = Metrics.histogram("glassware_mirror_request_seconds", "method", method);
+      }
+    }
+
+    void checkAllowed() throws CircuitBreaker.CircuitOpenException {
+      if (breaker != null) {
+        breaker.checkAllowed();
+      }
+    }
+
+    /**
+     * Records the attempt's latency and tells the breaker how it went.
+     */
+    void finish(boolean succeeded) {
+      if (breaker == null) {
+        return;
+      }
+      latency.recordSince(startNanos);
+      if (succeeded) {
+        breaker.recordSuccess();
+      } else {
+        breaker.recordFailure();
+      }
+    }
+  }
+
+  private static ExponentialBackOff newBackOff() {
+    // The default randomization factor of 0.5 spreads retries out
+    return new ExponentialBackOff.Builder().setInitialIntervalMillis(250)
+        .setMaxIntervalMillis(4000).setMaxElapsedTimeMillis(RETRY_MAX_ELAPSED_MILLIS).build();
+  }
+
+  private static CircuitBreaker getCircuitBreaker(String method) {
+    CircuitBreaker breaker = CIRCUIT_BREAKERS.get(method);
+    if (breaker == null) {
+      final CircuitBreaker created =
+          new CircuitBreaker(method, CIRCUIT_FAILURE_THRESHOLD, CIRCUIT_OPEN_MILLIS);
+      breaker = CIRCUIT_BREAKERS.putIfAbsent(method, created);
+      if (breaker == null) {
+        breaker = created;
+        Metrics.gauge(new Metrics.Gauge() {
+          public double getValue() {
+            return created.getState() == CircuitBreaker.State.CLOSED ? 0 : 1;
+          }
+        }, "glassware_mirror_circuit_open", "method", method);
+      }
+    }
+    return breaker;
+  }
+
+  /**
+   * Returns the circuit breakers created so far, one per endpoint.
+   */
+  public static Collection<CircuitBreaker> getCircuitBreakers() {
+    return Collections.unmodifiableCollection(CIRCUIT_BREAKERS.values());
+  }
+
+  /**
+   * A read that is safe to send twice at once.
+   */
+  private interface HedgeableRead<T> {
+    /**
+     * @param sent to be counted down once the request is sent, e.g. by
+     *             passing it to {@link #getHedgeableMirror}
+     */
+    T execute(CountDownLatch sent) throws IOException;
+  }
+
+  private static Mirror getHedgeableMirror(Credential credential, RateLimiter.Priority priority,
+      CountDownLatch sent) {
+    return newMirrorBuilder(newRequestInitializer(credential, priority, RateLimiter.Mode.WAIT,
+        false, false, sent)).build();
+  }
+
+  /**
+   * Runs a read, and if it hasn't finished within the hedge delay of being
+   * sent, runs it a second time in parallel and returns whichever finishes
+   * first. This trims the latency tail at the cost of a few extra calls. Time
+   * spent waiting for the rate limiter doesn't count, and background reads,
+   * which no one is waiting on, are never hedged.
+   */
+  private static <T> T executeHedged(final HedgeableRead<T> read, RateLimiter.Priority priority)
+      throws IOException {
+    final CountDownLatch sent = new CountDownLatch(1);
+    Callable<T> task = new Callable<T>() {
+      public T call() throws IOException {
+        try {
+          return read.execute(sent);
+        } finally {
+          // Don't leave the hedge waiting on an attempt that failed unsent
+          sent.countDown();
+        }
+      }
+    };
+    if (HEDGE_DELAY_MILLIS <= 0 || priority == RateLimiter.Priority.BACKGROUND) {
+      return call(task);
+    }
+    CompletionService<T> completion = new ExecutorCompletionService<T>(HEDGE_EXECUTOR);
+    List<Future<T>> attempts = new ArrayList<Future<T>>(2);
+    try {
+      try {
+        attempts.add(completion.submit(task));
+      } catch (RejectedExecutionException e) {
+        return call(task);
+      }
+      sent.await();
+      Future<T> done = completion.poll(HEDGE_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+      if (done == null) {
+        try {
+          attempts.add(completion.submit(task));
+        } catch (RejectedExecutionException e) {
+          // No thread to spare; just wait for the first attempt
+        }
+      }
+      ExecutionException failure = null;
+      for (int remaining = attempts.size(); remaining > 0; remaining--) {
+        if (done == null) {
+          done = completion.take();
+        }
+        try {
+          return done.get();
+        } catch (ExecutionException e) {
+          failure = e;
+          done = null;
+        }
+      }
+      throw unwrap(failure);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while waiting for Mirror", e);
+    } finally {
+      for (Future<T> attempt : attempts) {
+        attempt.cancel(true);
+      }
+    }
+  }
+
+  private static <T> T call(Callable<T> read) throws IOException {
+    try {
+      return read.call();
+    } catch (IOException e) {
+      throw e;
+    } catch (RuntimeException e) {
+      throw e;
+    } catch (Exception e) {
+      throw new IOException(e);
+    }
+  }
+
+  private static IOException unwrap(ExecutionException e) {
+    Throwable cause = e.getCause();
+    if (cause instanceof IOException) {
+      return (IOException) cause;
+    }
+    if (cause instanceof RuntimeException) {
+      throw (RuntimeException) cause;
+    }
+    return new IOException(cause);
+  }
+
+  /**
+   * Identifies the user a credential belongs to, for rate limiting, by a hash
+   * of its refresh token, which lasts as long as the user's grant does and
+   * shouldn't be kept in memory any longer than the credential is. Returns null
+   * for a credential without one; its access token changes hourly, so its
+   * calls only count against the method limits and the quota.
+   */
+  static String userKeyOf(Credential credential) {
+    String refreshToken = credential.getRefreshToken();
+    return refreshToken == null
+        ? null : Hashing.sha256().hashString(refreshToken, Charsets.UTF_8).toString();
+  }
+
+  /**
+   * Names the API method a request calls by its HTTP method and the
+   * collection it addresses, e.g. "POST timeline".
+   */
+  private static String methodOf(HttpRequest request) {
+    List<String> path = request.getUrl().getPathParts();
+    int version = path == null ? -1 : path.indexOf("v1");
+    String collection =
+        version >= 0 && version + 1 < path.size() ? path.get(version + 1) : "other";
+    return request.getRequestMethod() + " " + collection;
   }
 
   public static Contact insertContact(Credential credential, Contact contact) throws IOException {
@@ -69,7 +538,10 @@ public class MirrorClient {
       Mirror.Contacts contacts = getMirror(credential).contacts();
       return contacts.get(id).execute();
     } catch (GoogleJsonResponseException e) {
-      LOG.warning("Could not find contact with ID " + id);
+      if (e.getStatusCode() != HttpStatusCodes.STATUS_CODE_NOT_FOUND) {
+        throw e;
+      }
+      LOG.info("Could not find contact with ID " + id);
       return null;
     }
   }
@@ -90,7 +562,16 @@ public class MirrorClient {
   public static Subscription insertSubscription(Credential credential, String callbackUrl,
       String userId, String collection) throws IOException {
     LOG.info("Attempting to subscribe verify_token " + userId + " with callback " + callbackUrl);
+    return getMirror(credential).subscriptions()
+        .insert(newSubscription(callbackUrl, userId, collection)).execute();
+  }
 
+  /**
+   * Returns a subscription to {@code collection} that notifies {@code
+   * callbackUrl} with {@code userId} as the user token.
+   */
+  public static Subscription newSubscription(String callbackUrl, String userId,
+      String collection) {
     // Rewrite "appspot.com" to "Appspot.com" as a workaround for
     // http://b/6909300.
     callbackUrl = callbackUrl.replace("appspot.com", "Appspot.com");
@@ -100,8 +581,7 @@ public class MirrorClient {
     subscription.setCollection(collection);
     subscription.setCallbackUrl(callbackUrl);
     subscription.setUserToken(userId);
-
-    return getMirror(credential).subscriptions().insert(subscription).execute();
+    return subscription;
   }
 
   /**
@@ -113,10 +593,41 @@ public class MirrorClient {
 
   public static SubscriptionsListResponse listSubscriptions(Credential credential)
       throws IOException {
-    Mirror.Subscriptions subscriptions = getMirror(credential).subscriptions();
+    return listSubscriptions(credential, RateLimiter.Priority.INTERACTIVE);
+  }
+
+  /**
+   * Lists a user's subscriptions, rate limited at the given priority.
+   */
+  public static SubscriptionsListResponse listSubscriptions(Credential credential,
+      RateLimiter.Priority priority) throws IOException {
+    Mirror.Subscriptions subscriptions =
+        getMirror(credential, priority, RateLimiter.Mode.WAIT).subscriptions();
     return subscriptions.list().execute();
   }
 
+  /**
+   * Gets a timeline item. The read is hedged, so a slow response from Mirror
+   * rarely holds the caller up for long.
+   */
+  public static TimelineItem getTimelineItem(Credential credential, String itemId)
+      throws IOException {
+    return getTimelineItem(credential, itemId, RateLimiter.Priority.INTERACTIVE);
+  }
+
+  /**
+   * Gets a timeline item, rate limited at the given priority. Only interactive
+   * reads are hedged.
+   */
+  public static TimelineItem getTimelineItem(final Credential credential, final String itemId,
+      final RateLimiter.Priority priority) throws IOException {
+    return executeHedged(new HedgeableRead<TimelineItem>() {
+      public TimelineItem execute(CountDownLatch sent) throws IOException {
+        return getHedgeableMirror(credential, priority, sent).timeline().get(itemId).execute();
+      }
+    }, priority);
+  }
+
   /**
    * Inserts a simple timeline item.
    *
@@ -156,26 +667,69 @@ public class MirrorClient {
    */
   public static void insertTimelineItem(Credential credential, TimelineItem item,
       String attachmentContentType, InputStream attachmentInputStream) throws IOException {
-    insertTimelineItem(credential, item, attachmentContentType,
-        ByteStreams.toByteArray(attachmentInputStream));
+    // Attachments that fit in one chunk go up in a single request. Anything
+    // bigger is streamed in resumable chunks, so at most a chunk or two is ever
+    // held in memory no matter how large the attachment is.
+    byte[] firstChunk = new byte[UPLOAD_CHUNK_SIZE];
+    int read = ByteStreams.read(attachmentInputStream, firstChunk, 0, firstChunk.length);
+    if (read < firstChunk.length) {
+      getMirror(credential).timeline()
+          .insert(item, new ByteArrayContent(attachmentContentType, firstChunk, 0, read))
+          .execute();
+      return;
+    }
+
+    InputStream content = new SequenceInputStream(new ByteArrayInputStream(firstChunk),
+        attachmentInputStream);
+    Mirror.Timeline.Insert insert = newUploadMirror(credential).timeline()
+        .insert(item, new InputStreamContent(attachmentContentType, content));
+    insert.getMediaHttpUploader().setDirectUploadEnabled(false).setChunkSize(UPLOAD_CHUNK_SIZE);
+    insert.execute();
+  }
+
+  /**
+   * Returns a Mirror service whose requests retry with exponential backoff
+   * after I/O errors and server errors. A resumable upload uses this to resend
+   * a failed chunk from where the server says it left off, rather than failing
+   * the whole upload.
+   */
+  private static Mirror newUploadMirror(Credential credential) {
+    return newMirrorBuilder(newRequestInitializer(credential, RateLimiter.Priority.INTERACTIVE,
+        RateLimiter.Mode.WAIT, true, false, null)).build();
+  }
+
+  public static Attachment getAttachmentMetadata(final Credential credential,
+      final String timelineItemId, final String attachmentId) throws IOException {
+    return executeHedged(new HedgeableRead<Attachment>() {
+      public Attachment execute(CountDownLatch sent) throws IOException {
+        Mirror.Timeline.Attachments attachments =
+            getHedgeableMirror(credential, RateLimiter.Priority.INTERACTIVE, sent).timeline()
+                .attachments();
+        return attachments.get(timelineItemId, attachmentId).execute();
+      }
+    }, RateLimiter.Priority.INTERACTIVE);
   }
 
   public static InputStream getAttachmentInputStream(Credential credential, String timelineItemId,
       String attachmentId) throws IOException {
-    Mirror mirrorService = getMirror(credential);
-    Mirror.Timeline.Attachments attachments = mirrorService.timeline().attachments();
-    Attachment attachmentMetadata = attachments.get(timelineItemId, attachmentId).execute();
+    return getAttachmentInputStream(credential,
+        getAttachmentMetadata(credential, timelineItemId, attachmentId));
+  }
+
+  /**
+   * Downloads an attachment whose metadata has already been fetched.
+   */
+  public static InputStream getAttachmentInputStream(Credential credential,
+      Attachment attachmentMetadata) throws IOException {
     HttpResponse resp =
-        mirrorService.getRequestFactory()
+        getMirror(credential).getRequestFactory()
             .buildGetRequest(new GenericUrl(attachmentMetadata.getContentUrl())).execute();
     return resp.getContent();
   }
 
   public static String getAttachmentContentType(Credential credential, String timelineItemId,
       String attachmentId) throws IOException {
-    Mirror.Timeline.Attachments attachments = getMirror(credential).timeline().attachments();
-    Attachment attachmentMetadata = attachments.get(timelineItemId, attachmentId).execute();
-    return attachmentMetadata.getContentType();
+    return getAttachmentMetadata(credential, timelineItemId, attachmentId).getContentType();
   }
 
   public static void deleteTimelineItem(Credential credential, String timelineItemId) throws IOException {
@@ -16,27 +16,115 @@
 package com.google.glassware;
 
 import com.google.api.client.auth.oauth2.Credential;
-import com.google.api.client.googleapis.json.GoogleJsonResponseException;
+import com.google.api.client.googleapis.batch.BatchRequest;
+import com.google.api.client.googleapis.batch.json.JsonBatchCallback;
+import com.google.api.client.googleapis.json.GoogleJsonError;
+import com.google.api.client.http.HttpHeaders;
+import com.google.api.client.http.HttpStatusCodes;
+import com.google.api.services.mirror.Mirror;
 import com.google.api.services.mirror.model.Command;
 import com.google.api.services.mirror.model.Contact;
 import com.google.api.services.mirror.model.NotificationConfig;
 import com.google.api.services.mirror.model.Subscription;
 import com.google.api.services.mirror.model.TimelineItem;
+import com.google.common.base.Charsets;
+import com.google.common.base.Splitter;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.google.common.io.Files;
 
+import java.io.File;
 import java.io.IOException;
+import java.io.Writer;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import javax.servlet.http.HttpServletRequest;
 
 /**
  * Utility functions used when users first authenticate with this service
+ * <p/>
+ * Bootstrapping happens in the background, off the login path. The steps a
+ * user still needs are sent to Mirror as one batch request. Each step that
+ * succeeds is remembered for the user, so returning users cost nothing and
+ * only failed steps are sent again. Transient failures are retried with
+ * exponential backoff; a step Mirror refuses outright, such as a subscription
+ * whose callback isn't HTTPS, is left until the user next logs in.
+ * <p/>
+ * Tuning is done with system properties:
+ * <ul>
+ * <li>{@code glassware.bootstrap.threads} - users bootstrapped at once</li>
+ * <li>{@code glassware.bootstrap.maxAttempts} - tries before giving up until
+ * the next login</li>
+ * <li>{@code glassware.bootstrap.retryMillis} - wait before the first retry,
+ * doubled for each one after that</li>
+ * <li>{@code glassware.bootstrap.stateFile} - where finished steps are kept
+ * across restarts; defaults to a file in {@code glassware.credentialStore.dir}
+ * if that is set, otherwise they are kept in memory only</li>
+ * <li>{@code glassware.bootstrap.compactLines} - state file lines before it is
+ * first rewritten with only the current state; after that, it is rewritten
+ * whenever it doubles</li>
+ * </ul>
  *
  * @author Jenny Murphy - http://google.com/+JennyMurphy
  */
 public class NewUserBootstrapper {
   private static final Logger LOG = Logger.getLogger(NewUserBootstrapper.class.getSimpleName());
 
+  /**
+   * The things done for every user.
+   */
+  public enum Step {
+    CONTACT, SUBSCRIPTION, WELCOME
+  }
+
+  private static final int THREADS = Integer.getInteger("glassware.bootstrap.threads", 4);
+  private static final int MAX_ATTEMPTS = Integer.getInteger("glassware.bootstrap.maxAttempts", 5);
+  private static final long RETRY_MILLIS = Long.getLong("glassware.bootstrap.retryMillis", 1000);
+  private static final long MAX_RETRY_MILLIS = 5 * 60 * 1000;
+  private static final File STATE_FILE = stateFile();
+  private static final int MIN_COMPACT_LINES =
+      Integer.getInteger("glassware.bootstrap.compactLines", 10000);
+
+  private static final ScheduledExecutorService executor =
+      new ScheduledThreadPoolExecutor(THREADS, Threads.newThreadFactory("bootstrap-%d"));
+  private static final Random random = new Random();
+
+  /**
+   * Lines in the state file, and how many it may have before it is compacted.
+   * Guarded by {@code stateFileLock}.
+   */
+  private static int stateFileLines;
+  private static int compactAtLines = MIN_COMPACT_LINES;
+
+  /**
+   * Steps finished for each user.
+   */
+  private static final ConcurrentMap<String, Set<Step>> finished = loadFinishedSteps();
+
+  /**
+   * Users being bootstrapped right now, so that a second login doesn't start
+   * a second run and send two welcome cards.
+   */
+  private static final Set<String> running =
+      Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+  /**
+   * Guards appends to the state file and its compaction.
+   */
+  private static final Object stateFileLock = new Object();
+
   /**
    * Bootstrap a new user. Do all of the typical actions for a new user:
    * <ul>
@@ -44,39 +132,308 @@ public class NewUserBootstrapper {
    * <li>Inserting a contact</li>
    * <li>Sending the user a welcome message</li>
    * </ul>
+   * Returns at once; the work is done in the background, and only the steps
+   * this user hasn't finished yet are done.
    */
-  public static void bootstrapNewUser(HttpServletRequest req, String userId) throws IOException {
-    Credential credential = AuthUtil.newAuthorizationCodeFlow().loadCredential(userId);
-
-    // Create contact
-    Contact starterProjectContact = new Contact();
-    starterProjectContact.setId(MainServlet.CONTACT_ID);
-    starterProjectContact.setDisplayName(MainServlet.CONTACT_NAME);
-    starterProjectContact.setImageUrls(Lists.newArrayList(WebUtil.buildUrl(req,
-        "/static/images/chipotle-tube-640x360.jpg")));
-    starterProjectContact.setAcceptCommands(Lists.newArrayList(
-        new Command().setType("TAKE_A_NOTE")));
-    Contact insertedContact = MirrorClient.insertContact(credential, starterProjectContact);
-    LOG.info("Bootstrapper inserted contact " + insertedContact.getId() + " for user " + userId);
+  public static void bootstrapNewUser(HttpServletRequest req, String userId) {
+    Set<Step> steps = getRemainingSteps(userId);
+    if (steps.isEmpty()) {
+      LOG.fine("User " + userId + " is already bootstrapped");
+      return;
+    }
+    if (!running.add(userId)) {
+      LOG.fine("User " + userId + " is already being bootstrapped");
+      return;
+    }
+    schedule(new Job(userId, WebUtil.buildUrl(req, "/static/images/chipotle-tube-640x360.jpg"),
+        WebUtil.buildUrl(req, "/notify")), 0);
+  }
 
+  /**
+   * Returns the steps not yet done for a user.
+   */
+  public static Set<Step> getRemainingSteps(String userId) {
+    Set<Step> done = finished.get(userId);
+    return done == null
+        ? EnumSet.allOf(Step.class) : EnumSet.complementOf(EnumSet.copyOf(done));
+  }
+
+  /**
+   * Forgets what was done for a user, so that everything is done again on
+   * their next login. Call this when a user revokes access, which removes
+   * this app's contact, subscriptions and cards.
+   */
+  public static void forget(String userId) {
+    if (userId != null && finished.remove(userId) != null) {
+      appendToStateFile(userId + " -");
+    }
+  }
+
+  public static void shutdown() {
+    executor.shutdownNow();
+  }
+
+  private static void schedule(Job job, long delayMillis) {
     try {
-      // Subscribe to timeline updates
-      Subscription subscription =
-          MirrorClient.insertSubscription(credential, WebUtil.buildUrl(req, "/notify"), userId,
-              "timeline");
-      LOG.info("Bootstrapper inserted subscription " + subscription
-          .getId() + " for user " + userId);
-    } catch (GoogleJsonResponseException e) {
-      LOG.warning("Failed to create timeline subscription. Might be running on "
-          + "localhost. Details:" + e.getDetails().toPrettyString());
-    }
-
-    // Send welcome timeline item
-    TimelineItem timelineItem = new TimelineItem();
-    timelineItem.setText("Welcome to the Glass Java Quick Start");
-    timelineItem.setNotification(new NotificationConfig().setLevel("DEFAULT"));
-    TimelineItem insertedItem = MirrorClient.insertTimelineItem(credential, timelineItem);
-    LOG.info("Bootstrapper inserted welcome message " + insertedItem.getId() + " for user "
-        + userId);
+      executor.schedule(job, delayMillis, TimeUnit.MILLISECONDS);
+    } catch (RejectedExecutionException e) {
+      running.remove(job.userId);
+    }
+  }
+
+  /**
+   * One attempt at the steps a user still needs.
+   */
+  private static final class Job implements Runnable {
+    private final String userId;
+    private final String contactImageUrl;
+    private final String callbackUrl;
+    private int attempt;
+
+    Job(String userId, String contactImageUrl, String callbackUrl) {
+      this.userId = userId;
+      this.contactImageUrl = contactImageUrl;
+      this.callbackUrl = callbackUrl;
+    }
+
+    public void run() {
+      attempt++;
+      Outcome outcome = new Outcome();
+      try {
+        send(outcome);
+      } catch (RateLimiter.RateLimitedException e) {
+        outcome.retryAfterMillis = e.getRetryAfterMillis();
+        outcome.retry = true;
+      } catch (IOException e) {
+        LOG.log(Level.INFO, "Bootstrap batch for " + userId + " failed", e);
+        outcome.retry = true;
+      } catch (RuntimeException e) {
+        LOG.log(Level.SEVERE, "Bootstrap for " + userId + " failed", e);
+        outcome.retry = true;
+      }
+
+      if (outcome.retry && attempt < MAX_ATTEMPTS) {
+        long backoff = Math.min(MAX_RETRY_MILLIS, RETRY_MILLIS << (attempt - 1));
+        long jittered = backoff / 2 + (long) (random.nextDouble() * (backoff / 2));
+        long delay = Math.max(outcome.retryAfterMillis, jittered);
+        LOG.info("Retrying bootstrap of " + userId + " in " + delay + "ms");
+        Metrics.counter("glassware_bootstrap_attempts", "result", "retried").incrementAndGet();
+        schedule(this, delay);
+        return;
+      }
+      if (outcome.retry) {
+        LOG.warning("Giving up on bootstrapping " + userId + " after " + attempt
+            + " attempts; will try again on their next login");
+        Metrics.counter("glassware_bootstrap_attempts", "result", "gave_up").incrementAndGet();
+      } else {
+        Metrics.counter("glassware_bootstrap_attempts", "result", "done").incrementAndGet();
+      }
+      running.remove(userId);
+    }
+
+    private void send(Outcome outcome) throws IOException {
+      Set<Step> steps = getRemainingSteps(userId);
+      if (steps.isEmpty()) {
+        return;
+      }
+      Credential credential = AuthUtil.getCredential(userId);
+      if (credential == null) {
+        LOG.info("No credential for " + userId + ". Not bootstrapping them.");
+        return;
+      }
+      Mirror glass = MirrorClient.getBatchMirror(credential, RateLimiter.Priority.BACKGROUND,
+          RateLimiter.Mode.WAIT);
+      BatchRequest batch = MirrorClient.getMirror(null).batch();
+
+      if (steps.contains(Step.CONTACT)) {
+        Contact contact = new Contact();
+        contact.setId(MainServlet.CONTACT_ID);
+        contact.setDisplayName(MainServlet.CONTACT_NAME);
+        contact.setImageUrls(Lists.newArrayList(contactImageUrl));
+        contact.setAcceptCommands(Lists.newArrayList(new Command().setType("TAKE_A_NOTE")));
+        glass.contacts().insert(contact)
+            .queue(batch, new StepCallback<Contact>(userId, Step.CONTACT, outcome));
+      }
+      if (steps.contains(Step.SUBSCRIPTION)) {
+        Subscription subscription =
+            MirrorClient.newSubscription(callbackUrl, userId, "timeline");
+        glass.subscriptions().insert(subscription)
+            .queue(batch, new StepCallback<Subscription>(userId, Step.SUBSCRIPTION, outcome));
+      }
+      if (steps.contains(Step.WELCOME)) {
+        TimelineItem timelineItem = new TimelineItem();
+        timelineItem.setText("Welcome to the Glass Java Quick Start");
+        timelineItem.setNotification(new NotificationConfig().setLevel("DEFAULT"));
+        glass.timeline().insert(timelineItem)
+            .queue(batch, new StepCallback<TimelineItem>(userId, Step.WELCOME, outcome));
+      }
+      batch.execute();
+    }
+  }
+
+  /**
+   * What came of one attempt.
+   */
+  private static final class Outcome {
+    volatile boolean retry;
+    volatile long retryAfterMillis;
+  }
+
+  /**
+   * Records the outcome of one step in a bootstrap batch.
+   */
+  private static final class StepCallback<T> extends JsonBatchCallback<T> {
+    private final String userId;
+    private final Step step;
+    private final Outcome outcome;
+
+    StepCallback(String userId, Step step, Outcome outcome) {
+      this.userId = userId;
+      this.step = step;
+      this.outcome = outcome;
+    }
+
+    @Override
+    public void onSuccess(T result, HttpHeaders headers) {
+      LOG.info("Bootstrapper finished " + step + " for user " + userId);
+      markFinished(userId, step);
+    }
+
+    @Override
+    public void onFailure(GoogleJsonError error, HttpHeaders headers) {
+      if (isTransient(error.getCode())) {
+        LOG.info("Bootstrap step " + step + " for " + userId + " failed; will retry: "
+            + error.getMessage());
+        outcome.retry = true;
+      } else {
+        LOG.warning("Bootstrap step " + step + " for " + userId + " was refused. Might be "
+            + "running on localhost. Details: " + error.getMessage());
+      }
+    }
+  }
+
+  private static boolean isTransient(int statusCode) {
+    return statusCode >= HttpStatusCodes.STATUS_CODE_SERVER_ERROR
+        || statusCode == 429 || statusCode == 408;
+  }
+
+  private static void markFinished(String userId, Step step) {
+    while (true) {
+      Set<Step> done = finished.get(userId);
+      if (done == null) {
+        if (finished.putIfAbsent(userId, Sets.immutableEnumSet(step)) == null) {
+          break;
+        }
+      } else if (done.contains(step)) {
+        return;
+      } else {
+        Set<Step> updated = EnumSet.copyOf(done);
+        updated.add(step);
+        if (finished.replace(userId, done, Sets.immutableEnumSet(updated))) {
+          break;
+        }
+      }
+    }
+    appendToStateFile(userId + " " + step);
+  }
+
+  private static File stateFile() {
+    String path = System.getProperty("glassware.bootstrap.stateFile");
+    if (path != null) {
+      return new File(path);
+    }
+    String directory = System.getProperty("glassware.credentialStore.dir");
+    return directory == null ? null : new File(directory, "bootstrap.log");
+  }
+
+  /**
+   * Replays the state file: each line is a user ID and either a finished step
+   * or "-" for a user who was forgotten.
+   */
+  private static ConcurrentMap<String, Set<Step>> loadFinishedSteps() {
+    ConcurrentMap<String, Set<Step>> steps = new ConcurrentHashMap<String, Set<Step>>();
+    if (STATE_FILE == null || !STATE_FILE.isFile()) {
+      return steps;
+    }
+    try {
+      String contents = Files.toString(STATE_FILE, Charsets.UTF_8);
+      for (String line : Splitter.on('\n').omitEmptyStrings().split(contents)) {
+        stateFileLines++;
+        int space = line.lastIndexOf(' ');
+        if (space <= 0) {
+          continue;
+        }
+        String userId = line.substring(0, space);
+        String value = line.substring(space + 1);
+        if (value.equals("-")) {
+          steps.remove(userId);
+          continue;
+        }
+        try {
+          Step step = Step.valueOf(value);
+          Set<Step> done = steps.get(userId);
+          Set<Step> updated = done == null ? EnumSet.of(step) : EnumSet.copyOf(done);
+          updated.add(step);
+          steps.put(userId, Sets.immutableEnumSet(updated));
+        } catch (IllegalArgumentException e) {
+          // A torn or unknown line; skip it
+        }
+      }
+      if (!contents.isEmpty() && !contents.endsWith("\n")) {
+        // A crash tore the last line; end it, or the next append joins onto it
+        Files.append("\n", STATE_FILE, Charsets.UTF_8);
+      }
+      LOG.info("Loaded bootstrap state for " + steps.size() + " users from " + STATE_FILE);
+    } catch (IOException e) {
+      LOG.log(Level.WARNING, "Could not read bootstrap state from " + STATE_FILE, e);
+    }
+    return steps;
+  }
+
+  private static void appendToStateFile(String line) {
+    if (STATE_FILE == null) {
+      return;
+    }
+    synchronized (stateFileLock) {
+      try {
+        Files.append(line + "\n", STATE_FILE, Charsets.UTF_8);
+        if (++stateFileLines > compactAtLines) {
+          compactStateFile();
+        }
+      } catch (IOException e) {
+        LOG.log(Level.WARNING, "Could not record bootstrap state in " + STATE_FILE, e);
+      }
+    }
+  }
+
+  /**
+   * Rewrites the state file with one line per finished step, dropping steps
+   * that were since forgotten. Every change to {@code finished} is made before
+   * its line is appended, so a line appended after this is still correct when
+   * replayed over the rewritten file.
+   */
+  private static void compactStateFile() throws IOException {
+    File tmp = new File(STATE_FILE.getPath() + ".tmp");
+    int lines = 0;
+    Writer out = Files.newWriter(tmp, Charsets.UTF_8);
+    try {
+      for (Map.Entry<String, Set<Step>> entry : finished.entrySet()) {
+        for (Step step : entry.getValue()) {
+          out.write(entry.getKey() + " " + step + "\n");
+          lines++;
+        }
+      }
+    } finally {
+      out.close();
+    }
+    if (!tmp.renameTo(STATE_FILE)) {
+      // Windows won't rename over an existing file
+      if (!STATE_FILE.delete() || !tmp.renameTo(STATE_FILE)) {
+        throw new IOException("Could not replace " + STATE_FILE);
+      }
+    }
+    LOG.info("Compacted bootstrap state from " + stateFileLines + " to " + lines + " lines");
+    stateFileLines = lines;
+    compactAtLines = Math.max(MIN_COMPACT_LINES, 2 * lines);
   }
 }
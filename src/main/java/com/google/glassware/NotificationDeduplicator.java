@@ -0,0 +1,96 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.glassware;
+
+import com.google.api.services.mirror.model.Notification;
+import com.google.api.services.mirror.model.UserAction;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Remembers recently seen notifications so that ones Mirror redelivers are
+ * dropped instead of being acted on twice. A notification is identified by its
+ * user token, collection, item ID, operation and user actions.
+ * <p/>
+ * Memory is bounded both by the number of notifications remembered and by how
+ * long each one is remembered for.
+ */
+public class NotificationDeduplicator {
+  private final Cache<String, Boolean> seen;
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+
+  /**
+   * @param windowMillis how long a notification is remembered
+   * @param maxEntries   most notifications remembered at once
+   */
+  public NotificationDeduplicator(long windowMillis, long maxEntries) {
+    seen = CacheBuilder.newBuilder().maximumSize(maxEntries)
+        .expireAfterWrite(windowMillis, TimeUnit.MILLISECONDS).build();
+  }
+
+  /**
+   * Records a notification and returns true if it had not been seen within the
+   * window, or false if it is a duplicate that should be dropped.
+   */
+  public boolean markFirstDelivery(Notification notification) {
+    if (seen.asMap().putIfAbsent(keyOf(notification), Boolean.TRUE) == null) {
+      misses.incrementAndGet();
+      return true;
+    }
+    hits.incrementAndGet();
+    return false;
+  }
+
+  /**
+   * Forgets a notification, so that a redelivery of it will be processed. Use
+   * this when a notification was recorded but could not be accepted.
+   */
+  public void forget(Notification notification) {
+    seen.invalidate(keyOf(notification));
+  }
+
+  /**
+   * Returns the number of duplicates dropped.
+   */
+  public long getHitCount() {
+    return hits.get();
+  }
+
+  /**
+   * Returns the number of notifications seen for the first time.
+   */
+  public long getMissCount() {
+    return misses.get();
+  }
+
+  private static String keyOf(Notification notification) {
+    StringBuilder key = new StringBuilder()
+        .append(notification.getUserToken()).append('\n')
+        .append(notification.getCollection()).append('\n')
+        .append(notification.getItemId()).append('\n')
+        .append(notification.getOperation());
+    if (notification.getUserActions() != null) {
+      for (UserAction userAction : notification.getUserActions()) {
+        key.append('\n').append(userAction.getType()).append(':').append(userAction.getPayload());
+      }
+    }
+    return key.toString();
+  }
+}
@@ -0,0 +1,176 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.glassware;
+
+import com.google.api.client.json.JsonFactory;
+import com.google.api.services.mirror.model.Notification;
+import com.google.common.base.Charsets;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Parses notification payloads straight from the request stream, refusing
+ * anything larger than a fixed number of bytes.
+ * <p/>
+ * The raw payload is only buffered when FINE logging is enabled for this
+ * class, and then into a pooled buffer rather than a fresh one per request.
+ */
+public class NotificationParser {
+  private static final Logger LOG = Logger.getLogger(NotificationParser.class.getSimpleName());
+
+  /**
+   * No notification would ever be this long. Something is very wrong.
+   */
+  public static final int DEFAULT_MAX_BYTES =
+      Integer.getInteger("glassware.notify.maxPayloadBytes", 64 * 1024);
+
+  private static final int MAX_POOLED_BUFFERS = 16;
+
+  private final JsonFactory jsonFactory;
+  private final int maxBytes;
+  private final Queue<PayloadBuffer> buffers = new ConcurrentLinkedQueue<PayloadBuffer>();
+
+  public NotificationParser(JsonFactory jsonFactory, int maxBytes) {
+    this.jsonFactory = jsonFactory;
+    this.maxBytes = maxBytes;
+  }
+
+  public int getMaxBytes() {
+    return maxBytes;
+  }
+
+  /**
+   * Reads and parses a notification. The stream is consumed and closed.
+   *
+   * @throws PayloadTooLargeException if the stream holds more than the limit
+   */
+  public Notification parse(InputStream in) throws IOException {
+    InputStream boundedIn = new BoundedInputStream(in, maxBytes);
+    if (!LOG.isLoggable(Level.FINE)) {
+      return jsonFactory.fromInputStream(boundedIn, Charsets.UTF_8, Notification.class);
+    }
+
+    PayloadBuffer buffer = buffers.poll();
+    if (buffer == null) {
+      buffer = new PayloadBuffer();
+    }
+    try {
+      buffer.readFrom(boundedIn);
+      LOG.fine("got raw notification " + buffer.toString(Charsets.UTF_8.name()));
+      return jsonFactory.fromInputStream(buffer.asInputStream(), Charsets.UTF_8,
+          Notification.class);
+    } finally {
+      buffer.reset();
+      if (buffers.size() < MAX_POOLED_BUFFERS) {
+        buffers.offer(buffer);
+      }
+    }
+  }
+
+  /**
+   * Thrown when a payload is larger than the parser's limit.
+   */
+  public static class PayloadTooLargeException extends IOException {
+    public PayloadTooLargeException(int maxBytes) {
+      super("Attempted to parse notification payload that was longer than " + maxBytes
+          + " bytes.");
+    }
+  }
+
+  /**
+   * A byte buffer whose backing array can be read without copying.
+   */
+  private static final class PayloadBuffer extends ByteArrayOutputStream {
+    PayloadBuffer() {
+      super(4 * 1024);
+    }
+
+    void readFrom(InputStream in) throws IOException {
+      try {
+        byte[] chunk = new byte[4 * 1024];
+        int read;
+        while ((read = in.read(chunk)) != -1) {
+          write(chunk, 0, read);
+        }
+      } finally {
+        in.close();
+      }
+    }
+
+    InputStream asInputStream() {
+      return new ByteArrayInputStream(buf, 0, count);
+    }
+  }
+
+  /**
+   * Fails once more than a fixed number of bytes have been read.
+   */
+  private static final class BoundedInputStream extends FilterInputStream {
+    private final int maxBytes;
+    private int remaining;
+
+    BoundedInputStream(InputStream in, int maxBytes) {
+      super(in);
+      this.maxBytes = maxBytes;
+      this.remaining = maxBytes;
+    }
+
+    @Override
+    public int read() throws IOException {
+      int b = super.read();
+      if (b != -1) {
+        consume(1);
+      }
+      return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      int read = super.read(b, off, Math.min(len, remaining + 1));
+      if (read > 0) {
+        consume(read);
+      }
+      return read;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+      long skipped = super.skip(Math.min(n, remaining + 1L));
+      consume((int) skipped);
+      return skipped;
+    }
+
+    @Override
+    public boolean markSupported() {
+      return false;
+    }
+
+    private void consume(int bytes) throws PayloadTooLargeException {
+      remaining -= bytes;
+      if (remaining < 0) {
+        throw new PayloadTooLargeException(maxBytes);
+      }
+    }
+  }
+}
@@ -16,22 +16,19 @@
 package com.google.glassware;
 
 import com.google.api.client.auth.oauth2.Credential;
-import com.google.api.client.json.JsonFactory;
-import com.google.api.client.json.jackson2.JacksonFactory;
 import com.google.api.services.mirror.Mirror;
-import com.google.api.services.mirror.model.Location;
 import com.google.api.services.mirror.model.MenuItem;
 import com.google.api.services.mirror.model.Notification;
-import com.google.api.services.mirror.model.NotificationConfig;
 import com.google.api.services.mirror.model.TimelineItem;
 import com.google.api.services.mirror.model.UserAction;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Lists;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.Writer;
+import java.util.List;
+import java.util.Set;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.Random;
 
@@ -54,71 +51,213 @@ public class NotifyServlet extends HttpServlet {
       "<em class='yellow'>Meow...</em>"
   };
 
+  /**
+   * Lanes that process notifications in parallel. A lane blocked on a virtual
+   * thread costs next to nothing, so there are many more of them by default.
+   */
+  private static final int WORKER_THREADS =
+      Integer.getInteger("glassware.notify.threads", Threads.isVirtual() ? 256 : 16);
+  private static final int QUEUE_CAPACITY =
+      Integer.getInteger("glassware.notify.queueCapacity", 1000);
+  private static final long OFFER_TIMEOUT_MILLIS =
+      Long.getLong("glassware.notify.offerTimeoutMillis", 500);
+  private static final KeyedExecutor.OverflowPolicy OVERFLOW_POLICY =
+      KeyedExecutor.OverflowPolicy.valueOf(
+          System.getProperty("glassware.notify.overflowPolicy", "REJECT"));
+  private static final long LOCATION_WINDOW_MILLIS =
+      Long.getLong("glassware.notify.locationWindowMillis", 10 * 1000);
+  private static final int LOCATION_THREADS =
+      Integer.getInteger("glassware.notify.locationThreads", 4);
+  private static final long DEDUP_WINDOW_MILLIS =
+      Long.getLong("glassware.notify.dedupWindowMillis", 10 * 60 * 1000);
+  private static final long DEDUP_MAX_ENTRIES =
+      Long.getLong("glassware.notify.dedupMaxEntries", 100000);
+
+  /**
+   * Values that label notification metrics; anything else is "other".
+   */
+  private static final Set<String> COLLECTIONS = ImmutableSet.of("locations", "timeline");
+  private static final Set<String> ACTION_TYPES = ImmutableSet.of("SHARE", "REPLY", "REPLY_ALL",
+      "DELETE", "PIN", "UNPIN", "LAUNCH", "CUSTOM");
+
+  /**
+   * Processes notifications off the container threads, in order per user.
+   */
+  private KeyedExecutor executor;
+
+  /**
+   * Turns bursts of location notifications into one card update per user.
+   */
+  private LocationCoalescer locationCoalescer;
+
+  /**
+   * Drops notifications that Mirror redelivers.
+   */
+  private final NotificationDeduplicator deduplicator =
+      new NotificationDeduplicator(DEDUP_WINDOW_MILLIS, DEDUP_MAX_ENTRIES);
+
+  private final NotificationParser parser =
+      new NotificationParser(TransportUtil.getJsonFactory(), NotificationParser.DEFAULT_MAX_BYTES);
+
+  @Override
+  public void init() throws ServletException {
+    executor = new KeyedExecutor("notify", WORKER_THREADS, QUEUE_CAPACITY, OVERFLOW_POLICY,
+        OFFER_TIMEOUT_MILLIS);
+    locationCoalescer = new LocationCoalescer(LOCATION_WINDOW_MILLIS, LOCATION_THREADS);
+
+    Metrics.gauge(new Metrics.Gauge() {
+      public double getValue() {
+        return deduplicator.getHitCount();
+      }
+    }, "glassware_notify_dedup", "result", "duplicate");
+    Metrics.gauge(new Metrics.Gauge() {
+      public double getValue() {
+        return deduplicator.getMissCount();
+      }
+    }, "glassware_notify_dedup", "result", "first");
+    Metrics.gauge(new Metrics.Gauge() {
+      public double getValue() {
+        return executor.getRejectedCount();
+      }
+    }, "glassware_notify_rejected");
+  }
+
+  @Override
+  public void destroy() {
+    executor.shutdown(10 * 1000);
+    locationCoalescer.shutdown();
+  }
+
   @Override
   protected void doPost(HttpServletRequest request, HttpServletResponse response)
       throws ServletException, IOException {
-    // Respond with OK and status 200 in a timely fashion to prevent redelivery
-    response.setContentType("text/html");
-    Writer writer = response.getWriter();
-    writer.append("OK");
-    writer.close();
+    // Reject anything that announces itself as too large before reading it
+    if (request.getContentLength() > parser.getMaxBytes()) {
+      LOG.warning("Rejecting notification of " + request.getContentLength() + " bytes.");
+      response.sendError(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE);
+      return;
+    }
+
+    // Parse the notification object straight from the request body
+    Notification notification;
+    try {
+      notification = parser.parse(request.getInputStream());
+    } catch (NotificationParser.PayloadTooLargeException e) {
+      LOG.warning(e.getMessage());
+      response.sendError(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE);
+      return;
+    }
+
+    if (notification.getUserToken() == null || notification.getCollection() == null) {
+      LOG.warning("Notification is missing its user token or collection. Ignoring it.");
+      response.sendError(HttpServletResponse.SC_BAD_REQUEST);
+      return;
+    }
 
-    // Get the notification object from the request body (into a string so we
-    // can log it)
-    BufferedReader notificationReader =
-        new BufferedReader(new InputStreamReader(request.getInputStream()));
-    String notificationString = "";
-
-    // Count the lines as a very basic way to prevent Denial of Service attacks
-    int lines = 0;
-    String line;
-    while ((line = notificationReader.readLine()) != null) {
-      notificationString += line;
-      lines++;
-
-      // No notification would ever be this long. Something is very wrong.
-      if (lines > 1000) {
-        throw new IOException("Attempted to parse notification payload that was unexpectedly long.");
+    LOG.info("Got a notification with ID: " + notification.getItemId());
+
+    // Location notifications all name the item 'latest', so they can't be told
+    // apart; the location coalescer absorbs their repeats instead.
+    if (!notification.getCollection().equals("locations")
+        && !deduplicator.markFirstDelivery(notification)) {
+      // Already handled. Acknowledge it again so Mirror stops redelivering it.
+      LOG.info("Dropping duplicate notification with ID: " + notification.getItemId() + " ("
+          + deduplicator.getHitCount() + " duplicates, " + deduplicator.getMissCount()
+          + " first deliveries so far)");
+      writeOk(response);
+      return;
+    }
+
+    // Hand the notification off so this thread is free for the next request.
+    // Notifications for the same user are processed in the order they arrive.
+    final Notification queuedNotification = notification;
+    final Metrics.Histogram latency = Metrics.histogram("glassware_notify_processing_seconds",
+        "collection", collectionOf(notification), "action", actionOf(notification));
+    KeyedExecutor.DiscardableTask task = new KeyedExecutor.DiscardableTask() {
+      public void run() {
+        long startNanos = System.nanoTime();
+        try {
+          processNotification(queuedNotification);
+        } catch (IOException e) {
+          LOG.log(Level.WARNING, "Failed to process notification with ID: "
+              + queuedNotification.getItemId(), e);
+        } finally {
+          latency.recordSince(startNanos);
+        }
       }
+
+      public void discarded() {
+        // Mirror already has its OK and won't redeliver it, so it is lost; at
+        // least let a redelivery through rather than drop it as a duplicate
+        LOG.warning("Notification queue is full. Discarded notification with ID: "
+            + queuedNotification.getItemId());
+        deduplicator.forget(queuedNotification);
+      }
+    };
+    if (!executor.submit(notification.getUserToken(), task)) {
+      // Shed load. Mirror will redeliver the notification later.
+      LOG.warning("Notification queue is full. Rejecting notification with ID: "
+          + notification.getItemId());
+      deduplicator.forget(notification);
+      response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+      return;
     }
-    notificationReader.close();
 
-    LOG.info("got raw notification " + notificationString);
+    writeOk(response);
+  }
 
-    JsonFactory jsonFactory = new JacksonFactory();
+  private static String collectionOf(Notification notification) {
+    String collection = notification.getCollection();
+    return COLLECTIONS.contains(collection) ? collection : "other";
+  }
 
-    // If logging the payload is not as important, use
-    // jacksonFactory.fromInputStream instead.
-    Notification notification = jsonFactory.fromString(notificationString, Notification.class);
+  /**
+   * Returns the type of the notification's first user action.
+   */
+  private static String actionOf(Notification notification) {
+    List<UserAction> userActions = notification.getUserActions();
+    if (userActions == null || userActions.isEmpty()) {
+      return "none";
+    }
+    String type = userActions.get(0).getType();
+    return ACTION_TYPES.contains(type) ? type : "other";
+  }
 
-    LOG.info("Got a notification with ID: " + notification.getItemId());
+  /**
+   * Respond with OK and status 200 in a timely fashion to prevent redelivery
+   */
+  private static void writeOk(HttpServletResponse response) throws IOException {
+    response.setContentType("text/html");
+    Writer writer = response.getWriter();
+    writer.append("OK");
+    writer.close();
+  }
 
+  /**
+   * Makes the API calls needed to react to a notification. Runs on one of the
+   * executor's worker threads.
+   */
+  private void processNotification(Notification notification) throws IOException {
     // Figure out the impacted user and get their credentials for API calls
     String userId = notification.getUserToken();
-    Credential credential = AuthUtil.getCredential(userId);
-    Mirror mirrorClient = MirrorClient.getMirror(credential);
-
 
     if (notification.getCollection().equals("locations")) {
       LOG.info("Notification of updated location");
-      Mirror glass = MirrorClient.getMirror(credential);
-      // item id is usually 'latest'
-      Location location = glass.locations().get(notification.getItemId()).execute();
-
-      LOG.info("New location is " + location.getLatitude() + ", " + location.getLongitude());
-      MirrorClient.insertTimelineItem(
-          credential,
-          new TimelineItem()
-              .setText("Java Quick Start says you are now at " + location.getLatitude()
-                  + " by " + location.getLongitude())
-              .setNotification(new NotificationConfig().setLevel("DEFAULT")).setLocation(location)
-              .setMenuItems(Lists.newArrayList(new MenuItem().setAction("NAVIGATE"))));
-
       // This is a location notification. Ping the device with a timeline item
-      // telling them where they are.
-    } else if (notification.getCollection().equals("timeline")) {
+      // telling them where they are, once the burst it belongs to is over.
+      locationCoalescer.offer(userId);
+      return;
+    }
+
+    Credential credential = AuthUtil.getCredential(userId);
+    Mirror mirrorClient = MirrorClient.getMirror(credential, RateLimiter.Priority.BACKGROUND,
+        RateLimiter.Mode.WAIT);
+
+    if (notification.getCollection().equals("timeline")) {
       // Get the impacted timeline item
-      TimelineItem timelineItem = mirrorClient.timeline().get(notification.getItemId()).execute();
+      TimelineItem timelineItem =
+          MirrorClient.getTimelineItem(credential, notification.getItemId(),
+              RateLimiter.Priority.BACKGROUND);
       LOG.info("Notification impacted timeline item with ID: " + timelineItem.getId());
 
       // If it was a share, and contains a photo, update the photo's caption to
@@ -150,8 +289,7 @@ public class NotifyServlet extends HttpServlet {
         String utterance = CAT_UTTERANCES[new Random().nextInt(CAT_UTTERANCES.length)];
 
         timelineItem.setText(null);
-        timelineItem.setHtml(makeHtmlForCard("<p class='text-auto-size'>"
-            + "Oh, did you say " + noteText + "? " + utterance + "</p>"));
+        timelineItem.setHtml(CardTemplates.NOTE_REPLY.render(noteText, utterance));
         timelineItem.setMenuItems(Lists.newArrayList(
             new MenuItem().setAction("DELETE")));
 
@@ -161,16 +299,4 @@ public class NotifyServlet extends HttpServlet {
       }
     }
   }
-
-  /**
-   * Wraps some HTML content in article/section tags and adds a footer
-   * identifying the card as originating from the Java Quick Start.
-   *
-   * @param content the HTML content to wrap
-   * @return the wrapped HTML content
-   */
-  private static String makeHtmlForCard(String content) {
-    return "<article class='auto-paginate'>" + content
-        + "<footer><p>Java Quick Start</p></footer></article>";
-  }
 }
@@ -0,0 +1,259 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.glassware;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+
+import java.io.IOException;
+import java.util.Calendar;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Paces calls to the Mirror API so that no single user, and no single API
+ * method, can use up the app's quota.
+ * <p/>
+ * Every call takes a token from its user's bucket and from its method's bucket,
+ * and counts against a daily quota that resets at midnight Pacific time, like
+ * Google's own. Each bucket has its own lock, so calls for different users and
+ * methods never contend with each other.
+ * <p/>
+ * Callers pick what happens when a call isn't allowed yet: {@link Mode#WAIT}
+ * sleeps until it is (up to a limit), and {@link Mode#FAIL_FAST} throws a
+ * {@link RateLimitedException} straight away. Callers that would rather defer
+ * the work use {@code FAIL_FAST} and try again after {@link
+ * RateLimitedException#getRetryAfterMillis()}.
+ * <p/>
+ * {@link Priority#BACKGROUND} calls stop once a share of the daily quota is
+ * used, leaving the rest for interactive users.
+ */
+public class RateLimiter {
+  /**
+   * What to do when a call is over the limit.
+   */
+  public enum Mode {
+    WAIT, FAIL_FAST
+  }
+
+  /**
+   * Whether a person is waiting on the call.
+   */
+  public enum Priority {
+    INTERACTIVE, BACKGROUND
+  }
+
+  private static final TimeZone QUOTA_TIME_ZONE = TimeZone.getTimeZone("America/Los_Angeles");
+
+  private final long maxWaitMillis;
+  private final long dailyQuota;
+  private final long backgroundQuota;
+  private final LoadingCache<String, TokenBucket> userBuckets;
+  private final ConcurrentMap<String, TokenBucket> methodBuckets =
+      new ConcurrentHashMap<String, TokenBucket>();
+  private final double methodPerSecond;
+  private final int methodBurst;
+
+  private final AtomicLong used = new AtomicLong();
+  private final AtomicLong throttled = new AtomicLong();
+  private volatile long quotaResetMillis;
+
+  /**
+   * @param userPerSecond     sustained calls per second for one user
+   * @param userBurst         calls one user can make at once after being idle
+   * @param methodPerSecond   sustained calls per second to one API method
+   * @param methodBurst       calls to one API method that can be made at once
+   * @param dailyQuota        calls allowed per day
+   * @param backgroundPercent share of the daily quota background calls may use
+   * @param maxWaitMillis     longest a {@link Mode#WAIT} call sleeps
+   */
+  public RateLimiter(final double userPerSecond, final int userBurst, double methodPerSecond,
+      int methodBurst, long dailyQuota, int backgroundPercent, long maxWaitMillis) {
+    this.methodPerSecond = methodPerSecond;
+    this.methodBurst = methodBurst;
+    this.dailyQuota = dailyQuota;
+    this.backgroundQuota = dailyQuota * backgroundPercent / 100;
+    this.maxWaitMillis = maxWaitMillis;
+    this.quotaResetMillis = nextQuotaReset(System.currentTimeMillis());
+    this.userBuckets = CacheBuilder.newBuilder().expireAfterAccess(10, TimeUnit.MINUTES)
+        .build(new CacheLoader<String, TokenBucket>() {
+          @Override
+          public TokenBucket load(String user) {
+            return new TokenBucket(userPerSecond, userBurst);
+          }
+        });
+  }
+
+  /**
+   * Waits for, or fails to get, permission to make one call.
+   *
+   * @param user     identifies the user the call is made for, or null if none
+   * @param method   identifies the API method, e.g. "POST timeline"
+   * @throws RateLimitedException if the call is not allowed
+   */
+  public void acquire(String user, String method, Priority priority, Mode mode)
+      throws IOException {
+    long waited = 0;
+    while (true) {
+      long now = System.currentTimeMillis();
+      checkDailyQuota(now, priority);
+
+      TokenBucket userBucket = user == null ? null : userBuckets.getUnchecked(user);
+      long wait = userBucket == null ? 0 : userBucket.tryTake(now);
+      if (wait == 0) {
+        wait = getMethodBucket(method).tryTake(now);
+        if (wait > 0 && userBucket != null) {
+          userBucket.giveBack();
+        }
+      }
+      if (wait == 0) {
+        used.incrementAndGet();
+        return;
+      }
+
+      if (mode == Mode.FAIL_FAST || waited + wait > maxWaitMillis) {
+        throttled.incrementAndGet();
+        throw new RateLimitedException("Rate limit reached for " + method, wait);
+      }
+      try {
+        Thread.sleep(wait);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IOException("Interrupted while waiting for rate limit", e);
+      }
+      waited += wait;
+    }
+  }
+
+  /**
+   * Returns the number of calls made since the daily quota last reset.
+   */
+  public long getDailyUsage() {
+    return used.get();
+  }
+
+  public long getDailyQuota() {
+    return dailyQuota;
+  }
+
+  /**
+   * Returns the number of calls refused so far.
+   */
+  public long getThrottledCount() {
+    return throttled.get();
+  }
+
+  private void checkDailyQuota(long now, Priority priority) throws RateLimitedException {
+    if (now >= quotaResetMillis) {
+      synchronized (this) {
+        if (now >= quotaResetMillis) {
+          used.set(0);
+          quotaResetMillis = nextQuotaReset(now);
+        }
+      }
+    }
+    long limit = priority == Priority.BACKGROUND ? backgroundQuota : dailyQuota;
+    if (used.get() >= limit) {
+      throttled.incrementAndGet();
+      throw new RateLimitedException(
+          "Daily quota used up for " + priority.name().toLowerCase() + " calls",
+          quotaResetMillis - now);
+    }
+  }
+
+  private TokenBucket getMethodBucket(String method) {
+    TokenBucket bucket = methodBuckets.get(method);
+    if (bucket == null) {
+      TokenBucket created = new TokenBucket(methodPerSecond, methodBurst);
+      bucket = methodBuckets.putIfAbsent(method, created);
+      if (bucket == null) {
+        bucket = created;
+      }
+    }
+    return bucket;
+  }
+
+  private static long nextQuotaReset(long now) {
+    Calendar calendar = Calendar.getInstance(QUOTA_TIME_ZONE);
+    calendar.setTimeInMillis(now);
+    calendar.set(Calendar.HOUR_OF_DAY, 0);
+    calendar.set(Calendar.MINUTE, 0);
+    calendar.set(Calendar.SECOND, 0);
+    calendar.set(Calendar.MILLISECOND, 0);
+    calendar.add(Calendar.DAY_OF_MONTH, 1);
+    return calendar.getTimeInMillis();
+  }
+
+  /**
+   * A classic token bucket that refills continuously.
+   */
+  private static final class TokenBucket {
+    private final double tokensPerMilli;
+    private final double capacity;
+    private double tokens;
+    private long lastRefillMillis;
+
+    TokenBucket(double perSecond, int burst) {
+      this.tokensPerMilli = perSecond / 1000;
+      this.capacity = Math.max(1, burst);
+      this.tokens = capacity;
+      this.lastRefillMillis = System.currentTimeMillis();
+    }
+
+    /**
+     * Takes a token and returns 0, or returns how many milliseconds until
+     * one will be available.
+     */
+    synchronized long tryTake(long now) {
+      if (now > lastRefillMillis) {
+        tokens = Math.min(capacity, tokens + (now - lastRefillMillis) * tokensPerMilli);
+        lastRefillMillis = now;
+      }
+      if (tokens >= 1) {
+        tokens -= 1;
+        return 0;
+      }
+      return Math.max(1, (long) Math.ceil((1 - tokens) / tokensPerMilli));
+    }
+
+    synchronized void giveBack() {
+      tokens = Math.min(capacity, tokens + 1);
+    }
+  }
+
+  /**
+   * Thrown when a call to the Mirror API is refused by the rate limiter.
+   */
+  public static class RateLimitedException extends IOException {
+    private final long retryAfterMillis;
+
+    RateLimitedException(String message, long retryAfterMillis) {
+      super(message);
+      this.retryAfterMillis = retryAfterMillis;
+    }
+
+    /**
+     * Returns how long to wait before the call may be allowed.
+     */
+    public long getRetryAfterMillis() {
+      return retryAfterMillis;
+    }
+  }
+}
@@ -54,6 +54,7 @@ public class ReauthFilter implements Filter {
       } catch (TokenResponseException e) {
         if (e.getDetails().getError().contains("invalid_grant")) {
           LOG.warning("User disabled Glassware. Attempting to re-authenticate");
+          NewUserBootstrapper.forget(AuthUtil.getUserId(httpRequest));
           httpResponse.sendRedirect(WebUtil.buildUrl(httpRequest, "/oauth2callback"));
         }
       }
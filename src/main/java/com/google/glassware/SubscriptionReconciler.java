@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.glassware;
+
+import com.google.api.client.auth.oauth2.Credential;
+import com.google.api.services.mirror.Mirror;
+import com.google.api.services.mirror.model.Subscription;
+import com.google.common.base.Objects;
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.ListMultimap;
+import com.google.common.collect.Sets;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Logger;
+
+/**
+ * A {@link BulkJob} that brings each user's subscriptions in line with the
+ * app's current callback URL. Each user should have exactly one timeline
+ * subscription, and at most one subscription to any other collection they
+ * subscribed to. Duplicates and subscriptions pointing somewhere else are
+ * deleted and missing ones inserted; subscriptions that are already right are
+ * left alone, so running the job twice does nothing the second time.
+ * <p/>
+ * Takes one parameter, {@code callbackUrl}, the URL notifications should be
+ * sent to.
+ */
+public class SubscriptionReconciler implements BulkJob {
+  private static final Logger LOG =
+      Logger.getLogger(SubscriptionReconciler.class.getSimpleName());
+
+  public static final String NAME = "reconcileSubscriptions";
+  public static final String CALLBACK_URL = "callbackUrl";
+
+  /**
+   * The collection every user is subscribed to, whether or not they have a
+   * subscription to it now.
+   */
+  private static final String REQUIRED_COLLECTION = "timeline";
+
+  public String getName() {
+    return NAME;
+  }
+
+  public void process(String userId, Map<String, String> parameters) throws IOException {
+    String callbackUrl = parameters.get(CALLBACK_URL);
+    if (callbackUrl == null) {
+      throw new IllegalArgumentException("Missing " + CALLBACK_URL);
+    }
+    Credential credential = AuthUtil.getCredential(userId);
+    if (credential == null) {
+      throw new IOException("No credential");
+    }
+
+    List<Subscription> current =
+        MirrorClient.listSubscriptions(credential, RateLimiter.Priority.BACKGROUND).getItems();
+    ListMultimap<String, Subscription> byCollection = ArrayListMultimap.create();
+    if (current != null) {
+      for (Subscription subscription : current) {
+        byCollection.put(subscription.getCollection(), subscription);
+      }
+    }
+    Set<String> collections = Sets.newLinkedHashSet(byCollection.keySet());
+    collections.add(REQUIRED_COLLECTION);
+
+    Mirror.Subscriptions subscriptions = MirrorClient.getMirror(credential,
+        RateLimiter.Priority.BACKGROUND, RateLimiter.Mode.WAIT).subscriptions();
+    for (String collection : collections) {
+      Subscription wanted = MirrorClient.newSubscription(callbackUrl, userId, collection);
+      Subscription kept = null;
+      for (Subscription subscription : byCollection.get(collection)) {
+        if (kept == null && matches(subscription, wanted)) {
+          kept = subscription;
+        }
+      }
+      // Deletes go first: the Mirror API may give a new subscription the same
+      // ID as an old one to the same collection.
+      for (Subscription subscription : byCollection.get(collection)) {
+        if (subscription != kept && !isSameId(subscription, kept)) {
+          LOG.info("Deleting " + collection + " subscription " + subscription.getId() + " to "
+              + subscription.getCallbackUrl() + " for " + userId);
+          subscriptions.delete(subscription.getId()).execute();
+        }
+      }
+      if (kept == null) {
+        LOG.info("Inserting " + collection + " subscription for " + userId);
+        subscriptions.insert(wanted).execute();
+      }
+    }
+  }
+
+  private static boolean matches(Subscription subscription, Subscription wanted) {
+    return Objects.equal(subscription.getCallbackUrl(), wanted.getCallbackUrl())
+        && Objects.equal(subscription.getUserToken(), wanted.getUserToken());
+  }
+
+  private static boolean isSameId(Subscription subscription, Subscription kept) {
+    return kept != null && Objects.equal(subscription.getId(), kept.getId());
+  }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.glassware;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Runs a group of related calls side by side and treats them as one unit:
+ * {@link #join} waits for all of them, and as soon as one fails the others
+ * are cancelled and its failure is thrown. Closing the scope cancels anything
+ * still running, so an abandoned request doesn't leave calls behind it.
+ * <pre>
+ * TaskScope scope = new TaskScope(executor);
+ * try {
+ *   Future&lt;Contact&gt; contact = scope.fork(...);
+ *   Future&lt;SubscriptionsListResponse&gt; subscriptions = scope.fork(...);
+ *   scope.join();
+ *   return render(contact.get(), subscriptions.get());
+ * } finally {
+ *   scope.close();
+ * }
+ * </pre>
+ * This follows Java 21's structured task scopes, which are still a preview
+ * API, but runs on any executor and any JDK. A scope belongs to the thread
+ * that created it.
+ */
+public class TaskScope {
+  private final Executor executor;
+  private final List<Future<?>> forks = new ArrayList<Future<?>>();
+  private final BlockingQueue<Future<?>> finished = new LinkedBlockingQueue<Future<?>>();
+  private int joined;
+
+  public TaskScope(Executor executor) {
+    this.executor = executor;
+  }
+
+  /**
+   * Starts a call in this scope. Its result can be read once {@link #join}
+   * has returned.
+   */
+  public <T> Future<T> fork(Callable<T> call) {
+    FutureTask<T> fork = new FutureTask<T>(call) {
+      @Override
+      protected void done() {
+        finished.add(this);
+      }
+    };
+    executor.execute(fork);
+    forks.add(fork);
+    return fork;
+  }
+
+  /**
+   * Waits for every forked call to finish. If one fails, cancels the rest
+   * and throws its failure.
+   */
+  public void join() throws IOException {
+    try {
+      for (; joined < forks.size(); joined++) {
+        Future<?> fork = finished.take();
+        if (!fork.isCancelled()) {
+          fork.get();
+        }
+      }
+    } catch (InterruptedException e) {
+      close();
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while waiting for forked calls", e);
+    } catch (ExecutionException e) {
+      close();
+      Throwable cause = e.getCause();
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      }
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+      throw new IOException("Forked call failed", cause);
+    }
+  }
+
+  /**
+   * Cancels every forked call that hasn't finished.
+   */
+  public void close() {
+    for (Future<?> fork : forks) {
+      fork.cancel(true);
+    }
+  }
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.glassware;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Creates the threads that make blocking calls to Mirror and other remote
+ * services.
+ * <p/>
+ * When the app is built with the {@code virtual-threads} Maven profile, which
+ * needs Java 21 or later, these are virtual threads. A virtual thread blocked
+ * on the network costs a few hundred bytes rather than a platform thread's
+ * stack, so pools whose size only exists to cap the number of platform threads
+ * start a new thread per task instead. Pools whose size is a deliberate limit,
+ * such as notification lanes, keep their size but run on virtual threads too.
+ * In the default build, or when turned off, these are ordinary daemon threads.
+ * <p/>
+ * Code that runs on these threads should not use thread locals to carry state
+ * between calls, and should not hold a monitor across a network call, since
+ * that pins a virtual thread to its carrier on Java 21.
+ * <p/>
+ * Tuning is done with system properties:
+ * <ul>
+ * <li>{@code glassware.threads.virtual} - set to false to use platform threads
+ * even when virtual threads are available</li>
+ * </ul>
+ */
+public class Threads {
+  private static final Logger LOG = Logger.getLogger(Threads.class.getSimpleName());
+
+  private static final String VIRTUAL_THREADS_CLASS = "com.google.glassware.VirtualThreads";
+
+  /**
+   * What the virtual-threads build adds, implemented by {@code VirtualThreads}
+   * in src/main/java21.
+   */
+  interface VirtualThreadSupport {
+    ThreadFactory newThreadFactory();
+
+    ExecutorService newThreadPerTaskExecutor(ThreadFactory threadFactory);
+  }
+
+  private static final VirtualThreadSupport VIRTUAL = loadVirtualThreadSupport();
+
+  /**
+   * Returns true if the threads made here are virtual threads.
+   */
+  public static boolean isVirtual() {
+    return VIRTUAL != null;
+  }
+
+  /**
+   * Returns a factory for daemon threads named after {@code nameFormat}, e.g.
+   * {@code "dashboard-%d"}.
+   */
+  public static ThreadFactory newThreadFactory(String nameFormat) {
+    return new ThreadFactoryBuilder().setNameFormat(nameFormat).setDaemon(true)
+        .setThreadFactory(
+            VIRTUAL != null ? VIRTUAL.newThreadFactory() : Executors.defaultThreadFactory())
+        .build();
+  }
+
+  /**
+   * Returns a new, unstarted daemon thread.
+   */
+  public static Thread newThread(String name, Runnable task) {
+    Thread thread =
+        (VIRTUAL != null ? VIRTUAL.newThreadFactory() : Executors.defaultThreadFactory())
+            .newThread(task);
+    thread.setName(name);
+    thread.setDaemon(true);
+    return thread;
+  }
+
+  /**
+   * Returns a pool for blocking calls: {@code platformThreads} threads sharing
+   * an unbounded queue, or a new virtual thread for every task.
+   */
+  public static ExecutorService newIoPool(String nameFormat, int platformThreads) {
+    if (VIRTUAL != null) {
+      return VIRTUAL.newThreadPerTaskExecutor(newThreadFactory(nameFormat));
+    }
+    return Executors.newFixedThreadPool(platformThreads, newThreadFactory(nameFormat));
+  }
+
+  /**
+   * Returns a pool for blocking calls that should start at once or not at
+   * all: up to {@code maxPlatformThreads} threads with no queue, so tasks
+   * beyond that are rejected, or a new virtual thread for every task.
+   */
+  public static ExecutorService newCachedPool(String nameFormat, int maxPlatformThreads) {
+    if (VIRTUAL != null) {
+      return VIRTUAL.newThreadPerTaskExecutor(newThreadFactory(nameFormat));
+    }
+    return new ThreadPoolExecutor(0, maxPlatformThreads, 60, TimeUnit.SECONDS,
+        new SynchronousQueue<Runnable>(), newThreadFactory(nameFormat));
+  }
+
+  private static VirtualThreadSupport loadVirtualThreadSupport() {
+    if (!Boolean.parseBoolean(System.getProperty("glassware.threads.virtual", "true"))) {
+      LOG.info("Virtual threads are turned off");
+      return null;
+    }
+    try {
+      VirtualThreadSupport support = (VirtualThreadSupport)
+          Class.forName(VIRTUAL_THREADS_CLASS).getConstructor().newInstance();
+      LOG.info("Running outbound calls on virtual threads");
+      return support;
+    } catch (ClassNotFoundException e) {
+      // Not built with the virtual-threads profile
+      return null;
+    } catch (Exception e) {
+      LOG.log(Level.WARNING, "Could not set up virtual threads; using platform threads", e);
+      return null;
+    } catch (LinkageError e) {
+      LOG.log(Level.WARNING, "Could not set up virtual threads; using platform threads", e);
+      return null;
+    }
+  }
+}
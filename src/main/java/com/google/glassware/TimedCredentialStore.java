@@ -0,0 +1,65 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.glassware;
+
+import com.google.api.client.auth.oauth2.Credential;
+import com.google.api.client.auth.oauth2.CredentialStore;
+
+import java.io.IOException;
+
+/**
+ * A credential store that records how long each operation on another store
+ * takes.
+ */
+public class TimedCredentialStore implements CredentialStore {
+  private static final String METRIC = "glassware_credential_store_seconds";
+
+  private final CredentialStore delegate;
+  private final Metrics.Histogram loads = Metrics.histogram(METRIC, "operation", "load");
+  private final Metrics.Histogram stores = Metrics.histogram(METRIC, "operation", "store");
+  private final Metrics.Histogram deletes = Metrics.histogram(METRIC, "operation", "delete");
+
+  public TimedCredentialStore(CredentialStore delegate) {
+    this.delegate = delegate;
+  }
+
+  public boolean load(String userId, Credential credential) throws IOException {
+    long startNanos = System.nanoTime();
+    try {
+      return delegate.load(userId, credential);
+    } finally {
+      loads.recordSince(startNanos);
+    }
+  }
+
+  public void store(String userId, Credential credential) throws IOException {
+    long startNanos = System.nanoTime();
+    try {
+      delegate.store(userId, credential);
+    } finally {
+      stores.recordSince(startNanos);
+    }
+  }
+
+  public void delete(String userId, Credential credential) throws IOException {
+    long startNanos = System.nanoTime();
+    try {
+      delegate.delete(userId, credential);
+    } finally {
+      deletes.recordSince(startNanos);
+    }
+  }
+}
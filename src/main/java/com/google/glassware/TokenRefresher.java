@@ -0,0 +1,184 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.glassware;
+
+import com.google.api.client.auth.oauth2.Credential;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Keeps access tokens fresh so that requests rarely have to wait on the token
+ * endpoint.
+ * <p/>
+ * A background scan schedules a refresh for every token that will expire
+ * within the lead time, at a random moment before it does, so that tokens
+ * issued together are not all refreshed together. Concurrent refreshes for the
+ * same user, whether scheduled or on demand, share a single token call.
+ * <p/>
+ * Tuning is done with system properties:
+ * <ul>
+ * <li>{@code glassware.tokenRefresh.leadTimeMillis} - how early to refresh</li>
+ * <li>{@code glassware.tokenRefresh.threads} - concurrent background refreshes</li>
+ * <li>{@code glassware.tokenRefresh.disabled} - turn the background scan off</li>
+ * </ul>
+ */
+public class TokenRefresher {
+  private static final Logger LOG = Logger.getLogger(TokenRefresher.class.getSimpleName());
+
+  private static final long LEAD_TIME_MILLIS =
+      Long.getLong("glassware.tokenRefresh.leadTimeMillis", 5 * 60 * 1000);
+  private static final int THREADS = Integer.getInteger("glassware.tokenRefresh.threads", 4);
+  private static final boolean DISABLED = Boolean.getBoolean("glassware.tokenRefresh.disabled");
+
+  /**
+   * Tokens this close to expiring are refreshed before they are used.
+   */
+  private static final long MIN_REMAINING_MILLIS = 60 * 1000;
+  private static final long SCAN_INTERVAL_MILLIS = 60 * 1000;
+
+  private static final ConcurrentMap<String, FutureTask<Boolean>> inFlight =
+      new ConcurrentHashMap<String, FutureTask<Boolean>>();
+  private static final Set<String> scheduled =
+      Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+  private static final Random random = new Random();
+
+  private static ScheduledExecutorService scheduler;
+
+  /**
+   * Starts the background scan.
+   */
+  public static synchronized void start() {
+    if (DISABLED || scheduler != null) {
+      return;
+    }
+    scheduler =
+        new ScheduledThreadPoolExecutor(THREADS, Threads.newThreadFactory("token-refresher-%d"));
+    final ScheduledExecutorService executor = scheduler;
+    executor.scheduleWithFixedDelay(new Runnable() {
+      public void run() {
+        scan(executor);
+      }
+    }, 0, SCAN_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+  }
+
+  public static synchronized void shutdown() {
+    if (scheduler != null) {
+      scheduler.shutdownNow();
+      scheduler = null;
+    }
+  }
+
+  /**
+   * Returns true if the credential should be refreshed before it is used.
+   */
+  public static boolean needsRefresh(Credential credential) {
+    return expiresWithin(credential, MIN_REMAINING_MILLIS);
+  }
+
+  /**
+   * Refreshes a user's access token and stores the result. If a refresh for the
+   * user is already running, waits for it instead of starting another.
+   *
+   * @return true if a new access token was obtained
+   */
+  public static boolean refresh(final String userId) throws IOException {
+    FutureTask<Boolean> task = new FutureTask<Boolean>(new Callable<Boolean>() {
+      public Boolean call() throws IOException {
+        Credential credential = AuthUtil.getAuthorizationCodeFlow().loadCredential(userId);
+        return credential != null && credential.refreshToken();
+      }
+    });
+    FutureTask<Boolean> running = inFlight.putIfAbsent(userId, task);
+    if (running == null) {
+      try {
+        task.run();
+      } finally {
+        inFlight.remove(userId, task);
+      }
+      running = task;
+    }
+
+    try {
+      return running.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while refreshing token for " + userId, e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      throw new IOException("Failed to refresh token for " + userId, e.getCause());
+    }
+  }
+
+  private static boolean expiresWithin(Credential credential, long millis) {
+    Long expiration = credential.getExpirationTimeMilliseconds();
+    return credential.getRefreshToken() != null && expiration != null
+        && expiration - System.currentTimeMillis() <= millis;
+  }
+
+  private static void scan(ScheduledExecutorService executor) {
+    long now = System.currentTimeMillis();
+    int count = 0;
+    for (Map.Entry<String, ListableMemoryCredentialStore.MemoryPersistedCredential> entry :
+        AuthUtil.store.entries()) {
+      Long expiration = entry.getValue().getExpirationTimeMillis();
+      if (expiration == null || entry.getValue().getRefreshToken() == null
+          || expiration - now > LEAD_TIME_MILLIS) {
+        continue;
+      }
+      final String userId = entry.getKey();
+      if (!scheduled.add(userId)) {
+        continue;
+      }
+      long window = expiration - MIN_REMAINING_MILLIS - now;
+      long delay = window <= 0 ? 0 : (long) (random.nextDouble() * window);
+      executor.schedule(new Runnable() {
+        public void run() {
+          try {
+            // Skip users whose token was refreshed on demand in the meantime
+            Credential credential = AuthUtil.getAuthorizationCodeFlow().loadCredential(userId);
+            if (credential != null && expiresWithin(credential, LEAD_TIME_MILLIS)) {
+              refresh(userId);
+            }
+          } catch (IOException e) {
+            LOG.log(Level.WARNING, "Background token refresh failed for " + userId, e);
+          } finally {
+            scheduled.remove(userId);
+          }
+        }
+      }, delay, TimeUnit.MILLISECONDS);
+      count++;
+    }
+    if (count > 0) {
+      LOG.info("Scheduled " + count + " token refreshes");
+    }
+  }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.glassware;
+
+import com.google.api.client.http.HttpRequest;
+import com.google.api.client.http.HttpRequestInitializer;
+import com.google.api.client.http.HttpTransport;
+import com.google.api.client.http.apache.ApacheHttpTransport;
+import com.google.api.client.json.JsonFactory;
+import com.google.api.client.json.jackson2.JacksonFactory;
+
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.params.HttpParams;
+
+import java.io.IOException;
+import java.util.logging.Logger;
+
+/**
+ * Owns the process-wide HTTP transport and JSON factory used for every call to
+ * Google APIs. The transport keeps a pool of keep-alive connections so that
+ * consecutive Mirror calls reuse sockets and TLS sessions instead of
+ * handshaking every time.
+ * <p/>
+ * Tuning is done with system properties:
+ * <ul>
+ * <li>{@code glassware.http.maxConnections} - total pooled connections</li>
+ * <li>{@code glassware.http.maxConnectionsPerHost} - pooled connections per host</li>
+ * <li>{@code glassware.http.connectTimeoutMillis} - connect timeout</li>
+ * <li>{@code glassware.http.readTimeoutMillis} - read timeout</li>
+ * <li>{@code glassware.http.disableGzip} - stop asking for gzipped responses</li>
+ * </ul>
+ */
+public class TransportUtil {
+  private static final Logger LOG = Logger.getLogger(TransportUtil.class.getSimpleName());
+
+  private static final int MAX_CONNECTIONS =
+      Integer.getInteger("glassware.http.maxConnections", 200);
+  private static final int MAX_CONNECTIONS_PER_HOST =
+      Integer.getInteger("glassware.http.maxConnectionsPerHost", 50);
+  private static final int CONNECT_TIMEOUT_MILLIS =
+      Integer.getInteger("glassware.http.connectTimeoutMillis", 20 * 1000);
+  private static final int READ_TIMEOUT_MILLIS =
+      Integer.getInteger("glassware.http.readTimeoutMillis", 20 * 1000);
+  private static final boolean GZIP_RESPONSES = !Boolean.getBoolean("glassware.http.disableGzip");
+
+  private static final HttpTransport HTTP_TRANSPORT = newHttpTransport();
+  private static final JsonFactory JSON_FACTORY = new JacksonFactory();
+
+  /**
+   * Returns the shared, pooling HTTP transport.
+   */
+  public static HttpTransport getHttpTransport() {
+    return HTTP_TRANSPORT;
+  }
+
+  /**
+   * Returns the shared JSON factory. It is thread-safe and should be reused.
+   */
+  public static JsonFactory getJsonFactory() {
+    return JSON_FACTORY;
+  }
+
+  /**
+   * Wraps a request initializer (usually a {@link
+   * com.google.api.client.auth.oauth2.Credential}) so that every request it
+   * initializes also picks up the configured timeouts and compression.
+   *
+   * @param delegate the initializer to run first, or null for none
+   */
+  public static HttpRequestInitializer newRequestInitializer(final HttpRequestInitializer delegate) {
+    return new HttpRequestInitializer() {
+      public void initialize(HttpRequest request) throws IOException {
+        if (delegate != null) {
+          delegate.initialize(request);
+        }
+        request.setConnectTimeout(CONNECT_TIMEOUT_MILLIS);
+        request.setReadTimeout(READ_TIMEOUT_MILLIS);
+        if (!GZIP_RESPONSES) {
+          request.getHeaders().setAcceptEncoding(null);
+        }
+      }
+    };
+  }
+
+  /**
+   * Closes all pooled connections. Only call this when the app is shutting
+   * down.
+   */
+  public static void shutdown() {
+    try {
+      HTTP_TRANSPORT.shutdown();
+    } catch (IOException e) {
+      LOG.warning("Failed to shut down HTTP transport: " + e);
+    }
+  }
+
+  private static HttpTransport newHttpTransport() {
+    ApacheHttpTransport.Builder builder = new ApacheHttpTransport.Builder();
+    HttpParams params = builder.getHttpParams();
+    ConnManagerParams.setMaxTotalConnections(params, MAX_CONNECTIONS);
+    ConnManagerParams.setMaxConnectionsPerRoute(params,
+        new ConnPerRouteBean(MAX_CONNECTIONS_PER_HOST));
+    LOG.info("Created pooled HTTP transport with " + MAX_CONNECTIONS + " connections ("
+        + MAX_CONNECTIONS_PER_HOST + " per host)");
+    return builder.build();
+  }
+}
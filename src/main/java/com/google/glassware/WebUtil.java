@@ -28,7 +28,15 @@ public class WebUtil {
    * Builds a URL relative to this app's root.
    */
   public static String buildUrl(HttpServletRequest req, String relativePath) {
-    GenericUrl url = new GenericUrl(req.getRequestURL().toString());
+    return buildUrl(req.getRequestURL().toString(), relativePath);
+  }
+
+  /**
+   * Builds a URL on the same host as {@code requestUrl}, for use once the
+   * request itself may no longer be read.
+   */
+  public static String buildUrl(String requestUrl, String relativePath) {
+    GenericUrl url = new GenericUrl(requestUrl);
     url.setRawPath(relativePath);
     return url.build();
   }
@@ -47,7 +55,10 @@ public class WebUtil {
   }
 
   public static void setFlash(HttpServletRequest request, String flash) {
-    HttpSession session = request.getSession();
+    setFlash(request.getSession(), flash);
+  }
+
+  public static void setFlash(HttpSession session, String flash) {
     session.setAttribute("flash", flash);
   }
 }
@@ -0,0 +1,36 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.glassware;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Virtual thread support for {@link Threads}. This source is only compiled by
+ * the {@code virtual-threads} profile, which builds for Java 21.
+ */
+public class VirtualThreads implements Threads.VirtualThreadSupport {
+  @Override
+  public ThreadFactory newThreadFactory() {
+    return Thread.ofVirtual().factory();
+  }
+
+  @Override
+  public ExecutorService newThreadPerTaskExecutor(ThreadFactory threadFactory) {
+    return Executors.newThreadPerTaskExecutor(threadFactory);
+  }
+}
@@ -15,13 +15,16 @@ limitations under the License.
 -->
 <%@ page import="com.google.api.client.auth.oauth2.Credential" %>
 <%@ page import="com.google.api.services.mirror.model.Contact" %>
-<%@ page import="com.google.glassware.MirrorClient" %>
+<%@ page import="com.google.glassware.DashboardService" %>
 <%@ page import="com.google.glassware.WebUtil" %>
 <%@ page import="java.util.List" %>
 <%@ page import="com.google.api.services.mirror.model.TimelineItem" %>
-<%@ page import="com.google.api.services.mirror.model.Subscription" %>
 <%@ page import="com.google.api.services.mirror.model.Attachment" %>
 <%@ page import="com.google.glassware.MainServlet" %>
+<%@ page import="com.google.glassware.Broadcast" %>
+<%@ page import="com.google.glassware.BroadcastService" %>
+<%@ page import="com.google.glassware.BulkJobRun" %>
+<%@ page import="com.google.glassware.BulkJobService" %>
 <%@ page import="org.apache.commons.lang3.StringEscapeUtils" %>
 
 <%@ page contentType="text/html;charset=UTF-8" language="java" %>
@@ -31,28 +34,15 @@ limitations under the License.
   String userId = com.google.glassware.AuthUtil.getUserId(request);
   String appBaseUrl = WebUtil.buildUrl(request, "/");
 
-  Credential credential = com.google.glassware.AuthUtil.getCredential(userId);
+  Credential credential = com.google.glassware.AuthUtil.getCredential(request);
 
-  Contact contact = MirrorClient.getContact(credential, MainServlet.CONTACT_ID);
+  // Fetches the contact, timeline and subscriptions in parallel
+  DashboardService.Dashboard dashboard = DashboardService.getDashboard(userId, credential);
 
-  List<TimelineItem> timelineItems = MirrorClient.listItems(credential, 3L).getItems();
-
-
-  List<Subscription> subscriptions = MirrorClient.listSubscriptions(credential).getItems();
-  boolean timelineSubscriptionExists = false;
-  boolean locationSubscriptionExists = false;
-
-
-  if (subscriptions != null) {
-    for (Subscription subscription : subscriptions) {
-      if (subscription.getId().equals("timeline")) {
-        timelineSubscriptionExists = true;
-      }
-      if (subscription.getId().equals("locations")) {
-        locationSubscriptionExists = true;
-      }
-    }
-  }
+  Contact contact = dashboard.getContact();
+  List<TimelineItem> timelineItems = dashboard.getTimelineItems();
+  boolean timelineSubscriptionExists = dashboard.hasTimelineSubscription();
+  boolean locationSubscriptionExists = dashboard.hasLocationSubscription();
 
 %>
 <html>
@@ -109,7 +99,7 @@ limitations under the License.
                 <%
                 if (timelineItem.getAttachments() != null) {
                   for (Attachment attachment : timelineItem.getAttachments()) {
-                    if (MirrorClient.getAttachmentContentType(credential, timelineItem.getId(), attachment.getId()).startsWith("image")) { %>
+                    if (attachment.getContentType() != null && attachment.getContentType().startsWith("image")) { %>
 	                <a href="<%= appBaseUrl + "attachmentproxy?attachment=" +
 	                	attachment.getId() + "&timelineItem=" + timelineItem.getId() %>">
 	                	<img src="<%= appBaseUrl + "attachmentproxy?attachment=" +
@@ -204,6 +194,18 @@ limitations under the License.
         <button class="btn btn-block" type="submit">
           Insert a card to all users</button>
       </form>
+      <% for (Broadcast broadcast : BroadcastService.getRecentBroadcasts()) { %>
+      <div class="alert <%= broadcast.isComplete() ? "alert-success" : "alert-info" %>">
+        <%= StringEscapeUtils.escapeHtml4(broadcast.toString()) %>
+        <% if (broadcast.isComplete() && broadcast.getFailedCount() > 0) { %>
+        <form action="<%= WebUtil.buildUrl(request, "/main") %>" method="post">
+          <input type="hidden" name="operation" value="retryBroadcast">
+          <input type="hidden" name="broadcastId" value="<%= broadcast.getId() %>">
+          <button class="btn btn-small" type="submit">Retry failed users</button>
+        </form>
+        <% } %>
+      </div>
+      <% } %>
     </div>
 
     <div class="span4">
@@ -291,6 +293,17 @@ limitations under the License.
         </button>
       </form>
       <% } %>
+      <hr>
+      <form action="<%= WebUtil.buildUrl(request, "/main") %>" method="post">
+        <input type="hidden" name="operation" value="reconcileSubscriptions">
+        <button class="btn btn-block" type="submit">
+          Fix subscriptions for all users</button>
+      </form>
+      <% for (BulkJobRun run : BulkJobService.getRecentRuns()) { %>
+      <div class="alert <%= run.isComplete() ? "alert-success" : "alert-info" %>">
+        <%= StringEscapeUtils.escapeHtml4(run.toString()) %>
+      </div>
+      <% } %>
     </div>
   </div>
 </div>
@@ -0,0 +1,65 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.glassware;
+
+import static org.junit.Assert.assertEquals;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+
+public class AttachmentCacheTest {
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private File file;
+  private AttachmentCache.CachedAttachment attachment;
+
+  @Before
+  public void setUp() throws IOException {
+    file = folder.newFile("body");
+    Files.write("0123456789", file, Charsets.UTF_8);
+    attachment = new AttachmentCache.CachedAttachment("key", "text/plain", file);
+  }
+
+  @Test
+  public void transfersARangeOfTheBody() throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    attachment.transferTo(2, 5, out);
+    assertEquals("23456", out.toString("UTF-8"));
+  }
+
+  @Test(expected = EOFException.class)
+  public void failsWhenTheBodyIsShorterThanTheRange() throws IOException {
+    attachment.transferTo(8, 5, new ByteArrayOutputStream());
+  }
+
+  @Test(expected = FileNotFoundException.class)
+  public void failsWhenTheBodyWasEvicted() throws IOException {
+    file.delete();
+    attachment.transferTo(0, 5, new ByteArrayOutputStream());
+  }
+}
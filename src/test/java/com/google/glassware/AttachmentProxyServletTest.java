@@ -0,0 +1,70 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.glassware;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+public class AttachmentProxyServletTest {
+  private static final long[] WHOLE_BODY = new long[0];
+
+  @Test
+  public void parsesASingleRange() {
+    assertArrayEquals(new long[] {0, 4}, AttachmentProxyServlet.parseRange("bytes=0-4", 20));
+    assertArrayEquals(new long[] {5, 5}, AttachmentProxyServlet.parseRange("bytes=5-5", 20));
+    assertArrayEquals(new long[] {5, 19}, AttachmentProxyServlet.parseRange("bytes=5-", 20));
+  }
+
+  @Test
+  public void parsesASuffixRange() {
+    assertArrayEquals(new long[] {17, 19}, AttachmentProxyServlet.parseRange("bytes=-3", 20));
+    assertArrayEquals(new long[] {0, 19}, AttachmentProxyServlet.parseRange("bytes=-50", 20));
+  }
+
+  @Test
+  public void clampsTheEndToTheLastByte() {
+    assertArrayEquals(new long[] {10, 19}, AttachmentProxyServlet.parseRange("bytes=10-99", 20));
+    assertArrayEquals(new long[] {10, 19},
+        AttachmentProxyServlet.parseRange("bytes=10-99999999999999999999999", 20));
+  }
+
+  @Test
+  public void servesTheWholeBodyForInvalidRanges() {
+    assertArrayEquals(WHOLE_BODY, AttachmentProxyServlet.parseRange("bytes=5-3", 20));
+    assertArrayEquals(WHOLE_BODY, AttachmentProxyServlet.parseRange("bytes=--5", 20));
+    assertArrayEquals(WHOLE_BODY, AttachmentProxyServlet.parseRange("bytes=+1-2", 20));
+    assertArrayEquals(WHOLE_BODY, AttachmentProxyServlet.parseRange("bytes=a-b", 20));
+    assertArrayEquals(WHOLE_BODY, AttachmentProxyServlet.parseRange("bytes=5", 20));
+    assertArrayEquals(WHOLE_BODY, AttachmentProxyServlet.parseRange("bytes=-", 20));
+    assertArrayEquals(WHOLE_BODY, AttachmentProxyServlet.parseRange("items=0-4", 20));
+  }
+
+  @Test
+  public void servesTheWholeBodyForMultipleRanges() {
+    assertArrayEquals(WHOLE_BODY, AttachmentProxyServlet.parseRange("bytes=0-1,5-6", 20));
+  }
+
+  @Test
+  public void refusesUnsatisfiableRanges() {
+    assertNull(AttachmentProxyServlet.parseRange("bytes=20-", 20));
+    assertNull(AttachmentProxyServlet.parseRange("bytes=25-30", 20));
+    assertNull(AttachmentProxyServlet.parseRange("bytes=-0", 20));
+    assertNull(AttachmentProxyServlet.parseRange("bytes=99999999999999999999999-", 20));
+    assertNull(AttachmentProxyServlet.parseRange("bytes=-3", 0));
+  }
+}
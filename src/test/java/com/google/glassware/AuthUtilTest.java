@@ -0,0 +1,158 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.glassware;
+
+import static com.google.glassware.ListableMemoryCredentialStoreTest.credential;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.google.api.client.auth.oauth2.Credential;
+import com.google.common.base.Charsets;
+import com.google.common.io.CharStreams;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class AuthUtilTest {
+  private static final String JSON = "application/json; charset=UTF-8";
+
+  private static TestHttpServer tokenServer;
+  private static final AtomicInteger grantedRefreshes = new AtomicInteger();
+
+  /**
+   * AuthUtil reads the token server URL once, so it is set before the class is
+   * first used.
+   */
+  @BeforeClass
+  public static void setUpClass() throws IOException {
+    tokenServer = new TestHttpServer();
+    tokenServer.handle("/token", new HttpHandler() {
+      public void handle(HttpExchange exchange) throws IOException {
+        String form = CharStreams.toString(
+            new InputStreamReader(exchange.getRequestBody(), Charsets.UTF_8));
+        if (form.contains("refresh_token=revoked")) {
+          TestHttpServer.respond(exchange, 400, JSON, "{\"error\":\"invalid_grant\"}");
+        } else if (form.contains("refresh_token=misconfigured")) {
+          TestHttpServer.respond(exchange, 400, JSON, "{\"error\":\"invalid_client\"}");
+        } else if (form.contains("refresh_token=unlucky")) {
+          TestHttpServer.respond(exchange, 500, JSON, "{\"error\":\"internal_failure\"}");
+        } else {
+          grantedRefreshes.incrementAndGet();
+          try {
+            // Long enough for concurrent callers to find the refresh in flight
+            Thread.sleep(200);
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+          TestHttpServer.respond(exchange, 200, JSON,
+              "{\"access_token\":\"fresh\",\"token_type\":\"Bearer\",\"expires_in\":3600}");
+        }
+      }
+    });
+    System.setProperty("glassware.oauth.tokenServerUrl", tokenServer.url("/token"));
+  }
+
+  @AfterClass
+  public static void tearDownClass() {
+    System.clearProperty("glassware.oauth.tokenServerUrl");
+    tokenServer.stop();
+  }
+
+  @Test
+  public void returnsNullForUnknownUsers() throws IOException {
+    assertNull(AuthUtil.getCredential("nobody"));
+    assertNull(AuthUtil.getCredential((String) null));
+  }
+
+  @Test
+  public void leavesAFreshTokenAlone() throws IOException {
+    AuthUtil.store.store("dana", credential("current", "unused",
+        System.currentTimeMillis() + 30 * 60 * 1000));
+    assertEquals("current", AuthUtil.getCredential("dana").getAccessToken());
+  }
+
+  @Test
+  public void refreshesATokenAboutToExpireOnceForConcurrentCallers() throws Exception {
+    AuthUtil.store.store("alice", credential("stale", "good", System.currentTimeMillis() + 1000));
+
+    final List<String> tokens = Collections.synchronizedList(new ArrayList<String>());
+    List<Thread> threads = new ArrayList<Thread>();
+    for (int i = 0; i < 5; i++) {
+      Thread thread = new Thread(new Runnable() {
+        public void run() {
+          try {
+            tokens.add(AuthUtil.getCredential("alice").getAccessToken());
+          } catch (IOException e) {
+            tokens.add(e.toString());
+          }
+        }
+      });
+      thread.start();
+      threads.add(thread);
+    }
+    for (Thread thread : threads) {
+      thread.join(5000);
+    }
+
+    assertEquals(Collections.nCopies(5, "fresh"), tokens);
+    assertEquals(1, grantedRefreshes.get());
+    Credential stored = credential(null, null, null);
+    assertTrue(AuthUtil.store.load("alice", stored));
+    assertEquals("fresh", stored.getAccessToken());
+  }
+
+  @Test
+  public void logsOutAUserWhoRevokedAccess() throws IOException {
+    AuthUtil.store.store("bob", credential("stale", "revoked", System.currentTimeMillis()));
+
+    assertNull(AuthUtil.getCredential("bob"));
+    assertFalse(AuthUtil.getAllUserIds().contains("bob"));
+  }
+
+  @Test
+  public void passesOnOtherRefusals() throws IOException {
+    AuthUtil.store.store("carol", credential("stale", "misconfigured",
+        System.currentTimeMillis()));
+
+    try {
+      AuthUtil.getCredential("carol");
+      fail();
+    } catch (IOException expected) {
+    }
+    assertTrue(AuthUtil.getAllUserIds().contains("carol"));
+  }
+
+  @Test
+  public void keepsTheOldTokenWhenTheTokenServerFails() throws IOException {
+    AuthUtil.store.store("erin", credential("stale", "unlucky", System.currentTimeMillis()));
+
+    assertEquals("stale", AuthUtil.getCredential("erin").getAccessToken());
+    assertTrue(AuthUtil.getAllUserIds().contains("erin"));
+  }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.glassware;
+
+import static com.google.glassware.ListableMemoryCredentialStoreTest.credential;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.google.api.services.mirror.model.TimelineItem;
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableSet;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.IOException;
+
+public class BroadcastServiceTest {
+  private static final String JSON = "application/json; charset=UTF-8";
+
+  private static TestHttpServer server;
+
+  /**
+   * BroadcastService, MirrorClient and AuthUtil read their settings once, so
+   * they are set before the classes are first used.
+   */
+  @BeforeClass
+  public static void setUpClass() throws IOException {
+    server = new TestHttpServer();
+    server.handle("/token", TestHttpServer.always(400, JSON,
+        "{\"error\":\"invalid_client\"}".getBytes(Charsets.UTF_8)));
+    server.handle("/batch", TestHttpServer.always(500, JSON,
+        "{\"error\":{\"code\":500,\"message\":\"Unavailable\"}}".getBytes(Charsets.UTF_8)));
+    System.setProperty("glassware.oauth.tokenServerUrl", server.url("/token"));
+    System.setProperty("glassware.mirror.rootUrl", server.url("/"));
+    System.setProperty("glassware.broadcast.batchSize", "3");
+  }
+
+  @AfterClass
+  public static void tearDownClass() {
+    BroadcastService.shutdown();
+    System.clearProperty("glassware.oauth.tokenServerUrl");
+    System.clearProperty("glassware.mirror.rootUrl");
+    System.clearProperty("glassware.broadcast.batchSize");
+    server.stop();
+  }
+
+  @Test
+  public void recordsAnOutcomeForEveryRecipient() throws Exception {
+    long fresh = System.currentTimeMillis() + 30 * 60 * 1000;
+    AuthUtil.store.store("alice", credential("current", "unused", fresh));
+    AuthUtil.store.store("carol", credential("current", "unused", fresh));
+    AuthUtil.store.store("dave", credential("current", "unused", fresh));
+    // Their tokens have expired and can't be refreshed, so loading them fails
+    AuthUtil.store.store("bob", credential("stale", "refused", System.currentTimeMillis()));
+    AuthUtil.store.store("erin", credential("stale", "refused", System.currentTimeMillis()));
+
+    Broadcast broadcast = BroadcastService.broadcastToAllUsers(new TimelineItem().setText("Hi"));
+    long deadline = System.currentTimeMillis() + 10 * 1000;
+    while (!broadcast.isComplete() && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+
+    assertTrue(broadcast.isComplete());
+    assertEquals(5, broadcast.getQueuedCount());
+    assertEquals(0, broadcast.getSucceededCount());
+    assertEquals(ImmutableSet.of("alice", "bob", "carol", "dave", "erin"),
+        ImmutableSet.copyOf(broadcast.getFailedUserIds()));
+    assertTrue(broadcast.getFailureReason("bob").contains("invalid_client"));
+    assertTrue(broadcast.getFailureReason("carol").contains("500"));
+  }
+}
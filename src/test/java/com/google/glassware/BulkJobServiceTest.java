@@ -0,0 +1,284 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.glassware;
+
+import static com.google.glassware.ListableMemoryCredentialStoreTest.credential;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.io.Files;
+
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class BulkJobServiceTest {
+  private static final long TIMEOUT_MILLIS = 5000;
+
+  private static File directory;
+
+  /**
+   * BulkJobService reads its settings once, so they are set before the class
+   * is first used.
+   */
+  @BeforeClass
+  public static void setUpClass() {
+    directory = Files.createTempDir();
+    System.setProperty("glassware.jobs.dir", directory.getPath());
+    System.setProperty("glassware.jobs.chunkSize", "2");
+    System.setProperty("glassware.jobs.parallelism", "2");
+  }
+
+  @AfterClass
+  public static void tearDownClass() throws IOException {
+    System.clearProperty("glassware.jobs.dir");
+    System.clearProperty("glassware.jobs.chunkSize");
+    System.clearProperty("glassware.jobs.parallelism");
+    for (File file : directory.listFiles()) {
+      file.delete();
+    }
+    directory.delete();
+  }
+
+  @Before
+  public void setUp() throws IOException {
+    for (String userId : AuthUtil.getAllUserIds()) {
+      AuthUtil.store.delete(userId, null);
+    }
+    for (String userId : ImmutableList.of("u0", "u1", "u2", "u3", "u4")) {
+      AuthUtil.store.store(userId, credential("token", null, null));
+    }
+  }
+
+  @Test
+  public void runsAJobForEveryUser() throws Exception {
+    RecordingJob job = new RecordingJob("everyUser", "u2");
+    BulkJobService.register(job);
+
+    BulkJobRun run = BulkJobService.start("everyUser", ImmutableMap.of("key", "value"));
+    awaitCompletion(run);
+
+    assertEquals(ImmutableList.of("u0", "u1", "u2", "u3", "u4"), job.sortedUserIds());
+    assertEquals(4, run.getSucceededCount());
+    assertEquals(1, run.getFailedCount());
+    assertEquals(ImmutableList.of("u2"), run.getFailedUserIds());
+    assertTrue(run.getFailureReason("u2").contains("failed on purpose"));
+    assertEquals(ImmutableMap.of("key", "value"), job.parameters);
+    assertFalse(checkpointFile(run.getId()).exists());
+    assertTrue(BulkJobService.getRecentRuns().contains(run));
+  }
+
+  @Test
+  public void checkpointsAfterEachChunk() throws Exception {
+    final CountDownLatch blocked = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    RecordingJob job = new RecordingJob("checkpointing") {
+      @Override
+      public void process(String userId, Map<String, String> parameters) throws IOException {
+        if (userId.equals("u2")) {
+          blocked.countDown();
+          try {
+            release.await();
+          } catch (InterruptedException e) {
+            throw new IOException(e);
+          }
+        }
+        super.process(userId, parameters);
+      }
+    };
+    BulkJobService.register(job);
+
+    BulkJobRun run = BulkJobService.start("checkpointing", ImmutableMap.of("key", "value"));
+    assertTrue(blocked.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+    Properties checkpoint = readCheckpoint(run.getId());
+    assertEquals("checkpointing", checkpoint.getProperty("job"));
+    assertEquals("u1", checkpoint.getProperty("after"));
+    assertEquals("2", checkpoint.getProperty("succeeded"));
+    assertEquals("value", checkpoint.getProperty("param.key"));
+
+    release.countDown();
+    awaitCompletion(run);
+    assertEquals(5, run.getSucceededCount());
+    assertFalse(checkpointFile(run.getId()).exists());
+  }
+
+  @Test
+  public void runsAJobOnceAtATime() throws Exception {
+    final CountDownLatch blocked = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    RecordingJob job = new RecordingJob("single") {
+      @Override
+      public void process(String userId, Map<String, String> parameters) throws IOException {
+        blocked.countDown();
+        try {
+          release.await();
+        } catch (InterruptedException e) {
+          throw new IOException(e);
+        }
+        super.process(userId, parameters);
+      }
+    };
+    BulkJobService.register(job);
+
+    BulkJobRun run = BulkJobService.start("single", ImmutableMap.<String, String>of());
+    assertTrue(blocked.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+    assertSame(run, BulkJobService.start("single", ImmutableMap.<String, String>of()));
+
+    release.countDown();
+    awaitCompletion(run);
+    assertEquals(ImmutableList.of("u0", "u1", "u2", "u3", "u4"), job.sortedUserIds());
+
+    // Once it has finished, it can be started again
+    long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+    BulkJobRun next;
+    while ((next = BulkJobService.start("single", ImmutableMap.<String, String>of())) == run) {
+      assertTrue(System.currentTimeMillis() < deadline);
+      Thread.sleep(10);
+    }
+    awaitCompletion(next);
+  }
+
+  @Test
+  public void resumesAfterTheCheckpoint() throws Exception {
+    RecordingJob job = new RecordingJob("resumable");
+    BulkJobService.register(job);
+    Properties checkpoint = new Properties();
+    checkpoint.setProperty("job", "resumable");
+    checkpoint.setProperty("startTime", "1234");
+    checkpoint.setProperty("after", "u2");
+    checkpoint.setProperty("succeeded", "2");
+    checkpoint.setProperty("failed", "1");
+    checkpoint.setProperty("param.key", "value");
+    writeCheckpoint("resumed", checkpoint);
+
+    BulkJobService.resumeUnfinished();
+    BulkJobRun run = BulkJobService.getRun("resumed");
+    awaitCompletion(run);
+
+    assertEquals(ImmutableList.of("u3", "u4"), job.sortedUserIds());
+    assertEquals("resumable", run.getJobName());
+    assertEquals(1234, run.getStartTimeMillis());
+    assertEquals(4, run.getSucceededCount());
+    assertEquals(1, run.getFailedCount());
+    assertEquals(ImmutableMap.of("key", "value"), job.parameters);
+    assertFalse(checkpointFile("resumed").exists());
+  }
+
+  @Test
+  public void leavesCheckpointsItCannotResume() throws Exception {
+    Properties unknownJob = new Properties();
+    unknownJob.setProperty("job", "noSuchJob");
+    writeCheckpoint("unknown", unknownJob);
+    Properties noJob = new Properties();
+    noJob.setProperty("after", "u1");
+    writeCheckpoint("nameless", noJob);
+    Properties badCount = new Properties();
+    badCount.setProperty("job", SubscriptionReconciler.NAME);
+    badCount.setProperty("succeeded", "lots");
+    writeCheckpoint("garbled", badCount);
+
+    BulkJobService.resumeUnfinished();
+
+    for (String id : ImmutableList.of("unknown", "nameless", "garbled")) {
+      assertNull(BulkJobService.getRun(id));
+      assertTrue(checkpointFile(id).delete());
+    }
+  }
+
+  private static void awaitCompletion(BulkJobRun run) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+    while (!run.isComplete()) {
+      assertTrue("Timed out waiting for " + run, System.currentTimeMillis() < deadline);
+      Thread.sleep(10);
+    }
+  }
+
+  private static File checkpointFile(String runId) {
+    return new File(directory, runId + ".checkpoint");
+  }
+
+  private static Properties readCheckpoint(String runId) throws IOException {
+    Properties properties = new Properties();
+    Reader reader = Files.newReader(checkpointFile(runId), Charsets.UTF_8);
+    try {
+      properties.load(reader);
+    } finally {
+      reader.close();
+    }
+    return properties;
+  }
+
+  private static void writeCheckpoint(String runId, Properties properties) throws IOException {
+    Writer writer = Files.newWriter(checkpointFile(runId), Charsets.UTF_8);
+    try {
+      properties.store(writer, null);
+    } finally {
+      writer.close();
+    }
+  }
+
+  /**
+   * Records the users it is run for, failing for some of them.
+   */
+  private static class RecordingJob implements BulkJob {
+    private final String name;
+    private final List<String> failFor;
+    private final List<String> userIds = Collections.synchronizedList(new ArrayList<String>());
+    private volatile Map<String, String> parameters;
+
+    RecordingJob(String name, String... failFor) {
+      this.name = name;
+      this.failFor = ImmutableList.copyOf(failFor);
+    }
+
+    public String getName() {
+      return name;
+    }
+
+    public void process(String userId, Map<String, String> parameters) throws IOException {
+      this.parameters = parameters;
+      userIds.add(userId);
+      if (failFor.contains(userId)) {
+        throw new IOException("failed on purpose");
+      }
+    }
+
+    List<String> sortedUserIds() {
+      List<String> sorted = new ArrayList<String>(userIds);
+      Collections.sort(sorted);
+      return sorted;
+    }
+  }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.glassware;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import com.google.common.collect.ImmutableList;
+
+import org.junit.Test;
+
+public class CardTemplateTest {
+  @Test
+  public void rendersATemplateWithoutHoles() {
+    CardTemplate template = CardTemplate.compile("<article>Hello</article>");
+    assertEquals(ImmutableList.<String>of(), template.getVariables());
+    assertEquals("<article>Hello</article>", template.render());
+  }
+
+  @Test
+  public void fillsHolesInOrder() {
+    CardTemplate template = CardTemplate.compile("<p>{{greeting}}, {{ name }}!</p>");
+    assertEquals(ImmutableList.of("greeting", "name"), template.getVariables());
+    assertEquals("<p>Hello, Glass!</p>", template.render("Hello", "Glass"));
+  }
+
+  @Test
+  public void reusesAVariableThatAppearsTwice() {
+    CardTemplate template = CardTemplate.compile("{{a}}-{{b}}-{{a}}");
+    assertEquals(ImmutableList.of("a", "b"), template.getVariables());
+    assertEquals("1-2-1", template.render("1", "2"));
+  }
+
+  @Test
+  public void escapesValues() {
+    CardTemplate template = CardTemplate.compile("<p>{{text}}</p>");
+    assertEquals("<p>&lt;script&gt;alert(&quot;x&quot; &amp; &#39;y&#39;)&lt;/script&gt;</p>",
+        template.render("<script>alert(\"x\" & 'y')</script>"));
+  }
+
+  @Test
+  public void insertsRawValuesAsIs() {
+    CardTemplate template = CardTemplate.compile("<section>{{{body}}}</section><p>{{body}}</p>");
+    assertEquals("<section><b>hi</b></section><p>&lt;b&gt;hi&lt;/b&gt;</p>",
+        template.render("<b>hi</b>"));
+  }
+
+  @Test
+  public void rendersNullValuesAsNothing() {
+    assertEquals("<p></p>", CardTemplate.compile("<p>{{text}}</p>").render((String) null));
+  }
+
+  @Test
+  public void rendersOntoTheEndOfABuffer() {
+    CardTemplate template = CardTemplate.compile("<li>{{item}}</li>");
+    StringBuilder out = new StringBuilder("<ul>");
+    assertSame(out, template.renderTo(out, "a&b"));
+    template.renderTo(out, "c");
+    assertEquals("<ul><li>a&amp;b</li><li>c</li>", out.toString());
+  }
+
+  @Test
+  public void refusesTheWrongNumberOfValues() {
+    CardTemplate template = CardTemplate.compile("{{a}}{{b}}");
+    try {
+      template.render("only one");
+      fail();
+    } catch (IllegalArgumentException expected) {
+    }
+  }
+
+  @Test
+  public void refusesMalformedHoles() {
+    for (String bad : ImmutableList.of("<p>{{text</p>", "{{}}", "{{ }}", "{{{raw}}", "{{a{b}}")) {
+      try {
+        CardTemplate.compile(bad);
+        fail(bad);
+      } catch (IllegalArgumentException expected) {
+      }
+    }
+  }
+
+  @Test
+  public void keepsTheSourceForToString() {
+    assertEquals("<p>{{text}}</p>", CardTemplate.compile("<p>{{text}}</p>").toString());
+  }
+
+  @Test
+  public void framesTheNoteReplyLikeAnyOtherCard() {
+    assertEquals(ImmutableList.of("note", "utterance"), CardTemplates.NOTE_REPLY.getVariables());
+    String expected = CardTemplates.CARD.render(
+        "<p class='text-auto-size'>Oh, did you say milk &amp; eggs? <em>Meow</em></p>");
+    assertEquals(expected, CardTemplates.NOTE_REPLY.render("milk & eggs", "<em>Meow</em>"));
+    assertSame(CardTemplates.NOTE_REPLY, CardTemplates.get("noteReply"));
+  }
+}
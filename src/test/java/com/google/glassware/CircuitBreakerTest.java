@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.glassware;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import com.google.glassware.CircuitBreaker.CircuitOpenException;
+import com.google.glassware.CircuitBreaker.State;
+
+import org.junit.Test;
+
+public class CircuitBreakerTest {
+  private static final long OPEN_MILLIS = 50;
+
+  private final CircuitBreaker breaker = new CircuitBreaker("test", 3, OPEN_MILLIS);
+
+  @Test
+  public void staysClosedUntilEnoughConsecutiveFailures() throws CircuitOpenException {
+    breaker.recordFailure();
+    breaker.recordFailure();
+    breaker.recordSuccess();
+    breaker.recordFailure();
+    breaker.recordFailure();
+    assertEquals(State.CLOSED, breaker.getState());
+    breaker.checkAllowed();
+
+    breaker.recordFailure();
+    assertEquals(State.OPEN, breaker.getState());
+    assertRefused();
+  }
+
+  @Test
+  public void letsOneTrialThroughOnceTheOpenPeriodIsOver() throws Exception {
+    open();
+    Thread.sleep(OPEN_MILLIS * 2);
+
+    breaker.checkAllowed();
+    assertEquals(State.HALF_OPEN, breaker.getState());
+    assertRefused();
+  }
+
+  @Test
+  public void closesWhenTheTrialSucceeds() throws Exception {
+    open();
+    Thread.sleep(OPEN_MILLIS * 2);
+    breaker.checkAllowed();
+
+    breaker.recordSuccess();
+    assertEquals(State.CLOSED, breaker.getState());
+    breaker.checkAllowed();
+    breaker.checkAllowed();
+  }
+
+  @Test
+  public void opensAgainWhenTheTrialFails() throws Exception {
+    open();
+    Thread.sleep(OPEN_MILLIS * 2);
+    breaker.checkAllowed();
+
+    breaker.recordFailure();
+    assertEquals(State.OPEN, breaker.getState());
+    assertRefused();
+  }
+
+  @Test
+  public void givesUpOnATrialThatNeverReportsBack() throws Exception {
+    open();
+    Thread.sleep(OPEN_MILLIS * 2);
+    breaker.checkAllowed();
+    assertRefused();
+
+    Thread.sleep(OPEN_MILLIS * 2);
+    breaker.checkAllowed();
+    assertEquals(State.HALF_OPEN, breaker.getState());
+  }
+
+  private void open() {
+    for (int i = 0; i < 3; i++) {
+      breaker.recordFailure();
+    }
+    assertEquals(State.OPEN, breaker.getState());
+  }
+
+  private void assertRefused() {
+    try {
+      breaker.checkAllowed();
+      fail();
+    } catch (CircuitOpenException expected) {
+    }
+  }
+}
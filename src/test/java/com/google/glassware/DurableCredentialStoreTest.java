@@ -0,0 +1,184 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.glassware;
+
+import static com.google.glassware.ListableMemoryCredentialStoreTest.credential;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.google.api.client.auth.oauth2.Credential;
+import com.google.common.collect.ImmutableList;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+
+public class DurableCredentialStoreTest {
+  private static final long SYNC_INTERVAL_MILLIS = 60 * 1000;
+  private static final long NO_COMPACTION = Long.MAX_VALUE;
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private DurableCredentialStore store;
+
+  @After
+  public void tearDown() throws IOException {
+    if (store != null) {
+      store.close();
+    }
+  }
+
+  @Test
+  public void replaysStoresAndDeletesAfterARestart() throws IOException {
+    store = open(NO_COMPACTION);
+    store.store("alice", credential("a1", "alice-refresh", 1000L));
+    store.store("bob", credential("b1", null, null));
+    store.store("alice", credential("a2", "alice-refresh", 2000L));
+    store.delete("bob", null);
+    store.close();
+
+    store = open(NO_COMPACTION);
+    assertEquals(ImmutableList.of("alice"), store.listAllUsers());
+    Credential alice = credential(null, null, null);
+    assertTrue(store.load("alice", alice));
+    assertEquals("a2", alice.getAccessToken());
+    assertEquals("alice-refresh", alice.getRefreshToken());
+    assertEquals(Long.valueOf(2000L), alice.getExpirationTimeMilliseconds());
+  }
+
+  @Test
+  public void ignoresATruncatedRecordAtTheEndOfTheLog() throws IOException {
+    store = open(NO_COMPACTION);
+    store.store("alice", credential("a1", null, null));
+    store.close();
+
+    DataOutputStream out = appendTo(onlyLog());
+    try {
+      out.writeInt(100);
+      out.writeInt(0);
+      out.write(new byte[10]);
+    } finally {
+      out.close();
+    }
+
+    store = open(NO_COMPACTION);
+    assertEquals(ImmutableList.of("alice"), store.listAllUsers());
+    // Later writes still replay.
+    store.store("bob", credential("b1", null, null));
+    store.close();
+    store = open(NO_COMPACTION);
+    assertTrue(store.listAllUsers().contains("bob"));
+  }
+
+  @Test
+  public void ignoresACorruptRecordAtTheEndOfTheLog() throws IOException {
+    store = open(NO_COMPACTION);
+    store.store("alice", credential("a1", null, null));
+    store.close();
+
+    DataOutputStream out = appendTo(onlyLog());
+    try {
+      out.writeInt(4);
+      out.writeInt(12345);
+      out.write(new byte[] {2, 0, 0, 0});
+    } finally {
+      out.close();
+    }
+
+    store = open(NO_COMPACTION);
+    assertEquals(ImmutableList.of("alice"), store.listAllUsers());
+  }
+
+  @Test
+  public void compactsIntoASnapshotAndDeletesOldLogs() throws IOException {
+    store = open(1);
+    for (int i = 0; i < 50; i++) {
+      store.store("user" + i, credential("token" + i, "refresh" + i, (long) i));
+    }
+    for (int i = 0; i < 50; i += 2) {
+      store.delete("user" + i, null);
+    }
+    store.close();
+
+    assertTrue(new File(folder.getRoot(), "credentials.snapshot").exists());
+    assertTrue(logs().length <= 2);
+
+    store = open(NO_COMPACTION);
+    assertEquals(25, store.listAllUsers().size());
+    for (int i = 0; i < 50; i++) {
+      Credential loaded = credential(null, null, null);
+      if (i % 2 == 0) {
+        assertFalse(store.load("user" + i, loaded));
+      } else {
+        assertTrue(store.load("user" + i, loaded));
+        assertEquals("token" + i, loaded.getAccessToken());
+        assertEquals("refresh" + i, loaded.getRefreshToken());
+        assertEquals(Long.valueOf(i), loaded.getExpirationTimeMilliseconds());
+      }
+    }
+  }
+
+  @Test
+  public void refusesANullUserIdWithoutLoggingIt() throws IOException {
+    store = open(NO_COMPACTION);
+    try {
+      store.store(null, credential("token", null, null));
+      fail();
+    } catch (IllegalArgumentException expected) {
+    }
+    store.delete(null, null);
+    store.close();
+
+    assertEquals(0, onlyLog().length());
+    store = open(NO_COMPACTION);
+    assertTrue(store.listAllUsers().isEmpty());
+    assertNull(store.get(null));
+  }
+
+  private DurableCredentialStore open(long compactionThresholdBytes) throws IOException {
+    return new DurableCredentialStore(folder.getRoot(), SYNC_INTERVAL_MILLIS,
+        compactionThresholdBytes);
+  }
+
+  private File[] logs() {
+    return folder.getRoot().listFiles(new FilenameFilter() {
+      public boolean accept(File dir, String name) {
+        return name.endsWith(".log");
+      }
+    });
+  }
+
+  private File onlyLog() {
+    File[] logs = logs();
+    assertEquals(1, logs.length);
+    return logs[0];
+  }
+
+  private static DataOutputStream appendTo(File file) throws IOException {
+    return new DataOutputStream(new FileOutputStream(file, true));
+  }
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.glassware;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.google.common.base.Charsets;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteStreams;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class ImageFetcherTest {
+  private static final byte[] IMAGE = {(byte) 0x89, 'P', 'N', 'G', 1, 2, 3, 4};
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private TestHttpServer server;
+  private ImageFetcher fetcher;
+
+  @Before
+  public void setUp() throws IOException {
+    server = new TestHttpServer();
+    fetcher = new ImageFetcher(null, folder.getRoot(), 1024 * 1024, 1024 * 1024);
+  }
+
+  @After
+  public void tearDown() {
+    fetcher.shutdown();
+    server.stop();
+  }
+
+  @Test
+  public void fetchesAnImageOnceAndThenKeepsIt() throws IOException {
+    server.handle("/cat.png", TestHttpServer.always(200, "image/png", IMAGE));
+
+    for (int i = 0; i < 3; i++) {
+      ImageFetcher.Image image = fetcher.fetch(server.url("/cat.png"), null);
+      assertEquals("image/png", image.getContentType());
+      assertEquals(IMAGE.length, image.getLength());
+      assertArrayEquals(IMAGE, read(image));
+    }
+    assertEquals(1, server.getRequestCount("/cat.png"));
+  }
+
+  @Test
+  public void storesTheSameImageOnceWhateverItsUrl() throws IOException {
+    server.handle("/a.png", TestHttpServer.always(200, "image/png", IMAGE));
+    server.handle("/b.png", TestHttpServer.always(200, "image/png", IMAGE));
+
+    fetcher.fetch(server.url("/a.png"), null);
+    fetcher.fetch(server.url("/b.png"), null);
+
+    String[] files = folder.getRoot().list();
+    assertEquals(1, files.length);
+    assertEquals(Hashing.sha256().hashBytes(IMAGE).toString(), files[0]);
+  }
+
+  @Test
+  public void sharesOneRequestBetweenConcurrentFetches() throws Exception {
+    final CountDownLatch requested = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    server.handle("/slow.png", new HttpHandler() {
+      public void handle(HttpExchange exchange) throws IOException {
+        requested.countDown();
+        try {
+          release.await();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+        TestHttpServer.respond(exchange, 200, "image/png", IMAGE);
+      }
+    });
+
+    final List<byte[]> bodies = new ArrayList<byte[]>();
+    List<Thread> threads = new ArrayList<Thread>();
+    for (int i = 0; i < 5; i++) {
+      Thread thread = new Thread(new Runnable() {
+        public void run() {
+          try {
+            byte[] body = read(fetcher.fetch(server.url("/slow.png"), null));
+            synchronized (bodies) {
+              bodies.add(body);
+            }
+          } catch (IOException e) {
+            throw new RuntimeException(e);
+          }
+        }
+      });
+      thread.start();
+      threads.add(thread);
+    }
+    assertTrue(requested.await(5, TimeUnit.SECONDS));
+    // Give the other fetches time to find the one in flight
+    Thread.sleep(200);
+    release.countDown();
+    for (Thread thread : threads) {
+      thread.join(5000);
+    }
+
+    assertEquals(5, bodies.size());
+    for (byte[] body : bodies) {
+      assertArrayEquals(IMAGE, body);
+    }
+    assertEquals(1, server.getRequestCount("/slow.png"));
+  }
+
+  @Test
+  public void failsWhenTheServerDoes() throws IOException {
+    server.handle("/missing.png", TestHttpServer.always(404, "text/plain", "Not found".getBytes(Charsets.UTF_8)));
+    try {
+      fetcher.fetch(server.url("/missing.png"), null);
+      fail();
+    } catch (IOException expected) {
+    }
+    // Failures aren't kept
+    try {
+      fetcher.fetch(server.url("/missing.png"), null);
+      fail();
+    } catch (IOException expected) {
+    }
+    assertEquals(2, server.getRequestCount("/missing.png"));
+  }
+
+  private static byte[] read(ImageFetcher.Image image) throws IOException {
+    InputStream in = image.openStream();
+    try {
+      return ByteStreams.toByteArray(in);
+    } finally {
+      in.close();
+    }
+  }
+}
@@ -0,0 +1,188 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.glassware;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class KeyedExecutorTest {
+  private KeyedExecutor executor;
+
+  @After
+  public void tearDown() {
+    if (executor != null) {
+      executor.shutdown(1000);
+    }
+  }
+
+  @Test
+  public void runsEachKeysTasksInSubmissionOrder() throws Exception {
+    executor = new KeyedExecutor("test", 4, 1000, KeyedExecutor.OverflowPolicy.BLOCK, 1000);
+    final Map<String, List<Integer>> seen = new HashMap<String, List<Integer>>();
+    for (int key = 0; key < 10; key++) {
+      seen.put("user" + key, Collections.synchronizedList(new ArrayList<Integer>()));
+    }
+    final CountDownLatch done = new CountDownLatch(500);
+    for (int i = 0; i < 50; i++) {
+      for (int key = 0; key < 10; key++) {
+        final List<Integer> list = seen.get("user" + key);
+        final int sequence = i;
+        assertTrue(executor.submit("user" + key, new Runnable() {
+          public void run() {
+            list.add(sequence);
+            done.countDown();
+          }
+        }));
+      }
+    }
+    assertTrue(done.await(5, TimeUnit.SECONDS));
+    for (List<Integer> list : seen.values()) {
+      assertEquals(50, list.size());
+      for (int i = 0; i < 50; i++) {
+        assertEquals(Integer.valueOf(i), list.get(i));
+      }
+    }
+    assertEquals(500, executor.getAcceptedCount());
+  }
+
+  @Test
+  public void rejectRefusesTasksWhenTheLaneIsFull() throws Exception {
+    executor = new KeyedExecutor("test", 1, 1, KeyedExecutor.OverflowPolicy.REJECT, 0);
+    List<String> ran = Collections.synchronizedList(new ArrayList<String>());
+    CountDownLatch release = occupyWorker(ran);
+
+    assertTrue(executor.submit("a", record(ran, "queued")));
+    assertFalse(executor.submit("a", record(ran, "refused")));
+    assertEquals(1, executor.getRejectedCount());
+
+    release.countDown();
+    executor.shutdown(1000);
+    assertEquals(Arrays.asList("busy", "queued"), ran);
+  }
+
+  @Test
+  public void blockGivesUpAfterTheOfferTimeout() throws Exception {
+    executor = new KeyedExecutor("test", 1, 1, KeyedExecutor.OverflowPolicy.BLOCK, 50);
+    List<String> ran = Collections.synchronizedList(new ArrayList<String>());
+    CountDownLatch release = occupyWorker(ran);
+
+    assertTrue(executor.submit("a", record(ran, "queued")));
+    long start = System.nanoTime();
+    assertFalse(executor.submit("a", record(ran, "refused")));
+    assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(40));
+    assertEquals(1, executor.getRejectedCount());
+    release.countDown();
+  }
+
+  @Test
+  public void discardOldestDropsTheOldestQueuedTask() throws Exception {
+    executor = new KeyedExecutor("test", 1, 2, KeyedExecutor.OverflowPolicy.DISCARD_OLDEST, 0);
+    final List<String> ran = Collections.synchronizedList(new ArrayList<String>());
+    CountDownLatch release = occupyWorker(ran);
+
+    final List<String> discarded = Collections.synchronizedList(new ArrayList<String>());
+    assertTrue(executor.submit("a", new KeyedExecutor.DiscardableTask() {
+      public void run() {
+        ran.add("first");
+      }
+
+      public void discarded() {
+        discarded.add("first");
+      }
+    }));
+    assertTrue(executor.submit("a", record(ran, "second")));
+    assertTrue(executor.submit("a", record(ran, "third")));
+    assertEquals(1, executor.getDiscardedCount());
+    assertEquals(0, executor.getRejectedCount());
+    assertEquals(Arrays.asList("first"), discarded);
+
+    release.countDown();
+    executor.shutdown(1000);
+    assertEquals(Arrays.asList("busy", "second", "third"), ran);
+  }
+
+  @Test
+  public void keepsRunningTasksAfterOneFails() throws Exception {
+    executor = new KeyedExecutor("test", 1, 10, KeyedExecutor.OverflowPolicy.REJECT, 0);
+    List<String> ran = Collections.synchronizedList(new ArrayList<String>());
+
+    assertTrue(executor.submit("a", new Runnable() {
+      public void run() {
+        throw new IllegalStateException("failed on purpose");
+      }
+    }));
+    assertTrue(executor.submit("a", new Runnable() {
+      public void run() {
+        throw new AssertionError("failed on purpose");
+      }
+    }));
+    assertTrue(executor.submit("a", record(ran, "after")));
+
+    executor.shutdown(1000);
+    assertEquals(Arrays.asList("after"), ran);
+  }
+
+  @Test
+  public void refusesTasksAfterShutdown() {
+    executor = new KeyedExecutor("test", 1, 1, KeyedExecutor.OverflowPolicy.REJECT, 0);
+    executor.shutdown(1000);
+    assertFalse(executor.submit("a", record(new ArrayList<String>(), "late")));
+    assertEquals(1, executor.getRejectedCount());
+  }
+
+  /**
+   * Submits a task that holds the only worker until the returned latch is
+   * released, and waits for it to start so that the lane's queue is empty.
+   */
+  private CountDownLatch occupyWorker(final List<String> ran) throws InterruptedException {
+    final CountDownLatch started = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    assertTrue(executor.submit("a", new Runnable() {
+      public void run() {
+        ran.add("busy");
+        started.countDown();
+        try {
+          release.await();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+    }));
+    assertTrue(started.await(5, TimeUnit.SECONDS));
+    return release;
+  }
+
+  private static Runnable record(final List<String> ran, final String name) {
+    return new Runnable() {
+      public void run() {
+        ran.add(name);
+      }
+    };
+  }
+}
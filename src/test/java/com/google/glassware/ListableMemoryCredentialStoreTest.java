@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.glassware;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.google.api.client.auth.oauth2.BearerToken;
+import com.google.api.client.auth.oauth2.ClientParametersAuthentication;
+import com.google.api.client.auth.oauth2.Credential;
+import com.google.api.client.http.javanet.NetHttpTransport;
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+public class ListableMemoryCredentialStoreTest {
+  private final ListableMemoryCredentialStore store = new ListableMemoryCredentialStore();
+
+  @Test
+  public void loadsWhatWasStored() throws IOException {
+    store.store("alice", credential("access", "refresh", 1234L));
+
+    Credential loaded = credential(null, null, null);
+    assertTrue(store.load("alice", loaded));
+    assertEquals("access", loaded.getAccessToken());
+    assertEquals("refresh", loaded.getRefreshToken());
+    assertEquals(Long.valueOf(1234L), loaded.getExpirationTimeMilliseconds());
+    assertFalse(store.load("bob", credential(null, null, null)));
+  }
+
+  @Test
+  public void storingReplacesTheSnapshot() throws IOException {
+    store.store("alice", credential("first", null, null));
+    ListableMemoryCredentialStore.MemoryPersistedCredential before = store.get("alice");
+    store.store("alice", credential("second", null, null));
+
+    assertTrue(before != store.get("alice"));
+    assertEquals("first", before.getAccessToken());
+    assertEquals("second", store.get("alice").getAccessToken());
+  }
+
+  @Test
+  public void deleteRemovesTheUser() throws IOException {
+    store.store("alice", credential("access", null, null));
+    store.delete("alice", null);
+
+    assertFalse(store.load("alice", credential(null, null, null)));
+    assertTrue(store.listAllUsers().isEmpty());
+  }
+
+  @Test
+  public void nullUserIdsAreNeverStored() throws IOException {
+    try {
+      store.store(null, credential("access", null, null));
+      fail();
+    } catch (IllegalArgumentException expected) {
+    }
+    store.delete(null, null);
+    assertFalse(store.load(null, credential(null, null, null)));
+    assertNull(store.get(null));
+    assertTrue(store.listAllUsers().isEmpty());
+  }
+
+  @Test
+  public void listsUsersInSortedPages() throws IOException {
+    for (String userId : ImmutableList.of("d", "b", "e", "a", "c")) {
+      store.store(userId, credential("access", null, null));
+    }
+
+    assertEquals(ImmutableList.of("a", "b"), store.listUsers(null, 2));
+    assertEquals(ImmutableList.of("c", "d"), store.listUsers("b", 2));
+    assertEquals(ImmutableList.of("e"), store.listUsers("d", 2));
+    assertEquals(Collections.<String>emptyList(), store.listUsers("e", 2));
+    // The cursor doesn't have to be a stored user.
+    assertEquals(ImmutableList.of("c", "d", "e"), store.listUsers("bb", 10));
+    assertEquals(ImmutableList.of("a", "b", "c", "d", "e"),
+        Lists.newArrayList(store.iterateUsers()));
+  }
+
+  @Test
+  public void iteratingToleratesConcurrentChanges() throws IOException {
+    for (String userId : ImmutableList.of("a", "b", "c")) {
+      store.store(userId, credential("access", null, null));
+    }
+    List<String> seen = Lists.newArrayList();
+    for (Iterator<String> users = store.iterateUsers(); users.hasNext(); ) {
+      String userId = users.next();
+      seen.add(userId);
+      store.delete("b", null);
+      store.store("d", credential("access", null, null));
+    }
+    // Whether "b" is seen depends on how far ahead the iterator had read.
+    seen.remove("b");
+    assertEquals(ImmutableList.of("a", "c", "d"), seen);
+  }
+
+  static Credential credential(String accessToken, String refreshToken, Long expiration) {
+    Credential credential = new Credential.Builder(BearerToken.authorizationHeaderAccessMethod())
+        .setTransport(new NetHttpTransport())
+        .setJsonFactory(new JacksonFactory())
+        .setTokenServerEncodedUrl("https://accounts.example.com/token")
+        .setClientAuthentication(new ClientParametersAuthentication("client", "secret"))
+        .build();
+    credential.setAccessToken(accessToken);
+    credential.setRefreshToken(refreshToken);
+    credential.setExpirationTimeMilliseconds(expiration);
+    return credential;
+  }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.glassware;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.google.common.collect.ImmutableSet;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+public class LocationCoalescerTest {
+  private static final long TIMEOUT_MILLIS = 5000;
+
+  private final BlockingQueue<String> shown = new LinkedBlockingQueue<String>();
+  private LocationCoalescer coalescer;
+
+  @After
+  public void tearDown() {
+    coalescer.shutdown();
+  }
+
+  @Test
+  public void showsOneLocationForABurst() throws Exception {
+    coalescer = new RecordingCoalescer(200);
+
+    for (int i = 0; i < 10; i++) {
+      coalescer.offer("alice");
+    }
+    coalescer.offer("bob");
+
+    assertEquals(ImmutableSet.of("alice", "bob"), ImmutableSet.of(
+        shown.poll(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS),
+        shown.poll(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)));
+    Thread.sleep(400);
+    assertTrue(shown.isEmpty());
+  }
+
+  @Test
+  public void givesNotificationsDuringAFetchAWindowOfTheirOwn() throws Exception {
+    final CountDownLatch fetching = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    coalescer = new RecordingCoalescer(50) {
+      @Override
+      void showLatestLocation(String userId) {
+        if (fetching.getCount() > 0) {
+          fetching.countDown();
+          try {
+            release.await();
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+        }
+        super.showLatestLocation(userId);
+      }
+    };
+
+    coalescer.offer("alice");
+    assertTrue(fetching.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+    coalescer.offer("alice");
+    release.countDown();
+
+    assertTrue(awaitShown("alice", "alice"));
+  }
+
+  @Test
+  public void keepsGoingAfterAnUnexpectedFailure() throws Exception {
+    final CountDownLatch failed = new CountDownLatch(1);
+    coalescer = new RecordingCoalescer(50) {
+      @Override
+      void showLatestLocation(String userId) {
+        if (failed.getCount() > 0) {
+          failed.countDown();
+          throw new IllegalStateException("failed on purpose");
+        }
+        super.showLatestLocation(userId);
+      }
+    };
+
+    coalescer.offer("alice");
+    assertTrue(failed.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+    // Give the failed flush time to finish before the next notification
+    Thread.sleep(100);
+    coalescer.offer("alice");
+
+    assertTrue(awaitShown("alice"));
+  }
+
+  private boolean awaitShown(String... userIds) throws InterruptedException {
+    for (String userId : userIds) {
+      String next = shown.poll(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+      if (!userId.equals(next)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Records the users whose location it would show.
+   */
+  private class RecordingCoalescer extends LocationCoalescer {
+    RecordingCoalescer(long windowMillis) {
+      super(windowMillis, 2);
+    }
+
+    @Override
+    void showLatestLocation(String userId) {
+      shown.add(userId);
+    }
+  }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.glassware;
+
+import static com.google.glassware.ListableMemoryCredentialStoreTest.credential;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+import com.google.api.client.auth.oauth2.Credential;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.IOException;
+
+public class MirrorClientTest {
+  private static final String TIMELINE = "/mirror/v1/timeline/";
+
+  private static TestHttpServer server;
+
+  /**
+   * MirrorClient reads its settings once, so they are set before the class is
+   * first used.
+   */
+  @BeforeClass
+  public static void setUpClass() throws IOException {
+    server = new TestHttpServer();
+    server.handle(TIMELINE, new HttpHandler() {
+      public void handle(HttpExchange exchange) throws IOException {
+        String id = exchange.getRequestURI().getPath().substring(TIMELINE.length());
+        if (!id.startsWith("fast")) {
+          try {
+            Thread.sleep(400);
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+        }
+        TestHttpServer.respond(exchange, 200, "application/json; charset=UTF-8",
+            "{\"kind\":\"mirror#timelineItem\",\"id\":\"" + id + "\"}");
+      }
+    });
+    System.setProperty("glassware.mirror.rootUrl", server.url("/"));
+    System.setProperty("glassware.hedge.delayMillis", "100");
+  }
+
+  @AfterClass
+  public static void tearDownClass() {
+    System.clearProperty("glassware.mirror.rootUrl");
+    System.clearProperty("glassware.hedge.delayMillis");
+    server.stop();
+  }
+
+  @Test
+  public void rateLimitsAUserByTheirGrant() {
+    String key = MirrorClient.userKeyOf(credential("first", "grant", null));
+
+    // The access token changes hourly; the grant doesn't
+    assertEquals(key, MirrorClient.userKeyOf(credential("second", "grant", null)));
+    assertFalse(key.equals(MirrorClient.userKeyOf(credential("first", "other", null))));
+    assertFalse(key.contains("grant"));
+    assertNull(MirrorClient.userKeyOf(credential("first", null, null)));
+  }
+
+  @Test
+  public void leavesAFastReadAlone() throws IOException {
+    assertEquals("fast", MirrorClient.getTimelineItem(newCredential(), "fast").getId());
+    assertEquals(1, server.getRequestCount(TIMELINE + "fast"));
+  }
+
+  @Test
+  public void hedgesASlowInteractiveRead() throws IOException {
+    assertEquals("slow", MirrorClient.getTimelineItem(newCredential(), "slow").getId());
+    assertEquals(2, server.getRequestCount(TIMELINE + "slow"));
+  }
+
+  @Test
+  public void neverHedgesABackgroundRead() throws IOException {
+    assertEquals("background", MirrorClient.getTimelineItem(newCredential(), "background",
+        RateLimiter.Priority.BACKGROUND).getId());
+    assertEquals(1, server.getRequestCount(TIMELINE + "background"));
+  }
+
+  private static Credential newCredential() {
+    return credential("token", "grant", System.currentTimeMillis() + 30 * 60 * 1000);
+  }
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.glassware;
+
+import static org.junit.Assert.assertEquals;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterables;
+import com.google.common.io.Files;
+import com.google.glassware.NewUserBootstrapper.Step;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.EnumSet;
+import java.util.List;
+
+public class NewUserBootstrapperTest {
+  private static File directory;
+  private static File stateFile;
+
+  /**
+   * NewUserBootstrapper loads its state file once, so it is written before
+   * the class is first used.
+   */
+  @BeforeClass
+  public static void setUpClass() throws IOException {
+    directory = Files.createTempDir();
+    stateFile = new File(directory, "bootstrap.log");
+    Files.write("alice CONTACT\n"
+        + "alice SUBSCRIPTION\n"
+        + "bob CONTACT\n"
+        + "alice WELCOME\n"
+        + "carol CONTACT\n"
+        + "carol -\n"
+        + "bob SUBSCRIPTION\n"
+        + "dave NOT_A_STEP\n"
+        + "henry CONTACT\n"
+        + "erin WELC", stateFile, Charsets.UTF_8);
+    System.setProperty("glassware.bootstrap.stateFile", stateFile.getPath());
+    System.setProperty("glassware.bootstrap.compactLines", "11");
+  }
+
+  @AfterClass
+  public static void tearDownClass() {
+    NewUserBootstrapper.shutdown();
+    System.clearProperty("glassware.bootstrap.stateFile");
+    System.clearProperty("glassware.bootstrap.compactLines");
+    for (File file : directory.listFiles()) {
+      file.delete();
+    }
+    directory.delete();
+  }
+
+  @Test
+  public void replaysTheStepsUsersFinished() {
+    assertEquals(EnumSet.noneOf(Step.class), NewUserBootstrapper.getRemainingSteps("alice"));
+    // Forgotten users and unknown lines leave everything to do
+    assertEquals(EnumSet.allOf(Step.class), NewUserBootstrapper.getRemainingSteps("carol"));
+    assertEquals(EnumSet.allOf(Step.class), NewUserBootstrapper.getRemainingSteps("dave"));
+    assertEquals(EnumSet.allOf(Step.class), NewUserBootstrapper.getRemainingSteps("erin"));
+    assertEquals(EnumSet.allOf(Step.class), NewUserBootstrapper.getRemainingSteps("frank"));
+  }
+
+  @Test
+  public void recordsForgottenUsersAndCompacts() throws IOException {
+    assertEquals(EnumSet.of(Step.WELCOME), NewUserBootstrapper.getRemainingSteps("bob"));
+
+    NewUserBootstrapper.forget("bob");
+
+    assertEquals(EnumSet.allOf(Step.class), NewUserBootstrapper.getRemainingSteps("bob"));
+    List<String> lines = Files.readLines(stateFile, Charsets.UTF_8);
+    assertEquals(11, lines.size());
+    // The torn line is left as it was, and the append starts a line of its own
+    assertEquals("erin WELC", lines.get(9));
+    assertEquals("bob -", Iterables.getLast(lines));
+
+    // Past the limit, the file is rewritten with only what is still finished
+    NewUserBootstrapper.forget("henry");
+
+    assertEquals(ImmutableSet.of("alice CONTACT", "alice SUBSCRIPTION", "alice WELCOME"),
+        ImmutableSet.copyOf(Files.readLines(stateFile, Charsets.UTF_8)));
+  }
+}
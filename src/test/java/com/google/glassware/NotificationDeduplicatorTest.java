@@ -0,0 +1,96 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.glassware;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.google.api.services.mirror.model.Notification;
+import com.google.api.services.mirror.model.UserAction;
+import com.google.common.collect.ImmutableList;
+
+import org.junit.Test;
+
+public class NotificationDeduplicatorTest {
+  private static final long WINDOW_MILLIS = 60 * 1000;
+
+  @Test
+  public void dropsARedelivery() {
+    NotificationDeduplicator deduplicator = new NotificationDeduplicator(WINDOW_MILLIS, 100);
+    assertTrue(deduplicator.markFirstDelivery(notification("item1", "UPDATE")));
+    assertFalse(deduplicator.markFirstDelivery(notification("item1", "UPDATE")));
+    assertEquals(1, deduplicator.getMissCount());
+    assertEquals(1, deduplicator.getHitCount());
+  }
+
+  @Test
+  public void tellsDifferentNotificationsApart() {
+    NotificationDeduplicator deduplicator = new NotificationDeduplicator(WINDOW_MILLIS, 100);
+    assertTrue(deduplicator.markFirstDelivery(notification("item1", "UPDATE")));
+    assertTrue(deduplicator.markFirstDelivery(notification("item2", "UPDATE")));
+    assertTrue(deduplicator.markFirstDelivery(notification("item1", "DELETE")));
+    assertTrue(deduplicator.markFirstDelivery(
+        notification("item1", "UPDATE").setUserToken("someone else")));
+    assertTrue(deduplicator.markFirstDelivery(
+        notification("item1", "UPDATE", action("REPLY", null))));
+    assertTrue(deduplicator.markFirstDelivery(
+        notification("item1", "UPDATE", action("CUSTOM", "dismiss"))));
+    assertFalse(deduplicator.markFirstDelivery(
+        notification("item1", "UPDATE", action("CUSTOM", "dismiss"))));
+    assertEquals(1, deduplicator.getHitCount());
+  }
+
+  @Test
+  public void processesARedeliveryOfAForgottenNotification() {
+    NotificationDeduplicator deduplicator = new NotificationDeduplicator(WINDOW_MILLIS, 100);
+    assertTrue(deduplicator.markFirstDelivery(notification("item1", "UPDATE")));
+    deduplicator.forget(notification("item1", "UPDATE"));
+    assertTrue(deduplicator.markFirstDelivery(notification("item1", "UPDATE")));
+  }
+
+  @Test
+  public void forgetsNotificationsAfterTheWindow() throws InterruptedException {
+    NotificationDeduplicator deduplicator = new NotificationDeduplicator(50, 100);
+    assertTrue(deduplicator.markFirstDelivery(notification("item1", "UPDATE")));
+    Thread.sleep(100);
+    assertTrue(deduplicator.markFirstDelivery(notification("item1", "UPDATE")));
+  }
+
+  @Test
+  public void remembersABoundedNumberOfNotifications() {
+    NotificationDeduplicator deduplicator = new NotificationDeduplicator(WINDOW_MILLIS, 10);
+    for (int i = 0; i < 1000; i++) {
+      assertTrue(deduplicator.markFirstDelivery(notification("item" + i, "INSERT")));
+    }
+    // The oldest ones have been evicted, so their redeliveries get through.
+    assertTrue(deduplicator.markFirstDelivery(notification("item0", "INSERT")));
+  }
+
+  private static Notification notification(String itemId, String operation,
+      UserAction... userActions) {
+    Notification notification = new Notification().setUserToken("user1")
+        .setCollection("timeline").setItemId(itemId).setOperation(operation);
+    if (userActions.length > 0) {
+      notification.setUserActions(ImmutableList.copyOf(userActions));
+    }
+    return notification;
+  }
+
+  private static UserAction action(String type, String payload) {
+    return new UserAction().setType(type).setPayload(payload);
+  }
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.glassware;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.services.mirror.model.Notification;
+import com.google.common.base.Charsets;
+import com.google.common.base.Strings;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+public class NotificationParserTest {
+  private static final String PAYLOAD =
+      "{\"collection\":\"timeline\",\"itemId\":\"item1\",\"operation\":\"INSERT\","
+      + "\"userToken\":\"user1\"}";
+
+  @Test
+  public void parsesAPayloadWithinTheLimit() throws IOException {
+    Notification notification = parser(1024).parse(stream(PAYLOAD));
+    assertEquals("timeline", notification.getCollection());
+    assertEquals("item1", notification.getItemId());
+    assertEquals("user1", notification.getUserToken());
+  }
+
+  @Test
+  public void acceptsAPayloadOfExactlyTheLimit() throws IOException {
+    String payload = PAYLOAD + Strings.repeat(" ", 100);
+    int length = payload.getBytes(Charsets.UTF_8).length;
+    assertEquals("user1", parser(length).parse(stream(payload)).getUserToken());
+  }
+
+  @Test
+  public void refusesAPayloadOneByteOverTheLimit() throws IOException {
+    String payload = PAYLOAD + Strings.repeat(" ", 100);
+    int length = payload.getBytes(Charsets.UTF_8).length;
+    try {
+      parser(length - 1).parse(stream(payload));
+      fail();
+    } catch (NotificationParser.PayloadTooLargeException expected) {
+    }
+  }
+
+  @Test
+  public void refusesAnOversizedPayloadWithoutReadingAllOfIt() throws IOException {
+    CountingInputStream in = new CountingInputStream(
+        stream("{\"itemId\":\"" + Strings.repeat("x", 1024 * 1024) + "\"}"));
+    try {
+      parser(1024).parse(in);
+      fail();
+    } catch (NotificationParser.PayloadTooLargeException expected) {
+    }
+    assertTrue("read " + in.count + " bytes", in.count < 64 * 1024);
+  }
+
+  @Test
+  public void enforcesTheLimitWhenLoggingPayloads() throws IOException {
+    Logger logger = Logger.getLogger(NotificationParser.class.getSimpleName());
+    Level level = logger.getLevel();
+    logger.setLevel(Level.FINE);
+    try {
+      NotificationParser parser = parser(PAYLOAD.length());
+      assertEquals("item1", parser.parse(stream(PAYLOAD)).getItemId());
+      try {
+        parser.parse(stream(PAYLOAD + " "));
+        fail();
+      } catch (NotificationParser.PayloadTooLargeException expected) {
+      }
+      // The pooled buffer is reset between payloads.
+      assertEquals("item1", parser.parse(stream(PAYLOAD)).getItemId());
+    } finally {
+      logger.setLevel(level);
+    }
+  }
+
+  private static NotificationParser parser(int maxBytes) {
+    return new NotificationParser(new JacksonFactory(), maxBytes);
+  }
+
+  private static InputStream stream(String payload) {
+    return new ByteArrayInputStream(payload.getBytes(Charsets.UTF_8));
+  }
+
+  private static final class CountingInputStream extends FilterInputStream {
+    long count;
+
+    CountingInputStream(InputStream in) {
+      super(in);
+    }
+
+    @Override
+    public int read() throws IOException {
+      int b = super.read();
+      if (b != -1) {
+        count++;
+      }
+      return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      int read = super.read(b, off, len);
+      if (read > 0) {
+        count += read;
+      }
+      return read;
+    }
+  }
+}
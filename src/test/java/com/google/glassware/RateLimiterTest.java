@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.glassware;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.google.glassware.RateLimiter.Mode;
+import com.google.glassware.RateLimiter.Priority;
+import com.google.glassware.RateLimiter.RateLimitedException;
+
+import org.junit.Test;
+
+import java.io.IOException;
+
+public class RateLimiterTest {
+  private static final double UNLIMITED_RATE = 1000000;
+  private static final int UNLIMITED_BURST = 1000000;
+  private static final long UNLIMITED_QUOTA = Long.MAX_VALUE / 100;
+
+  @Test
+  public void allowsABurstPerUserThenRefuses() throws IOException {
+    RateLimiter limiter = new RateLimiter(0.001, 3, UNLIMITED_RATE, UNLIMITED_BURST,
+        UNLIMITED_QUOTA, 100, 0);
+    for (int i = 0; i < 3; i++) {
+      limiter.acquire("alice", "GET timeline", Priority.INTERACTIVE, Mode.FAIL_FAST);
+    }
+    try {
+      limiter.acquire("alice", "GET timeline", Priority.INTERACTIVE, Mode.FAIL_FAST);
+      fail();
+    } catch (RateLimitedException expected) {
+      assertTrue(expected.getRetryAfterMillis() > 0);
+    }
+    // Other users have their own buckets.
+    limiter.acquire("bob", "GET timeline", Priority.INTERACTIVE, Mode.FAIL_FAST);
+    assertEquals(4, limiter.getDailyUsage());
+    assertEquals(1, limiter.getThrottledCount());
+  }
+
+  @Test
+  public void limitsEachMethodAcrossUsers() throws IOException {
+    RateLimiter limiter = new RateLimiter(0.001, 1, 0.001, 1, UNLIMITED_QUOTA, 100, 0);
+    limiter.acquire("alice", "POST timeline", Priority.INTERACTIVE, Mode.FAIL_FAST);
+    try {
+      limiter.acquire("bob", "POST timeline", Priority.INTERACTIVE, Mode.FAIL_FAST);
+      fail();
+    } catch (RateLimitedException expected) {
+    }
+    // Bob's own token was given back when the method refused him.
+    limiter.acquire("bob", "GET timeline", Priority.INTERACTIVE, Mode.FAIL_FAST);
+  }
+
+  @Test
+  public void callsWithoutAUserOnlyCountAgainstTheMethod() throws IOException {
+    RateLimiter limiter = new RateLimiter(0.001, 1, UNLIMITED_RATE, UNLIMITED_BURST,
+        UNLIMITED_QUOTA, 100, 0);
+    for (int i = 0; i < 10; i++) {
+      limiter.acquire(null, "GET timeline", Priority.INTERACTIVE, Mode.FAIL_FAST);
+    }
+  }
+
+  @Test
+  public void waitsForATokenWhenAsked() throws IOException {
+    RateLimiter limiter = new RateLimiter(20, 1, UNLIMITED_RATE, UNLIMITED_BURST,
+        UNLIMITED_QUOTA, 100, 1000);
+    limiter.acquire("alice", "GET timeline", Priority.INTERACTIVE, Mode.WAIT);
+    long start = System.nanoTime();
+    limiter.acquire("alice", "GET timeline", Priority.INTERACTIVE, Mode.WAIT);
+    long waitedMillis = (System.nanoTime() - start) / 1000000;
+    assertTrue("waited " + waitedMillis + "ms", waitedMillis >= 40);
+    assertEquals(0, limiter.getThrottledCount());
+  }
+
+  @Test
+  public void givesUpWaitingAfterTheLimit() throws IOException {
+    RateLimiter limiter = new RateLimiter(0.001, 1, UNLIMITED_RATE, UNLIMITED_BURST,
+        UNLIMITED_QUOTA, 100, 100);
+    limiter.acquire("alice", "GET timeline", Priority.INTERACTIVE, Mode.WAIT);
+    long start = System.nanoTime();
+    try {
+      limiter.acquire("alice", "GET timeline", Priority.INTERACTIVE, Mode.WAIT);
+      fail();
+    } catch (RateLimitedException expected) {
+    }
+    // The wait would be far too long, so it fails without sleeping.
+    assertTrue(System.nanoTime() - start < 1000 * 1000000L);
+  }
+
+  @Test
+  public void reservesPartOfTheDailyQuotaForInteractiveCalls() throws IOException {
+    RateLimiter limiter = new RateLimiter(UNLIMITED_RATE, UNLIMITED_BURST, UNLIMITED_RATE,
+        UNLIMITED_BURST, 10, 50, 0);
+    for (int i = 0; i < 5; i++) {
+      limiter.acquire("alice", "GET timeline", Priority.BACKGROUND, Mode.FAIL_FAST);
+    }
+    try {
+      limiter.acquire("alice", "GET timeline", Priority.BACKGROUND, Mode.FAIL_FAST);
+      fail();
+    } catch (RateLimitedException expected) {
+      assertTrue(expected.getRetryAfterMillis() > 0);
+    }
+    for (int i = 0; i < 5; i++) {
+      limiter.acquire("alice", "GET timeline", Priority.INTERACTIVE, Mode.FAIL_FAST);
+    }
+    try {
+      limiter.acquire("alice", "GET timeline", Priority.INTERACTIVE, Mode.WAIT);
+      fail();
+    } catch (RateLimitedException expected) {
+    }
+    assertEquals(10, limiter.getDailyUsage());
+    assertEquals(2, limiter.getThrottledCount());
+  }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.glassware;
+
+import com.google.common.base.Charsets;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A local HTTP server for tests to point the app at. Each path is answered by
+ * its own handler, and requests are counted by path.
+ */
+class TestHttpServer {
+  private final HttpServer server;
+  private final ExecutorService executor = Executors.newCachedThreadPool();
+  private final ConcurrentMap<String, AtomicInteger> counts =
+      new ConcurrentHashMap<String, AtomicInteger>();
+
+  TestHttpServer() throws IOException {
+    server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+    server.setExecutor(executor);
+    server.start();
+  }
+
+  /**
+   * Returns the absolute URL of a path on this server.
+   */
+  String url(String path) {
+    return "http://localhost:" + server.getAddress().getPort() + path;
+  }
+
+  /**
+   * Answers requests for a path, and every path under it, with a handler.
+   */
+  void handle(String path, final HttpHandler handler) {
+    server.createContext(path, new HttpHandler() {
+      public void handle(HttpExchange exchange) throws IOException {
+        String requested = exchange.getRequestURI().getPath();
+        AtomicInteger count = counts.get(requested);
+        if (count == null) {
+          AtomicInteger created = new AtomicInteger();
+          count = counts.putIfAbsent(requested, created);
+          if (count == null) {
+            count = created;
+          }
+        }
+        count.incrementAndGet();
+        try {
+          handler.handle(exchange);
+        } finally {
+          exchange.close();
+        }
+      }
+    });
+  }
+
+  /**
+   * Returns how many requests there have been for exactly this path.
+   */
+  int getRequestCount(String path) {
+    AtomicInteger count = counts.get(path);
+    return count == null ? 0 : count.get();
+  }
+
+  void stop() {
+    server.stop(0);
+    executor.shutdownNow();
+  }
+
+  static void respond(HttpExchange exchange, int status, String contentType, String body)
+      throws IOException {
+    respond(exchange, status, contentType, body.getBytes(Charsets.UTF_8));
+  }
+
+  static void respond(HttpExchange exchange, int status, String contentType, byte[] body)
+      throws IOException {
+    if (contentType != null) {
+      exchange.getResponseHeaders().set("Content-Type", contentType);
+    }
+    exchange.sendResponseHeaders(status, body.length == 0 ? -1 : body.length);
+    OutputStream out = exchange.getResponseBody();
+    out.write(body);
+    out.close();
+  }
+
+  /**
+   * Returns a handler that always gives the same response.
+   */
+  static HttpHandler always(final int status, final String contentType, final byte[] body) {
+    return new HttpHandler() {
+      public void handle(HttpExchange exchange) throws IOException {
+        respond(exchange, status, contentType, body);
+      }
+    };
+  }
+}